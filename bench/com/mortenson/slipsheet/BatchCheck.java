@@ -0,0 +1,202 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Checks the batching contract of {@link BluebeamSlipsheetEngine} against
+ * {@link FakeScriptEngine}: a batch is slipsheeted with exactly one
+ * ScriptEngine launch, and a document that breaks the script is reported as
+ * failed on its own job while the rest of its batch is still saved.
+ * Documents fed to {@link Slipsheeter#process(File)} one by one must be
+ * batched the same way. Exits non-zero if a check fails.
+ *
+ * <pre>
+ * java -cp build/bench/classes:build/classes:lib/* com.mortenson.slipsheet.BatchCheck \
+ *     --files 40 --batch-size 10
+ * </pre>
+ *
+ * @author jdegiova
+ */
+public class BatchCheck {
+
+    private int files = 40;
+    private int batchSize = 10;
+    private File dir;
+    private final List<String> problems = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        BatchCheck check = new BatchCheck();
+        try {
+            check.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.err.println("options: --files --batch-size");
+            System.exit(2);
+        }
+        System.exit(check.run() ? 0 : 1);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) throw new IllegalArgumentException(arg + " needs a value");
+            String value = args[++i];
+            try {
+                switch (arg) {
+                    case "--files": files = Math.max(2, Integer.parseInt(value)); break;
+                    case "--batch-size": batchSize = Math.max(2, Integer.parseInt(value)); break;
+                    default: throw new IllegalArgumentException("unknown option " + arg);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(arg + " needs a number");
+            }
+        }
+    }
+
+    private boolean run() throws IOException {
+        dir = SyntheticTree.createTempDir("slipsheet-batch");
+        try {
+            Map<String, Object> properties = new LinkedHashMap<>();
+            properties.put("startupMillis", 0);
+            File launcher = FakeScriptEngine.writeLauncher(dir, properties);
+            checkOneLaunchPerBatch(launcher);
+            checkFailureAttribution(launcher);
+            checkProcessBatches(launcher);
+        } finally {
+            SyntheticTree.delete(dir);
+        }
+        for (String problem : problems) {
+            System.out.println("FAILED: " + problem);
+        }
+        return problems.isEmpty();
+    }
+
+    private void checkOneLaunchPerBatch(File launcher) throws IOException {
+        List<SlipsheetJob> jobs = generate("launches", files);
+        BluebeamSlipsheetEngine engine = new BluebeamSlipsheetEngine(launcher);
+        int batches = 0;
+        for (int from = 0; from < jobs.size(); from += batchSize, batches++) {
+            engine.slipsheet(jobs.subList(from, Math.min(jobs.size(), from + batchSize)));
+        }
+        expect(engine.getLaunchCount() == batches, batches + " batches took " + engine.getLaunchCount() + " launches");
+        for (SlipsheetJob job : jobs) {
+            expect(!job.isFailed(), job + " failed: " + job.getFailure());
+            expect(pageCount(job.getHistorical()) == 2, job + " has " + pageCount(job.getHistorical()) + " pages, not 2");
+        }
+        System.out.println(jobs.size() + " documents in " + batches + " batches: " + engine.getLaunchCount() + " launches");
+    }
+
+    /**
+     * Breaks the latest document of one job in the middle of a batch, so
+     * ScriptEngine fails on it and exits non-zero. Only that job may be
+     * failed, and only it may be retried.
+     */
+    private void checkFailureAttribution(File launcher) throws IOException {
+        List<SlipsheetJob> jobs = generate("failure", batchSize);
+        SlipsheetJob broken = jobs.get(jobs.size() / 2);
+        Files.write(broken.getLatest().toPath(), "not a PDF".getBytes(StandardCharsets.US_ASCII));
+        BluebeamSlipsheetEngine engine = new BluebeamSlipsheetEngine(launcher);
+        engine.getSupervisor().setBackoffMillis(0);
+        engine.slipsheet(jobs);
+        for (SlipsheetJob job : jobs) {
+            if (job == broken) {
+                expect(job.isFailed(), "the broken " + job + " was not reported as failed");
+                expect(job.isFailed() && job.getFailure().contains(job.getHistorical().getAbsolutePath()),
+                        "the failure of " + job + " does not name its document: " + job.getFailure());
+            } else {
+                expect(!job.isFailed(), job + " failed along with the broken document: " + job.getFailure());
+            }
+        }
+        int attempts = engine.getSupervisor().getMaxAttempts();
+        // the batch once, then the broken document on its own for every retry
+        expect(engine.getLaunchCount() == attempts, "expected " + attempts + " launches, got " + engine.getLaunchCount());
+        System.out.println("broken document in a batch of " + jobs.size() + ": " + broken.getFailure());
+    }
+
+    /**
+     * Feeds the documents to {@link Slipsheeter#process(File)} one by one,
+     * as the watcher and the queue workers do. They must still be batched
+     * by the batch size rather than launched one at a time.
+     */
+    private void checkProcessBatches(File launcher) throws IOException {
+        List<SlipsheetJob> jobs = generate("process", files);
+        SlipsheetJob first = jobs.get(0);
+        BluebeamSlipsheetEngine engine = new BluebeamSlipsheetEngine(launcher);
+        Slipsheeter s = new Slipsheeter(first.getHistorical().getParentFile(), first.getCurrent().getParentFile(),
+                first.getLatest().getParentFile(), first.getStampPDF(), engine);
+        s.setBatchSize(batchSize);
+        s.setStateDirectory(new File(dir, "process"));
+        s.open();
+        try {
+            for (SlipsheetJob job : jobs) {
+                s.process(job.getLatest());
+            }
+            s.flush();
+        } finally {
+            s.close();
+        }
+        int batches = (jobs.size() + batchSize - 1) / batchSize;
+        expect(engine.getLaunchCount() == batches, jobs.size() + " documents processed one by one took "
+                + engine.getLaunchCount() + " launches instead of " + batches);
+        expect(!s.getReport().hasFailures(), "documents processed one by one failed");
+        System.out.println(jobs.size() + " documents processed one by one: " + engine.getLaunchCount() + " launches");
+    }
+
+    private List<SlipsheetJob> generate(String name, int count) throws IOException {
+        File root = new File(dir, name);
+        File historical = new File(root, "Historical");
+        File current = new File(root, "Current");
+        File newSet = new File(root, "New");
+        File stamp = new File(root, "Superseded.pdf");
+        if (!root.mkdirs()) throw new IOException("unable to create " + root);
+        new DrawingSetGenerator().setDepth(0).setFiles(count).setFileSize(0).setMatchRatio(1)
+                .generate(historical, current, newSet, stamp);
+        List<SlipsheetJob> jobs = new ArrayList<>();
+        File[] latest = newSet.listFiles();
+        if (latest == null) throw new IOException("unable to list " + newSet);
+        Arrays.sort(latest);
+        for (File file : latest) {
+            SlipsheetJob job = new SlipsheetJob(file, new File(historical, file.getName()), new File(current, file.getName()),
+                    stamp, file.getName());
+            job.setAlignment(PageAlignment.singlePage());
+            jobs.add(job);
+        }
+        return jobs;
+    }
+
+    private static int pageCount(File pdf) throws IOException {
+        try (PDDocument doc = Loader.loadPDF(pdf)) {
+            return doc.getNumberOfPages();
+        }
+    }
+
+    private void expect(boolean condition, String problem) {
+        if (!condition) problems.add(problem);
+    }
+}
@@ -0,0 +1,93 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Putting a new document into the historical and current set: two
+ * {@code Files.copy} calls, the way {@code copyFile} did it, against
+ * {@link DocumentPlacer} reading the source once. Reflinks are turned off so
+ * the copy path itself is measured on every file system.
+ *
+ * @author jdegiova
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopyBenchmark {
+
+    @Param({"65536", "1048576", "16777216"})
+    public long size;
+
+    private File root;
+    private File source;
+    private File historical;
+    private File current;
+    private List<File> targets;
+    private final DocumentPlacer placer = new DocumentPlacer();
+
+    @Setup(Level.Trial)
+    public void createSource() throws IOException {
+        root = SyntheticTree.createTempDir("copy-bench");
+        source = SyntheticTree.createFile(new File(root, "new.pdf"), size);
+        historical = new File(root, "historical.pdf");
+        current = new File(root, "current.pdf");
+        targets = Arrays.asList(historical, current);
+        placer.setAllowReflinks(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        SyntheticTree.delete(root);
+    }
+
+    @Benchmark
+    public long copyFile() throws IOException {
+        Files.copy(source.toPath(), historical.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(source.toPath(), current.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return current.length();
+    }
+
+    @Benchmark
+    public long documentPlacer() throws IOException {
+        placer.place(source, targets);
+        return current.length();
+    }
+}
@@ -0,0 +1,182 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
+
+/**
+ * Builds a historical, current and new document set for load tests. The
+ * directories form a tree of the given depth and fan-out, every directory
+ * holds the same number of drawings, and a share of the new drawings have a
+ * match in the historical set while the rest are new sheets.
+ *
+ * The drawings are one page PDFs padded to the requested size, so both the
+ * Bluebeam and the PDFBox engine can work on them. All drawings of a set are
+ * copies of one template, which keeps generating 100k files quick.
+ *
+ * @author jdegiova
+ */
+public class DrawingSetGenerator {
+
+    private int depth = 2;
+    private int fanOut = 10;
+    private int files = 1000;
+    private int fileSize = 16 * 1024;
+    private double matchRatio = 0.5;
+    private long seed = 42;
+
+    /**
+     * @param depth levels of subdirectories below the root, 0 for a flat set
+     */
+    public DrawingSetGenerator setDepth(int depth) {
+        this.depth = Math.max(0, depth);
+        return this;
+    }
+
+    /**
+     * @param fanOut subdirectories per directory
+     */
+    public DrawingSetGenerator setFanOut(int fanOut) {
+        this.fanOut = Math.max(1, fanOut);
+        return this;
+    }
+
+    /**
+     * @param files the number of drawings in the new document set, spread
+     * evenly over the directories
+     */
+    public DrawingSetGenerator setFiles(int files) {
+        this.files = Math.max(1, files);
+        return this;
+    }
+
+    /**
+     * @param fileSize the approximate size of every drawing in bytes
+     */
+    public DrawingSetGenerator setFileSize(int fileSize) {
+        this.fileSize = Math.max(0, fileSize);
+        return this;
+    }
+
+    /**
+     * @param matchRatio the share of new drawings, 0 to 1, that supersede a
+     * historical drawing
+     */
+    public DrawingSetGenerator setMatchRatio(double matchRatio) {
+        this.matchRatio = Math.min(1, Math.max(0, matchRatio));
+        return this;
+    }
+
+    public DrawingSetGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Creates the historical, current and new sets below the root, plus a
+     * stamp PDF.
+     *
+     * @return the number of new drawings that match a historical one
+     */
+    public int generate(File historical, File current, File newSet, File stamp) throws IOException {
+        byte[] oldDrawing = template("Rev 0", fileSize);
+        byte[] newDrawing = template("Rev 1", fileSize);
+        Files.write(stamp.toPath(), template("SUPERSEDED", 0));
+
+        List<String> directories = new ArrayList<>();
+        collect("", 0, directories);
+        int perDirectory = (files + directories.size() - 1) / directories.size();
+        Random random = new Random(seed);
+        int matched = 0;
+        int sheet = 0;
+        for (String dir : directories) {
+            File h = mkdirs(new File(historical, dir));
+            File c = mkdirs(new File(current, dir));
+            File n = mkdirs(new File(newSet, dir));
+            for (int i = 0; i < perDirectory && sheet < files; i++, sheet++) {
+                String name = String.format("S-%06d.pdf", sheet);
+                if (random.nextDouble() < matchRatio) {
+                    Files.write(new File(h, name).toPath(), oldDrawing);
+                    Files.write(new File(c, name).toPath(), oldDrawing);
+                    matched++;
+                }
+                Files.write(new File(n, name).toPath(), newDrawing);
+            }
+        }
+        return matched;
+    }
+
+    private void collect(String dir, int level, List<String> directories) {
+        directories.add(dir);
+        if (level == depth) return;
+        for (int i = 0; i < fanOut; i++) {
+            collect(dir + (dir.isEmpty() ? "" : "/") + "Area " + level + "-" + i, level + 1, directories);
+        }
+    }
+
+    private static File mkdirs(File dir) throws IOException {
+        if (!dir.mkdirs() && !dir.isDirectory()) throw new IOException("unable to create " + dir);
+        return dir;
+    }
+
+    /**
+     * @return a one page PDF showing the text, padded with an uncompressed
+     * stream to about the given size
+     */
+    static byte[] template(String text, int size) throws IOException {
+        try (PDDocument doc = new PDDocument()) {
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            try (PDPageContentStream cs = new PDPageContentStream(doc, page)) {
+                cs.beginText();
+                cs.setFont(new PDType1Font(Standard14Fonts.FontName.HELVETICA), 24);
+                cs.newLineAtOffset(72, 700);
+                cs.showText(text);
+                cs.endText();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            doc.save(out);
+            int padding = size - out.size();
+            if (padding <= 0) return out.toByteArray();
+            // an unreferenced stream of noise, like the raster data of a scanned sheet
+            byte[] noise = new byte[padding];
+            new Random(size).nextBytes(noise);
+            PDStream stream = new PDStream(doc);
+            try (OutputStream os = stream.createOutputStream()) {
+                os.write(noise);
+            }
+            page.getCOSObject().setItem(COSName.getPDFName("SlipsheetPadding"), stream.getCOSObject());
+            out.reset();
+            doc.save(out);
+            return out.toByteArray();
+        }
+    }
+}
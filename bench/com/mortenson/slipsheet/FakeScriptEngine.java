@@ -0,0 +1,267 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageTree;
+
+/**
+ * Stand-in for the Bluebeam Revu ScriptEngine, so runs can be tested without
+ * Revu. It is started the same way, {@code FakeScriptEngine Script("x.bci")},
+ * and carries out the script commands against local files with PDFBox.
+ *
+ * Open, PageExtract, InsertPages, ReplacePages, DeletePages, DeleteFile,
+ * Save and Close work on the pages of the documents. Page arguments are
+ * ranges like "1-3,5", and a page outside the document is an error, as it is
+ * in Revu. Stamp only checks its pages; Unflatten and Flatten do nothing.
+ *
+ * The behaviour is tuned with system properties:
+ * <ul>
+ * <li>{@code fake.startupMillis}: time to start up, once per launch</li>
+ * <li>{@code fake.documentMillis}: time to slipsheet one document, spent on
+ * Save</li>
+ * <li>{@code fake.failureRate}: fraction of documents that are not saved and
+ * reported on standard error instead</li>
+ * <li>{@code fake.hangMillis}: time to hang after startup before running the
+ * script, like a ScriptEngine stuck on a dialog; longer than the engine
+ * timeout to test that the launch is killed</li>
+ * <li>{@code fake.stderrLines}: lines of noise written to standard error
+ * before the script runs, to test that a flood can't block the engine</li>
+ * <li>{@code fake.exitCode}: exit code when every document was saved, non-zero
+ * to test a launch that fails after doing its work</li>
+ * </ul>
+ *
+ * @author jdegiova
+ */
+public class FakeScriptEngine {
+
+    private static final Pattern COMMAND = Pattern.compile("\\s*(\\w+)\\s*\\((.*)\\)\\s*");
+    private static final Pattern ARGUMENT = Pattern.compile("\"([^\"]*)\"");
+    private static final Pattern SCRIPT = Pattern.compile("Script\\(\"(.*)\"\\)");
+
+    private final long documentMillis = Long.getLong("fake.documentMillis", 0);
+    private final double failureRate = Double.parseDouble(System.getProperty("fake.failureRate", "0"));
+    private final Random random = new Random();
+    private File open;
+    private PDDocument document;
+    // documents whose pages were inserted stay open until the document is saved
+    private final List<PDDocument> sources = new ArrayList<>();
+    private int errors;
+
+    public static void main(String[] args) throws IOException {
+        Matcher m = args.length == 1 ? SCRIPT.matcher(args[0]) : null;
+        if (m == null || !m.matches()) {
+            System.err.println("usage: FakeScriptEngine Script(\"script.bci\")");
+            System.exit(2);
+        }
+        sleep(Long.getLong("fake.startupMillis", 0));
+        sleep(Long.getLong("fake.hangMillis", 0));
+        int stderrLines = Integer.getInteger("fake.stderrLines", 0);
+        for (int i = 0; i < stderrLines; i++) {
+            System.err.println("noise " + i + " from the fake ScriptEngine, nothing went wrong");
+        }
+        FakeScriptEngine engine = new FakeScriptEngine();
+        for (String line : Files.readAllLines(new File(m.group(1)).toPath(), StandardCharsets.UTF_8)) {
+            engine.execute(line);
+        }
+        engine.close();
+        System.exit(engine.errors == 0 ? Integer.getInteger("fake.exitCode", 0) : 1);
+    }
+
+    /**
+     * Writes a script that starts the fake engine on the classpath of this
+     * JVM, for {@link BluebeamSlipsheetEngine}.
+     *
+     * @param dir where to write the script
+     * @param properties the fake.* properties, without the prefix
+     * @return the executable script
+     */
+    public static File writeLauncher(File dir, Map<String, ?> properties) throws IOException {
+        File launcher = new File(dir, "fake-scriptengine.sh");
+        StringBuilder options = new StringBuilder();
+        for (Map.Entry<String, ?> property : properties.entrySet()) {
+            options.append(" -Dfake.").append(property.getKey()).append('=').append(property.getValue());
+        }
+        try (PrintWriter out = new PrintWriter(launcher, "UTF-8")) {
+            out.println("#!/bin/sh");
+            out.println("exec \"" + System.getProperty("java.home") + "/bin/java\" -XX:TieredStopAtLevel=1" + options
+                    + " -cp \"" + System.getProperty("java.class.path") + "\" "
+                    + FakeScriptEngine.class.getName() + " \"$@\"");
+        }
+        if (!launcher.setExecutable(true)) throw new IOException("unable to make " + launcher + " executable");
+        return launcher;
+    }
+
+    private void execute(String line) {
+        Matcher m = COMMAND.matcher(line);
+        if (!m.matches()) return;
+        List<String> args = new ArrayList<>();
+        Matcher a = ARGUMENT.matcher(m.group(2));
+        while (a.find()) {
+            args.add(a.group(1));
+        }
+        String command = m.group(1);
+        if (!"Open".equals(command) && open == null) return; // skipping a document that failed
+        try {
+            switch (command) {
+                case "Open":
+                    close();
+                    open = new File(args.get(0));
+                    // read into memory, so the file can be saved over
+                    document = load(open);
+                    break;
+                case "PageExtract":
+                    try (PDDocument extract = new PDDocument()) {
+                        for (int page : pages(args.get(0), document.getNumberOfPages())) {
+                            extract.importPage(document.getPage(page - 1));
+                        }
+                        extract.save(new File(args.get(1)));
+                    }
+                    break;
+                case "InsertPages":
+                    insertPages(Integer.parseInt(args.get(0)), load(new File(args.get(1))));
+                    break;
+                case "ReplacePages":
+                    replacePages(load(new File(args.get(0))), args.get(1), args.get(2));
+                    break;
+                case "DeletePages":
+                    List<Integer> deleted = pages(args.get(0), document.getNumberOfPages());
+                    if (deleted.size() >= document.getNumberOfPages()) throw new IOException("can't delete every page");
+                    Collections.sort(deleted, Collections.reverseOrder());
+                    for (int page : deleted) {
+                        document.removePage(page - 1);
+                    }
+                    break;
+                case "Stamp":
+                    pages(args.get(8), document.getNumberOfPages());
+                    break;
+                case "DeleteFile":
+                    Files.deleteIfExists(new File(args.get(0)).toPath());
+                    break;
+                case "Save":
+                    sleep(documentMillis);
+                    if (random.nextDouble() < failureRate) throw new IOException("simulated failure");
+                    document.save(open);
+                    break;
+                case "Close":
+                    close();
+                    break;
+                default:
+                    // Unflatten, Flatten: nothing to do
+            }
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("error in " + command + " for " + open + ": " + ex);
+            errors++;
+            close();
+        }
+    }
+
+    private PDDocument load(File file) throws IOException {
+        PDDocument doc = Loader.loadPDF(Files.readAllBytes(file.toPath()));
+        sources.add(doc);
+        return doc;
+    }
+
+    /**
+     * Inserts all pages of the source after the given page, 0 for in front.
+     */
+    private void insertPages(int after, PDDocument source) throws IOException {
+        PDPageTree pages = document.getPages();
+        if (after < 0 || after > pages.getCount()) throw new IOException("no page " + after);
+        PDPage next = after < pages.getCount() ? pages.get(after) : null;
+        for (PDPage page : source.getPages()) {
+            PDPage imported = document.importPage(page);
+            if (next != null) {
+                pages.remove(imported);
+                pages.insertBefore(imported, next);
+            }
+        }
+    }
+
+    private void replacePages(PDDocument source, String replaced, String replacements) throws IOException {
+        List<Integer> targets = pages(replaced, document.getNumberOfPages());
+        List<Integer> from = pages(replacements, source.getNumberOfPages());
+        if (targets.size() != from.size()) throw new IOException("replacing " + targets.size() + " pages with " + from.size());
+        PDPageTree pages = document.getPages();
+        for (int i = 0; i < targets.size(); i++) {
+            PDPage old = pages.get(targets.get(i) - 1);
+            PDPage imported = document.importPage(source.getPage(from.get(i) - 1));
+            pages.remove(imported);
+            pages.insertBefore(imported, old);
+            pages.remove(old);
+        }
+    }
+
+    /**
+     * @return the pages of a range list like "1-3,5", numbered from 1
+     */
+    static List<Integer> pages(String ranges, int pageCount) throws IOException {
+        List<Integer> pages = new ArrayList<>();
+        for (String range : ranges.split(",")) {
+            String[] bounds = range.trim().split("-", 2);
+            try {
+                int first = Integer.parseInt(bounds[0].trim());
+                int last = bounds.length == 2 ? Integer.parseInt(bounds[1].trim()) : first;
+                if (first < 1 || last > pageCount || first > last) {
+                    throw new IOException("pages " + range + " outside the " + pageCount + " page document");
+                }
+                for (int page = first; page <= last; page++) {
+                    pages.add(page);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IOException("invalid page range " + ranges);
+            }
+        }
+        return pages;
+    }
+
+    private void close() {
+        for (PDDocument doc : sources) {
+            try {
+                doc.close();
+            } catch (IOException ex) {
+                // only read from memory
+            }
+        }
+        sources.clear();
+        document = null;
+        open = null;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * End-to-end load test: generates a drawing set with
+ * {@link DrawingSetGenerator}, runs {@link Slipsheeter#start()} on it with
+ * {@link FakeScriptEngine} (or the PDFBox engine) and reports throughput and
+ * latency percentiles. Runs anywhere Java runs, no Bluebeam needed.
+ *
+ * <pre>
+ * java -cp build/bench/classes:build/classes:lib/* com.mortenson.slipsheet.LoadTest \
+ *     --files 100000 --depth 2 --fan-out 10 --size 16384 --match-ratio 0.5 \
+ *     --engine fake --parallelism 8 --batch-size 50 --document-ms 20
+ * </pre>
+ *
+ * @author jdegiova
+ */
+public class LoadTest {
+
+    private File dir;
+    private boolean keep;
+    private String engine = "fake";
+    private int parallelism = 4;
+    private int batchSize = 50;
+    private long startupMillis = 500;
+    private long documentMillis = 20;
+    private double failureRate;
+    private long hangMillis;
+    private int stderrLines;
+    private int exitCode;
+    private long timeoutMillis = BluebeamSlipsheetEngine.DEFAULT_TIMEOUT_MILLIS;
+    private long launchTimeoutMillis = BluebeamSlipsheetEngine.DEFAULT_LAUNCH_TIMEOUT_MILLIS;
+    private final DrawingSetGenerator generator = new DrawingSetGenerator();
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        try {
+            test.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.err.println("options: --dir --keep --files --depth --fan-out --size --match-ratio --engine fake|PDFBox"
+                    + " --parallelism --batch-size --startup-ms --document-ms --failure-rate"
+                    + " --hang-ms --stderr-lines --exit-code --timeout-ms --launch-timeout-ms");
+            System.exit(2);
+        }
+        test.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--keep".equals(arg)) {
+                keep = true;
+                continue;
+            }
+            if (i + 1 >= args.length) throw new IllegalArgumentException(arg + " needs a value");
+            String value = args[++i];
+            try {
+                switch (arg) {
+                    case "--dir": dir = new File(value); break;
+                    case "--files": generator.setFiles(Integer.parseInt(value)); break;
+                    case "--depth": generator.setDepth(Integer.parseInt(value)); break;
+                    case "--fan-out": generator.setFanOut(Integer.parseInt(value)); break;
+                    case "--size": generator.setFileSize(Integer.parseInt(value)); break;
+                    case "--match-ratio": generator.setMatchRatio(Double.parseDouble(value)); break;
+                    case "--engine": engine = value; break;
+                    case "--parallelism": parallelism = Integer.parseInt(value); break;
+                    case "--batch-size": batchSize = Integer.parseInt(value); break;
+                    case "--startup-ms": startupMillis = Long.parseLong(value); break;
+                    case "--document-ms": documentMillis = Long.parseLong(value); break;
+                    case "--failure-rate": failureRate = Double.parseDouble(value); break;
+                    case "--hang-ms": hangMillis = Long.parseLong(value); break;
+                    case "--stderr-lines": stderrLines = Integer.parseInt(value); break;
+                    case "--exit-code": exitCode = Integer.parseInt(value); break;
+                    case "--timeout-ms": timeoutMillis = Long.parseLong(value); break;
+                    case "--launch-timeout-ms": launchTimeoutMillis = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("unknown option " + arg);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(arg + " needs a number");
+            }
+        }
+    }
+
+    private void run() throws IOException, InstantiationException {
+        if (dir == null) dir = SyntheticTree.createTempDir("slipsheet-load");
+        File historical = new File(dir, "Historical");
+        File current = new File(dir, "Current");
+        File newSet = new File(dir, "New");
+        File stamp = new File(dir, "Superseded.pdf");
+        try {
+            long begin = System.nanoTime();
+            int matched = generator.generate(historical, current, newSet, stamp);
+            System.out.println("Generated drawing sets with " + matched + " matches in " + millisSince(begin) + " ms under " + dir);
+
+            SlipsheetEngine slipsheetEngine;
+            if ("fake".equalsIgnoreCase(engine)) {
+                BluebeamSlipsheetEngine fake = new BluebeamSlipsheetEngine(writeLauncher());
+                fake.setTimeoutMillis(timeoutMillis);
+                fake.setLaunchTimeoutMillis(launchTimeoutMillis);
+                slipsheetEngine = fake;
+            } else {
+                slipsheetEngine = Slipsheeter.createEngine(engine);
+            }
+            Slipsheeter s = new Slipsheeter(historical, current, newSet, stamp, slipsheetEngine);
+            s.setParallelism(parallelism);
+            s.setScanParallelism(parallelism);
+            s.setBatchSize(batchSize);
+            s.setIncremental(false);
+            s.setStateDirectory(dir);
+
+            begin = System.nanoTime();
+            s.start();
+            long elapsed = millisSince(begin);
+            report(s, elapsed);
+            s.getReport().writeJson(new File(dir, "slipsheet-report.json"));
+        } finally {
+            if (!keep) SyntheticTree.delete(dir);
+        }
+    }
+
+    /**
+     * Writes a script that starts FakeScriptEngine with the configured
+     * latencies and failure modes.
+     */
+    private File writeLauncher() throws IOException {
+        Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put("startupMillis", startupMillis);
+        properties.put("documentMillis", documentMillis);
+        properties.put("failureRate", failureRate);
+        properties.put("hangMillis", hangMillis);
+        properties.put("stderrLines", stderrLines);
+        properties.put("exitCode", exitCode);
+        return FakeScriptEngine.writeLauncher(dir, properties);
+    }
+
+    private void report(Slipsheeter s, long elapsedMillis) {
+        RunReport report = s.getReport();
+        List<Long> slipsheets = new ArrayList<>();
+        List<Long> copies = new ArrayList<>();
+        for (RunReport.DocumentResult r : report.getResults()) {
+            if (r.getOutcome() == DocumentOutcome.SLIPSHEETED) slipsheets.add(r.getMillis());
+            if (r.getOutcome() == DocumentOutcome.COPIED) copies.add(r.getMillis());
+        }
+        int documents = report.getResults().size();
+        System.out.println(String.format(Locale.ROOT, "%d documents in %d ms: %.1f documents/s (%d slipsheeted, %d copied, %d failed)",
+                documents, elapsedMillis, documents * 1000.0 / Math.max(1, elapsedMillis),
+                report.getCount(DocumentOutcome.SLIPSHEETED), report.getCount(DocumentOutcome.COPIED),
+                report.getCount(DocumentOutcome.FAILED)));
+        System.out.println("latency per document (ms)   p50     p90     p99     max");
+        System.out.println(percentiles("slipsheet", slipsheets));
+        System.out.println(percentiles("copy", copies));
+        System.out.println("stage                  count   mean ms    p50 ms    p95 ms    p99 ms");
+        for (SlipsheetMetrics.StageStats stage : s.getMetrics().getStages()) {
+            System.out.println(String.format(Locale.ROOT, "%-18s %9d %9.2f %9.2f %9.2f %9.2f", stage.getStage(), stage.getCount(),
+                    stage.getMeanMillis(), stage.getPercentileMillis(50), stage.getPercentileMillis(95), stage.getPercentileMillis(99)));
+        }
+    }
+
+    private static String percentiles(String name, List<Long> millis) {
+        if (millis.isEmpty()) return String.format(Locale.ROOT, "%-24s %7s", name, "-");
+        Collections.sort(millis);
+        return String.format(Locale.ROOT, "%-24s %7d %7d %7d %7d", name,
+                percentile(millis, 50), percentile(millis, 90), percentile(millis, 99), millis.get(millis.size() - 1));
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        int rank = (int) Math.ceil(sorted.size() * percentile / 100);
+        return sorted.get(Math.max(0, rank - 1));
+    }
+
+    private static long millisSince(long beginNanos) {
+        return (System.nanoTime() - beginNanos) / 1000000;
+    }
+}
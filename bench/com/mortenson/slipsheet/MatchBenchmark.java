@@ -0,0 +1,116 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looking up a new document in a historical directory of 1k to 100k
+ * documents: the linear {@code containsFileName} scan over the directory
+ * listing that the slipsheeter used to do for every new document, against
+ * {@link HistoricalIndex} and a plain hash set of the names. Half of the
+ * lookups are hits.
+ *
+ * @author jdegiova
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MatchBenchmark {
+
+    private static final int LOOKUPS = 1024;
+
+    @Param({"1000", "10000", "100000"})
+    public int entries;
+
+    private File root;
+    private File[] listing;
+    private Set<String> names;
+    private HistoricalIndex index;
+    private File[] lookups;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createDirectory() throws IOException {
+        root = SyntheticTree.createTempDir("match-bench");
+        SyntheticTree.create(root, 1, entries);
+        File dir = new File(root, "Sheets 0");
+        listing = dir.listFiles(new PDFFileFilter());
+        names = new HashSet<>();
+        for (File file : listing) {
+            names.add(file.getName());
+        }
+        index = HistoricalIndex.load(new File(root, HistoricalIndex.DEFAULT_FILE_NAME), root);
+        lookups = new File[LOOKUPS];
+        Random random = new Random(42);
+        for (int i = 0; i < LOOKUPS; i++) {
+            lookups[i] = new File(SyntheticTree.sheetName(random.nextInt(entries * 2)));
+        }
+        // the first lookup lists the directory; the benchmark measures the ones after it
+        index.contains("Sheets 0", lookups[0].getName());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDirectory() throws IOException {
+        SyntheticTree.delete(root);
+    }
+
+    private File nextLookup() {
+        next = (next + 1) & (LOOKUPS - 1);
+        return lookups[next];
+    }
+
+    @Benchmark
+    public boolean containsFileName() {
+        File file = nextLookup();
+        for (File f : listing) {
+            if (f.getName().equals(file.getName())) return true;
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean historicalIndex() {
+        return index.contains("Sheets 0", nextLookup().getName());
+    }
+
+    @Benchmark
+    public boolean hashSet() {
+        return names.contains(nextLookup().getName());
+    }
+}
@@ -0,0 +1,238 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Runs several {@link SlipsheetCLI} workers, each in its own JVM, on one
+ * {@link WorkQueue} with {@link FakeScriptEngine}, optionally killing one of
+ * them part way so its unit has to be taken over. Afterwards it checks that
+ * every historical document with a new revision was slipsheeted exactly once,
+ * so it has two pages, that every new document reached the current set and that the
+ * completion logs list every document. Exits non-zero if a check fails.
+ *
+ * <pre>
+ * java -cp build/bench/classes:build/classes:lib/* com.mortenson.slipsheet.QueueCheck \
+ *     --workers 4 --files 400 --unit-size 20 --kill-after-ms 3000
+ * </pre>
+ *
+ * @author jdegiova
+ */
+public class QueueCheck {
+
+    private File dir;
+    private boolean keep;
+    private int workers = 3;
+    private int unitSize = 20;
+    private long documentMillis = 20;
+    private long killAfterMillis = -1;
+    private int leaseExpirySeconds = 5;
+    private long timeoutMillis = 10 * 60 * 1000;
+    private final DrawingSetGenerator generator = new DrawingSetGenerator().setDepth(1).setFanOut(4).setFiles(200).setFileSize(0);
+    private final List<String> problems = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        QueueCheck check = new QueueCheck();
+        try {
+            check.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.err.println("options: --dir --keep --workers --files --unit-size --document-ms --kill-after-ms"
+                    + " --lease-expiry --timeout-ms");
+            System.exit(2);
+        }
+        System.exit(check.run() ? 0 : 1);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--keep".equals(arg)) {
+                keep = true;
+                continue;
+            }
+            if (i + 1 >= args.length) throw new IllegalArgumentException(arg + " needs a value");
+            String value = args[++i];
+            try {
+                switch (arg) {
+                    case "--dir": dir = new File(value); break;
+                    case "--workers": workers = Math.max(1, Integer.parseInt(value)); break;
+                    case "--files": generator.setFiles(Integer.parseInt(value)); break;
+                    case "--unit-size": unitSize = Math.max(1, Integer.parseInt(value)); break;
+                    case "--document-ms": documentMillis = Long.parseLong(value); break;
+                    case "--kill-after-ms": killAfterMillis = Long.parseLong(value); break;
+                    case "--lease-expiry": leaseExpirySeconds = Math.max(1, Integer.parseInt(value)); break;
+                    case "--timeout-ms": timeoutMillis = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("unknown option " + arg);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(arg + " needs a number");
+            }
+        }
+    }
+
+    private boolean run() throws IOException, InterruptedException {
+        if (dir == null) dir = SyntheticTree.createTempDir("slipsheet-queue");
+        File historical = new File(dir, "Historical");
+        File current = new File(dir, "Current");
+        File newSet = new File(dir, "New");
+        File stamp = new File(dir, "Superseded.pdf");
+        File queue = new File(dir, "queue");
+        try {
+            int matched = generator.generate(historical, current, newSet, stamp);
+            // new sheets are placed in the historical set as well, so remember which had a match
+            List<String> superseded = new ArrayList<>();
+            collectPdfs(historical, "", superseded);
+            Map<String, Object> properties = new LinkedHashMap<>();
+            properties.put("startupMillis", 0);
+            properties.put("documentMillis", documentMillis);
+            File launcher = FakeScriptEngine.writeLauncher(dir, properties);
+
+            long begin = System.nanoTime();
+            List<Process> processes = new ArrayList<>();
+            for (int w = 0; w < workers; w++) {
+                processes.add(startWorker(w, historical, current, newSet, stamp, queue, launcher));
+            }
+            if (killAfterMillis >= 0) {
+                Thread.sleep(killAfterMillis);
+                // the first worker dies without a chance to release its lease
+                processes.get(0).destroyForcibly();
+                System.out.println("killed worker 0 after " + killAfterMillis + " ms");
+            }
+            for (int w = 0; w < processes.size(); w++) {
+                Process process = processes.get(w);
+                long left = timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+                if (!process.waitFor(Math.max(0, left), TimeUnit.MILLISECONDS)) {
+                    process.destroyForcibly();
+                    expect(false, "worker " + w + " did not finish within " + timeoutMillis + " ms");
+                } else if (w != 0 || killAfterMillis < 0) {
+                    expect(process.exitValue() == 0, "worker " + w + " exited with " + process.exitValue());
+                }
+            }
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+            verify(historical, current, newSet, queue, superseded);
+            System.out.println(workers + " workers, " + matched + " of " + countPdfs(newSet) + " documents slipsheeted in "
+                    + elapsed + " ms");
+        } finally {
+            if (!keep) SyntheticTree.delete(dir);
+        }
+        for (String problem : problems) {
+            System.out.println("FAILED: " + problem);
+        }
+        return problems.isEmpty();
+    }
+
+    private Process startWorker(int w, File historical, File current, File newSet, File stamp, File queue, File launcher)
+            throws IOException {
+        File workDir = new File(dir, "worker-" + w);
+        if (!workDir.mkdirs() && !workDir.isDirectory()) throw new IOException("unable to create " + workDir);
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + "/bin/java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(SlipsheetCLI.class.getName());
+        for (String arg : new String[]{"--historical", historical.getAbsolutePath(), "--current", current.getAbsolutePath(),
+                "--new", newSet.getAbsolutePath(), "--stamp", stamp.getAbsolutePath(),
+                "--engine", Slipsheeter.ENGINE_BLUEBEAM, "--script-engine", launcher.getAbsolutePath(),
+                "--queue", queue.getAbsolutePath(), "--enqueue", "--unit-size", String.valueOf(unitSize),
+                "--lease-expiry", String.valueOf(leaseExpirySeconds)}) {
+            command.add(arg);
+        }
+        // every worker enqueues the same set; the units are named after their content
+        return new ProcessBuilder(command).directory(workDir)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(workDir, "output.log"))
+                .start();
+    }
+
+    private void verify(File historical, File current, File newSet, File queue, List<String> superseded) throws IOException {
+        Map<String, Integer> logged = readCompletionLogs(new File(queue, "done"));
+        List<String> latest = new ArrayList<>();
+        collectPdfs(newSet, "", latest);
+        for (String path : superseded) {
+            int pages = pageCount(new File(historical, path));
+            expect(pages == 2, path + " has " + pages + " pages, so it was slipsheeted " + (pages - 1) + " times");
+        }
+        for (String path : latest) {
+            expect(new File(current, path).exists(), path + " is not in the current set");
+            expect(logged.containsKey(path), path + " is in no completion log");
+        }
+        int repeated = 0;
+        for (int count : logged.values()) {
+            if (count > 1) repeated++;
+        }
+        // a unit taken over from a killed worker may repeat its last document
+        System.out.println(logged.size() + " documents logged, " + repeated + " of them more than once");
+    }
+
+    private static Map<String, Integer> readCompletionLogs(File done) throws IOException {
+        Map<String, Integer> logged = new HashMap<>();
+        File[] logs = done.listFiles();
+        if (logs == null) return logged;
+        for (File log : logs) {
+            if (!log.getName().endsWith(".log")) continue;
+            for (String line : Files.readAllLines(log.toPath(), StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) continue;
+                String path = fields[3].replace('\\', '/');
+                Integer count = logged.get(path);
+                logged.put(path, count == null ? 1 : count + 1);
+            }
+        }
+        return logged;
+    }
+
+    private static void collectPdfs(File dir, String prefix, List<String> paths) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectPdfs(file, prefix + file.getName() + "/", paths);
+            } else if (file.getName().endsWith(".pdf")) {
+                paths.add(prefix + file.getName());
+            }
+        }
+    }
+
+    private static int countPdfs(File dir) {
+        List<String> paths = new ArrayList<>();
+        collectPdfs(dir, "", paths);
+        return paths.size();
+    }
+
+    private static int pageCount(File pdf) throws IOException {
+        try (PDDocument doc = Loader.loadPDF(pdf)) {
+            return doc.getNumberOfPages();
+        }
+    }
+
+    private void expect(boolean condition, String problem) {
+        if (!condition) problems.add(problem);
+    }
+}
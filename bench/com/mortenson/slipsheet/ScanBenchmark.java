@@ -0,0 +1,92 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Counting the PDFs of a new document set: the recursive
+ * {@code listFiles} walk with {@link PDFFileFilter} and
+ * {@link DirectoryFileFilter} against {@link TreeScanner}, sequential and
+ * parallel.
+ *
+ * @author jdegiova
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+    @Param({"1000", "10000"})
+    public int files;
+
+    private File root;
+    private final PDFFileFilter pff = new PDFFileFilter();
+    private final DirectoryFileFilter dff = new DirectoryFileFilter();
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        root = SyntheticTree.createTempDir("scan-bench");
+        SyntheticTree.create(root, files / 100, 100);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        SyntheticTree.delete(root);
+    }
+
+    @Benchmark
+    public int listFilesWithFilters() {
+        return count(root);
+    }
+
+    private int count(File dir) {
+        int count = dir.listFiles(pff).length;
+        for (File sub : dir.listFiles(dff)) {
+            count += count(sub);
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int treeScanner() {
+        return new TreeScanner(1).scan(root).getPdfCount();
+    }
+
+    @Benchmark
+    public int treeScannerParallel() {
+        return new TreeScanner(4).scan(root).getPdfCount();
+    }
+}
@@ -0,0 +1,82 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing the {@code .bci} script for a batch of documents.
+ *
+ * @author jdegiova
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScriptBenchmark {
+
+    @Param({"1", "50", "500"})
+    public int jobs;
+
+    private File root;
+    private File script;
+    private BluebeamSlipsheetEngine engine;
+    private final List<SlipsheetJob> batch = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void createJobs() throws IOException {
+        root = SyntheticTree.createTempDir("script-bench");
+        script = new File(root, "bench.bci");
+        engine = new BluebeamSlipsheetEngine(new File(root, "ScriptEngine.exe"));
+        File stamp = new File(root, "Superseded.pdf");
+        for (int i = 0; i < jobs; i++) {
+            String name = SyntheticTree.sheetName(i);
+            batch.add(new SlipsheetJob(new File(root, "New/" + name), new File(root, "Historical/" + name),
+                    new File(root, "Current/" + name), stamp));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteScript() throws IOException {
+        SyntheticTree.delete(root);
+    }
+
+    @Benchmark
+    public long writeScript() throws IOException {
+        engine.writeScript(script, batch);
+        return script.length();
+    }
+}
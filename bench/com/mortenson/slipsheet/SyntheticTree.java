@@ -0,0 +1,97 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * Builds synthetic document sets under a temp directory for the benchmarks:
+ * a tree of project folders holding empty or filled "PDFs" and a few other
+ * files that the filters have to skip.
+ *
+ * @author jdegiova
+ */
+final class SyntheticTree {
+
+    private SyntheticTree() {
+        // nothing
+    }
+
+    static File createTempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    /**
+     * Creates {@code directories} folders of {@code filesPerDirectory} empty
+     * PDFs each, plus one non-PDF file per folder.
+     */
+    static void create(File root, int directories, int filesPerDirectory) throws IOException {
+        for (int d = 0; d < directories; d++) {
+            File dir = new File(root, "Sheets " + d);
+            if (!dir.mkdirs() && !dir.isDirectory()) throw new IOException("unable to create " + dir);
+            for (int f = 0; f < filesPerDirectory; f++) {
+                new File(dir, sheetName(d * filesPerDirectory + f)).createNewFile();
+            }
+            new File(dir, "Thumbs.db").createNewFile();
+        }
+    }
+
+    static String sheetName(int i) {
+        return String.format("A-%06d.pdf", i);
+    }
+
+    /**
+     * Writes a file of the given size with random content.
+     */
+    static File createFile(File file, long size) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        new Random(size).nextBytes(buffer);
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += buffer.length) {
+                out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    static void delete(File root) throws IOException {
+        if (root == null || !root.exists()) return;
+        Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,6 @@
+#!/bin/sh
+# Starts FakeScriptEngine the way Bluebeam's ScriptEngine.exe is started, e.g.
+#   SlipsheetCLI --engine Bluebeam --script-engine bench/fake-scriptengine.sh ...
+# SLIPSHEET_CLASSPATH needs the compiled benchmarks and the slipsheet classes,
+# FAKE_SCRIPTENGINE_OPTS takes the fake.* system properties.
+exec java $FAKE_SCRIPTENGINE_OPTS -cp "$SLIPSHEET_CLASSPATH" com.mortenson.slipsheet.FakeScriptEngine "$@"
@@ -0,0 +1,310 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Slipsheets documents by writing a Bluebeam script and handing it to the
+ * Bluebeam Revu ScriptEngine.
+ *
+ * @author jdegiova
+ */
+public class BluebeamSlipsheetEngine implements SlipsheetEngine {
+
+    private static final String[] DEFAULT_LOCATIONS = {
+        "C:\\Program Files\\Bluebeam Software\\Bluebeam Revu\\Script\\ScriptEngine.exe",
+        "C:\\Program Files (x86)\\Bluebeam Software\\Bluebeam Revu\\Script\\ScriptEngine.exe"
+    };
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    /** time every launch gets to start ScriptEngine, on top of the per-document allowance */
+    public static final long DEFAULT_LAUNCH_TIMEOUT_MILLIS = 2 * 60 * 1000;
+    /** no launch may run longer than this, however many documents its batch holds */
+    public static final long MAX_BATCH_TIMEOUT_MILLIS = 60 * 60 * 1000;
+    /** system property naming the ScriptEngine executable */
+    public static final String SCRIPT_ENGINE_PROPERTY = "slipsheet.scriptEngine";
+
+    private final File bbScriptEngine;
+    private final AtomicInteger launchCount = new AtomicInteger();
+    private final AtomicLong engineNanos = new AtomicLong();
+    private final Logger logger = Logger.getRootLogger();
+    private final ProcessSupervisor supervisor = new ProcessSupervisor();
+    private SlipsheetMetrics metrics = new SlipsheetMetrics();
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private long launchTimeoutMillis = DEFAULT_LAUNCH_TIMEOUT_MILLIS;
+
+    public BluebeamSlipsheetEngine(File bbScriptEngine) {
+        this.bbScriptEngine = bbScriptEngine;
+    }
+
+    /**
+     * @param timeoutMillis how long ScriptEngine may take per document; a
+     * batch gets the launch allowance plus this much time for each of its
+     * documents, but never more than {@link #MAX_BATCH_TIMEOUT_MILLIS},
+     * before it is killed
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param launchTimeoutMillis how long ScriptEngine may take to start,
+     * once per batch
+     */
+    public void setLaunchTimeoutMillis(long launchTimeoutMillis) {
+        this.launchTimeoutMillis = launchTimeoutMillis;
+    }
+
+    @Override
+    public void setMetrics(SlipsheetMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the supervisor running ScriptEngine, for its retry settings
+     */
+    public ProcessSupervisor getSupervisor() {
+        return supervisor;
+    }
+
+    /**
+     * @return an engine using the ScriptEngine named by the
+     * {@value #SCRIPT_ENGINE_PROPERTY} system property, or else the one of the
+     * local Bluebeam Revu installation
+     * @throws InstantiationException if Bluebeam Revu is not installed in one
+     * of the default locations
+     */
+    public static BluebeamSlipsheetEngine createDefault() throws InstantiationException {
+        return create(System.getProperty(SCRIPT_ENGINE_PROPERTY));
+    }
+
+    /**
+     * @param scriptEnginePath the ScriptEngine executable, or null or empty to
+     * look for the local Bluebeam Revu installation
+     * @throws InstantiationException if the executable does not exist
+     */
+    public static BluebeamSlipsheetEngine create(String scriptEnginePath) throws InstantiationException {
+        if (scriptEnginePath != null && !scriptEnginePath.trim().isEmpty()) {
+            File scriptEngine = new File(scriptEnginePath.trim());
+            if (!scriptEngine.isFile()) throw new InstantiationException("unable to find ScriptEngine " + scriptEngine);
+            return new BluebeamSlipsheetEngine(scriptEngine);
+        }
+        File scriptEngine = locateBlueBeamScriptEngine();
+        if (scriptEngine == null) throw new InstantiationException("unable to find Bluebeam Revu installation");
+        return new BluebeamSlipsheetEngine(scriptEngine);
+    }
+
+    private static File locateBlueBeamScriptEngine() {
+        for (String path : DEFAULT_LOCATIONS) {
+            File file = new File(path);
+            if (file.exists()) return file;
+        }
+        return null;
+    }
+
+    @Override
+    public String getName() {
+        return "Bluebeam";
+    }
+
+    @Override
+    public void slipsheet(SlipsheetJob job) throws IOException {
+        slipsheet(Collections.singletonList(job));
+        if (job.isFailed()) throw new IOException(job.getFailure());
+    }
+
+    /**
+     * Writes one script for all jobs and runs it with a single ScriptEngine
+     * launch. Afterwards each historical file is checked to see whether it was
+     * saved, so a failure can be attributed to the document that caused it.
+     *
+     * If ScriptEngine timed out, crashed or could not be started, the jobs it
+     * did not save are run again with a new script, after a backoff. Jobs that
+     * were saved are never run twice.
+     */
+    @Override
+    public void slipsheet(List<SlipsheetJob> jobs) {
+        if (jobs.isEmpty()) return;
+        List<SlipsheetJob> pending = new ArrayList<>(jobs);
+        for (int attempt = 1; ; attempt++) {
+            Map<SlipsheetJob, Long> lastModified = new HashMap<>();
+            Map<SlipsheetJob, Long> length = new HashMap<>();
+            for (SlipsheetJob job : pending) {
+                lastModified.put(job, job.getHistorical().lastModified());
+                length.put(job, job.getHistorical().length());
+            }
+            ProcessSupervisor.Result result;
+            try {
+                result = runScript(pending);
+            } catch (IOException ex) {
+                for (SlipsheetJob job : pending) {
+                    job.setFailure("unable to write script: " + ex);
+                }
+                return;
+            }
+
+            List<SlipsheetJob> unsaved = new ArrayList<>();
+            for (SlipsheetJob job : pending) {
+                File historical = job.getHistorical();
+                if (historical.lastModified() == lastModified.get(job) || !job.getCurrent().exists()) {
+                    unsaved.add(job);
+                } else {
+                    job.setHistoricalSize(length.get(job), historical.length());
+                }
+            }
+            if (unsaved.isEmpty()) return;
+
+            // a clean exit that skipped a document won't do better next time
+            boolean transientFailure = !result.isSuccess();
+            if (!transientFailure || attempt >= supervisor.getMaxAttempts() || !supervisor.backoff(attempt)) {
+                for (SlipsheetJob job : unsaved) {
+                    job.setFailure(describeFailure(job, result));
+                }
+                return;
+            }
+            logger.warn("ScriptEngine " + result + ", " + unsaved.size() + " of " + pending.size()
+                    + " documents not saved (attempt " + attempt + " of " + supervisor.getMaxAttempts() + ")");
+            pending = unsaved;
+        }
+    }
+
+    private ProcessSupervisor.Result runScript(List<SlipsheetJob> jobs) throws IOException {
+        // every batch gets its own script so batches can run concurrently
+        File script = File.createTempFile("slipsheeter3000script", ".bci", new File("."));
+        try {
+            long begin = System.nanoTime();
+            writeScript(script, jobs);
+            metrics.recordSince(SlipsheetMetrics.Stage.SCRIPT_WRITE, begin);
+            if (logger.isDebugEnabled()) {
+                // the documents themselves are in the run journal, no need to read the script back
+                logger.debug("Wrote " + script.getName() + " for " + jobs.size() + " documents");
+            }
+            return executeBlueBeamScript(script.getName(), batchTimeout(jobs.size()));
+        } finally {
+            if (!script.delete()) {
+                script.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * @return the wall-clock limit for one launch processing the given number
+     * of documents
+     */
+    long batchTimeout(int documents) {
+        long perDocument = (MAX_BATCH_TIMEOUT_MILLIS - launchTimeoutMillis) / Math.max(1, documents);
+        if (launchTimeoutMillis >= MAX_BATCH_TIMEOUT_MILLIS || timeoutMillis >= perDocument) {
+            return MAX_BATCH_TIMEOUT_MILLIS;
+        }
+        return launchTimeoutMillis + timeoutMillis * documents;
+    }
+
+    private static String describeFailure(SlipsheetJob job, ProcessSupervisor.Result result) {
+        StringBuilder failure = new StringBuilder("not saved by ScriptEngine");
+        if (!result.isSuccess()) {
+            failure.append(" (").append(result).append(")");
+        }
+        for (String error : result.getErrors()) {
+            if (error.contains(job.getHistorical().getAbsolutePath()) || error.contains(job.getLatest().getAbsolutePath())
+                    || !result.wasStarted()) {
+                failure.append(": ").append(error);
+            }
+        }
+        return failure.toString();
+    }
+
+    /**
+     * Writes the commands for each job. The latest pages are inserted in front
+     * of the current ones, which are then deleted; the superseded ones go back
+     * in right after the latest pages and are stamped there.
+     */
+    void writeScript(File script, List<SlipsheetJob> jobs) throws IOException {
+        try (PrintWriter writer = new PrintWriter(script, "UTF-8")) {
+            for (SlipsheetJob job : jobs) {
+                File historical = job.getHistorical();
+                File current = job.getCurrent();
+                PageAlignment alignment = job.getAlignment();
+                int latestPages = alignment.getLatestPages();
+                int supersededPages = alignment.getSuperseded().size();
+                // unique per job, so jobs in the same directory don't share temp pages
+                File temp = new File(historical.getAbsoluteFile().getParentFile(), "slipsheet-" + UUID.randomUUID() + ".pdf");
+                writer.println("Open(\""+historical.getAbsolutePath()+"\")");
+                writer.println("Unflatten()");
+                if (supersededPages > 0) {
+                    writer.println("PageExtract(\""+PageAlignment.ranges(alignment.getSuperseded())+"\",\""+temp.getAbsolutePath()+"\")");
+                }
+                writer.println("InsertPages(\"0\",\""+job.getLatest().getAbsolutePath()+"\")");
+                writer.println("DeletePages(\""+PageAlignment.range(latestPages + 1, latestPages + alignment.getCurrentPages())+"\")");
+                if (supersededPages > 0) {
+                    writer.println("InsertPages(\""+latestPages+"\",\""+temp.getAbsolutePath()+"\")");
+                    writer.println("Stamp (\""+job.getStampPDF().getAbsolutePath()+"\",\"upperleft\",\"1\",\"1\",\"0\",\"1\",\"1\",\"normal\",\""
+                            +PageAlignment.range(latestPages + 1, latestPages + supersededPages)+"\",\"true\")");
+                    writer.println("DeleteFile(\""+temp.getAbsolutePath()+"\")");
+                }
+                writer.println("Flatten()");
+                writer.println("DeleteFile(\""+current.getAbsolutePath()+"\")");
+                writer.println("PageExtract(\""+PageAlignment.range(1, latestPages)+"\",\""+current.getAbsolutePath()+"\") ");
+                writer.println("Save()");
+                writer.println("Close()");
+            }
+            if (writer.checkError()) throw new IOException("error writing " + script.getAbsolutePath());
+        }
+    }
+
+    private ProcessSupervisor.Result executeBlueBeamScript(String scriptName, long timeout) {
+        // the script is passed by its name in the working directory, which
+        // has no spaces for Windows to quote
+        List<String> command = new ArrayList<>();
+        command.add(bbScriptEngine.getAbsolutePath());
+        command.add("Script(\"" + scriptName + "\")");
+        launchCount.incrementAndGet();
+        metrics.increment(SlipsheetMetrics.Counter.ENGINE_LAUNCHES);
+        ProcessSupervisor.Result result = supervisor.run(command, null, timeout);
+        metrics.record(SlipsheetMetrics.Stage.ENGINE_LAUNCH, result.getMillis() * 1000000);
+        engineNanos.addAndGet(result.getMillis() * 1000000);
+        if (!result.isSuccess()) {
+            logger.error("ScriptEngine " + result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of times the ScriptEngine has been started
+     */
+    public int getLaunchCount() {
+        return launchCount.get();
+    }
+
+    /**
+     * @return the total time spent waiting on the ScriptEngine in milliseconds
+     */
+    public long getEngineMillis() {
+        return engineNanos.get() / 1000000;
+    }
+}
@@ -0,0 +1,262 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+
+/**
+ * Tells whether a new document is the same as the current set document it
+ * would supersede, so reissued sheets that did not change are not
+ * slipsheeted. The checks go from cheap to expensive: the sizes, a hash of
+ * the bytes and, if enabled, a hash of what the pages draw. The files are
+ * read with plain streams rather than mapped, so no mapping outlives the
+ * comparison and keeps Windows from replacing or deleting them.
+ *
+ * The content hash covers the page count, page boxes and rotation, the
+ * decoded content streams and the streams of the images and forms they use.
+ * Metadata, document IDs, timestamps and the file layout are left out, so a
+ * sheet that was only re-saved or extracted into the current set still
+ * matches.
+ *
+ * @author jdegiova
+ */
+public class DocumentComparator {
+
+    public enum Mode {
+        /** never skip a document */
+        OFF,
+        /** skip byte-for-byte identical documents */
+        BYTES,
+        /** also skip documents whose pages draw the same content */
+        CONTENT
+    }
+
+    public enum Comparison {
+        DIFFERENT,
+        IDENTICAL_BYTES,
+        IDENTICAL_CONTENT;
+
+        public boolean isIdentical() {
+            return this != DIFFERENT;
+        }
+    }
+
+    private final Logger logger = Logger.getRootLogger();
+    private final Mode mode;
+
+    public DocumentComparator(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Compares a new document with the current set document. Documents that
+     * can't be read are reported as different.
+     */
+    public Comparison compare(File newDocument, File currentDocument) {
+        return compare(newDocument, currentDocument, null);
+    }
+
+    /**
+     * Compares a new document with the current set document, handing over
+     * the hash of the new document so it need not be read again.
+     *
+     * @param newHashes receives the SHA-256 of the new document, which is
+     * then read even if the sizes differ; null to read it only when needed
+     */
+    public Comparison compare(File newDocument, File currentDocument, Map<File, String> newHashes) {
+        if (mode == Mode.OFF || !currentDocument.isFile()) return Comparison.DIFFERENT;
+        try {
+            boolean sameSize = newDocument.length() == currentDocument.length();
+            String newHash = null;
+            if (sameSize || newHashes != null) {
+                newHash = FileHelper.sha256(newDocument);
+                if (newHashes != null) newHashes.put(newDocument, newHash);
+            }
+            if (sameSize && newHash.equals(FileHelper.sha256(currentDocument))) {
+                return Comparison.IDENTICAL_BYTES;
+            }
+            if (mode == Mode.CONTENT && Arrays.equals(contentHash(newDocument), contentHash(currentDocument))) {
+                return Comparison.IDENTICAL_CONTENT;
+            }
+        } catch (IOException | RuntimeException ex) {
+            logger.debug("unable to compare " + newDocument + " with " + currentDocument + ": " + ex);
+        }
+        return Comparison.DIFFERENT;
+    }
+
+    /**
+     * Compares pairs of documents in parallel.
+     *
+     * @return the comparison of every pair, in the order given
+     */
+    public List<Comparison> compareAll(List<File> newDocuments, List<File> currentDocuments, int parallelism) {
+        return compareAll(newDocuments, currentDocuments, parallelism, null);
+    }
+
+    /**
+     * Compares pairs of documents in parallel.
+     *
+     * @param newHashes receives the SHA-256 of every new document compared,
+     * must be safe for concurrent use; may be null
+     * @return the comparison of every pair, in the order given
+     */
+    public List<Comparison> compareAll(List<File> newDocuments, final List<File> currentDocuments, int parallelism,
+            final Map<File, String> newHashes) {
+        List<Comparison> comparisons = new ArrayList<>(newDocuments.size());
+        if (mode == Mode.OFF || parallelism <= 1 || newDocuments.size() <= 1) {
+            for (int i = 0; i < newDocuments.size(); i++) {
+                comparisons.add(compare(newDocuments.get(i), currentDocuments.get(i), newHashes));
+            }
+            return comparisons;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, newDocuments.size()));
+        try {
+            List<Future<Comparison>> futures = new ArrayList<>(newDocuments.size());
+            for (int i = 0; i < newDocuments.size(); i++) {
+                final File newDocument = newDocuments.get(i);
+                final File currentDocument = currentDocuments.get(i);
+                futures.add(pool.submit(new Callable<Comparison>() {
+
+                    @Override
+                    public Comparison call() {
+                        return compare(newDocument, currentDocument, newHashes);
+                    }
+                }));
+            }
+            for (Future<Comparison> future : futures) {
+                try {
+                    comparisons.add(future.get());
+                } catch (ExecutionException ex) {
+                    comparisons.add(Comparison.DIFFERENT);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    comparisons.add(Comparison.DIFFERENT);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return comparisons;
+    }
+
+    private static byte[] contentHash(File file) throws IOException {
+        MessageDigest digest = sha256();
+        try (PDDocument doc = Loader.loadPDF(file)) {
+            digest.update(ByteBuffer.allocate(4).putInt(doc.getNumberOfPages()).array());
+            for (PDPage page : doc.getPages()) {
+                updatePage(digest, page);
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Hashes what a page draws: its boxes and rotation, its content and the
+     * images and forms it uses.
+     */
+    static void updatePage(MessageDigest digest, PDPage page) throws IOException {
+        update(digest, page.getMediaBox());
+        update(digest, page.getCropBox());
+        digest.update(ByteBuffer.allocate(4).putInt(page.getRotation()).array());
+        try (InputStream in = page.getContents()) {
+            update(digest, in);
+        }
+        updateResources(digest, page.getResources(), new HashSet<COSDictionary>());
+    }
+
+    /**
+     * Hashes the images and forms of the resources by name, in name order.
+     */
+    private static void updateResources(MessageDigest digest, PDResources resources, Set<COSDictionary> seen) throws IOException {
+        // forms can share or even contain their own resources
+        if (resources == null || !seen.add(resources.getCOSObject())) return;
+        for (COSName name : new TreeSet<>(toList(resources.getXObjectNames()))) {
+            PDXObject xObject = resources.getXObject(name);
+            if (xObject == null) continue;
+            digest.update(name.getName().getBytes("UTF-8"));
+            PDStream stream = xObject.getStream();
+            try (InputStream in = stream.createInputStream()) {
+                update(digest, in);
+            }
+            if (xObject instanceof PDFormXObject) {
+                updateResources(digest, ((PDFormXObject) xObject).getResources(), seen);
+            }
+        }
+    }
+
+    private static List<COSName> toList(Iterable<COSName> names) {
+        List<COSName> list = new ArrayList<>();
+        for (COSName name : names) {
+            list.add(name);
+        }
+        return list;
+    }
+
+    private static void update(MessageDigest digest, PDRectangle box) {
+        if (box == null) return;
+        digest.update(ByteBuffer.allocate(16).putFloat(box.getLowerLeftX()).putFloat(box.getLowerLeftY())
+                .putFloat(box.getUpperRightX()).putFloat(box.getUpperRightY()).array());
+    }
+
+    private static void update(MessageDigest digest, InputStream in) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+/**
+ * What happened to a document of the new document set during a run.
+ *
+ * @author jdegiova
+ */
+public enum DocumentOutcome {
+
+    /** no match in the historical set, copied into the historical and current set */
+    COPIED,
+    /** matched a historical document and slipsheeted */
+    SLIPSHEETED,
+    /** unchanged since it was processed by an earlier run */
+    SKIPPED_UNCHANGED,
+    /** matched a historical document but is identical to the current set document */
+    SKIPPED_IDENTICAL,
+    FAILED,
+    /** its historical or current set file stayed open elsewhere until the run gave up */
+    LOCKED;
+
+    /**
+     * @return true if the document does not need to be processed again
+     */
+    public boolean isDone() {
+        return this != FAILED && this != LOCKED;
+    }
+}
@@ -0,0 +1,298 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Places a new document into the historical and current set with as little
+ * I/O as the destination volumes allow. For every destination the cheapest
+ * available strategy is picked:
+ * <ol>
+ * <li>{@link Strategy#REFLINK}: a copy-on-write clone of the source, when the
+ * destination is on the same volume and the file system supports it; all
+ * destinations on that volume are cloned by one run of the copy command</li>
+ * <li>{@link Strategy#HARD_LINK}: a link to another destination on the same
+ * volume, if hard links are allowed</li>
+ * <li>{@link Strategy#FAN_OUT}: the source is read once and written to all
+ * remaining destinations</li>
+ * <li>{@link Strategy#COPY}: a plain copy, when everything else failed</li>
+ * </ol>
+ *
+ * @author jdegiova
+ */
+public class DocumentPlacer {
+
+    public enum Strategy {
+        REFLINK, HARD_LINK, FAN_OUT, COPY
+    }
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final String OS = System.getProperty("os.name").toLowerCase();
+    private static final long REFLINK_TIMEOUT_MILLIS = 60000;
+    private static final int COMMAND_NOT_FOUND = 127;
+    // what cp prints when the file system or cp itself can't clone
+    private static final String[] CLONE_UNSUPPORTED = {
+        "not supported", "cross-device", "inappropriate ioctl", "unrecognized option", "invalid option", "illegal option"
+    };
+
+    private final Map<Path, FileStore> fileStores = new ConcurrentHashMap<>();
+    // whether cloning works on a volume, learned from the first attempt
+    private final Map<FileStore, Boolean> reflinkSupport = new ConcurrentHashMap<>();
+    private final Logger logger = Logger.getRootLogger();
+    private boolean allowHardLinks;
+    private boolean allowReflinks = !OS.startsWith("windows");
+
+    /**
+     * Hard links are off by default: the historical and current copy then
+     * share their contents, so a program that edits one of them in place
+     * changes both. The slipsheet engines replace files rather than editing
+     * them, so they break the link.
+     */
+    public void setAllowHardLinks(boolean allowHardLinks) {
+        this.allowHardLinks = allowHardLinks;
+    }
+
+    public void setAllowReflinks(boolean allowReflinks) {
+        this.allowReflinks = allowReflinks;
+    }
+
+    /**
+     * Places the source at every target, replacing existing files.
+     *
+     * @return the strategy used for each target
+     * @throws IOException if a target could not be written at all
+     */
+    public Map<File, Strategy> place(File source, List<File> targets) throws IOException {
+        Map<File, Strategy> used = new LinkedHashMap<>();
+        FileStore sourceStore = fileStore(source);
+
+        List<File> remaining = new ArrayList<>();
+        List<File> clones = new ArrayList<>();
+        for (File target : targets) {
+            if (allowReflinks && sourceStore != null && sourceStore.equals(fileStore(target))) {
+                clones.add(target);
+            } else {
+                remaining.add(target);
+            }
+        }
+        if (!clones.isEmpty() && reflink(source, clones, sourceStore)) {
+            for (File target : clones) {
+                used.put(target, Strategy.REFLINK);
+            }
+        } else {
+            remaining.addAll(clones);
+        }
+
+        // one target per volume has to be written, the others can link to it
+        Map<File, File> links = new LinkedHashMap<>();
+        List<File> written = new ArrayList<>();
+        for (File target : remaining) {
+            File primary = null;
+            if (allowHardLinks) {
+                FileStore store = fileStore(target);
+                for (File w : written) {
+                    if (store != null && store.equals(fileStore(w))) {
+                        primary = w;
+                        break;
+                    }
+                }
+            }
+            if (primary == null) {
+                written.add(target);
+            } else {
+                links.put(target, primary);
+            }
+        }
+
+        if (!written.isEmpty()) {
+            try {
+                fanOut(source, written);
+                for (File target : written) {
+                    used.put(target, Strategy.FAN_OUT);
+                }
+            } catch (IOException ex) {
+                logger.debug("Single-read copy of " + source + " failed, copying each target: " + ex);
+                for (File target : written) {
+                    Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    used.put(target, Strategy.COPY);
+                }
+            }
+        }
+
+        for (Map.Entry<File, File> link : links.entrySet()) {
+            File target = link.getKey();
+            try {
+                Files.deleteIfExists(target.toPath());
+                Files.createLink(target.toPath(), link.getValue().toPath());
+                used.put(target, Strategy.HARD_LINK);
+            } catch (IOException | UnsupportedOperationException ex) {
+                logger.debug("Unable to link " + target + ", copying instead: " + ex);
+                Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                used.put(target, Strategy.COPY);
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Reads the source once and writes every buffer to all targets. A single
+     * target is copied with {@link FileChannel#transferTo}.
+     */
+    private void fanOut(File source, List<File> targets) throws IOException {
+        List<FileChannel> outs = new ArrayList<>(targets.size());
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            for (File target : targets) {
+                // a fresh file, so an existing hard link is never written through
+                Files.deleteIfExists(target.toPath());
+                outs.add(FileChannel.open(target.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+            }
+            if (outs.size() == 1) {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    position += in.transferTo(position, size - position, outs.get(0));
+                }
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                while (in.read(buffer) != -1) {
+                    buffer.flip();
+                    for (FileChannel out : outs) {
+                        ByteBuffer view = buffer.duplicate();
+                        while (view.hasRemaining()) {
+                            out.write(view);
+                        }
+                    }
+                    buffer.clear();
+                }
+            }
+        } finally {
+            for (FileChannel out : outs) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Clones the source to the targets with the operating system's copy
+     * command, run once for all of them from a shell. Only tried again on a
+     * volume where it has worked before or was never tried. A failure says
+     * the volume can't clone only if cp says so; any other failure, a full
+     * disk or a timeout, falls back to a copy for these targets.
+     */
+    private boolean reflink(File source, List<File> targets, FileStore store) {
+        Boolean supported = reflinkSupport.get(store);
+        if (supported != null && !supported) return false;
+        List<String> cmd = new ArrayList<>();
+        cmd.add("sh");
+        cmd.add("-c");
+        // the source is $0 and the targets are the arguments
+        cmd.add("for t do cp " + (OS.contains("mac") ? "-c" : "--reflink=always") + " \"$0\" \"$t\" || exit; done");
+        cmd.add(source.getAbsolutePath());
+        for (File target : targets) {
+            cmd.add(target.getAbsolutePath());
+        }
+        String message;
+        try {
+            Process process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+            process.getOutputStream().close();
+            // cp writes a line at most, which can't fill the pipe while we wait
+            if (!process.waitFor(REFLINK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                process.destroyForcibly();
+                logger.debug("Cloning " + source + " took longer than " + REFLINK_TIMEOUT_MILLIS + " ms, copying it instead");
+                return false;
+            }
+            message = new String(readAll(process.getInputStream()), Charset.defaultCharset()).trim();
+            if (process.exitValue() == 0) {
+                if (supported == null) {
+                    reflinkSupport.put(store, true);
+                    logger.info("Copy-on-write clones are supported on " + store);
+                }
+                return true;
+            }
+            // the shell found no cp to run
+            if (process.exitValue() == COMMAND_NOT_FOUND) message = "not supported: " + message;
+        } catch (IOException ex) {
+            // no shell to run
+            message = "not supported: " + ex.getMessage();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (isUnsupported(message)) {
+            reflinkSupport.put(store, false);
+            logger.info("Copy-on-write clones are not supported on " + store);
+        } else {
+            logger.debug("Unable to clone " + source + ", copying it instead: " + message);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if cp failed because the volume or cp itself can't clone
+     */
+    private static boolean isUnsupported(String message) {
+        String lower = message.toLowerCase(Locale.ROOT);
+        for (String unsupported : CLONE_UNSUPPORTED) {
+            if (lower.contains(unsupported)) return true;
+        }
+        return false;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private FileStore fileStore(File file) {
+        Path dir = file.getAbsoluteFile().getParentFile().toPath();
+        FileStore store = fileStores.get(dir);
+        if (store == null) {
+            try {
+                store = Files.getFileStore(dir);
+                fileStores.put(dir, store);
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+        return store;
+    }
+}
@@ -0,0 +1,163 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * A fixed pool of engine workers shared by several projects. Every project
+ * has its own queue and the workers take turns between the projects with
+ * queued work, so a project with thousands of documents can't starve one
+ * with a handful: with n projects waiting, each gets every nth free worker.
+ *
+ * @author jdegiova
+ */
+public class FairShareExecutor {
+
+    private final Logger logger = Logger.getRootLogger();
+    private final Object lock = new Object();
+    private final Map<String, ArrayDeque<Runnable>> queues = new HashMap<>();
+    /** projects with queued work, in the order they get their next turn */
+    private final ArrayDeque<String> turns = new ArrayDeque<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private boolean shutdown;
+
+    /**
+     * @param threads the number of engine workers shared by all projects
+     */
+    public FairShareExecutor(int threads) {
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            Thread worker = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "engine worker " + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * @return an executor that queues tasks as the given project
+     */
+    public Executor forProject(final String project) {
+        return new Executor() {
+
+            @Override
+            public void execute(Runnable task) {
+                submit(project, task);
+            }
+        };
+    }
+
+    /**
+     * @throws RejectedExecutionException after {@link #shutdown()}
+     */
+    public void submit(String project, Runnable task) {
+        synchronized (lock) {
+            if (shutdown) throw new RejectedExecutionException("engine workers are shut down");
+            ArrayDeque<Runnable> queue = queues.get(project);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(project, queue);
+            }
+            if (queue.isEmpty()) {
+                turns.add(project);
+            }
+            queue.add(task);
+            lock.notify();
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting for a worker
+     */
+    public int getQueuedCount() {
+        synchronized (lock) {
+            int count = 0;
+            for (ArrayDeque<Runnable> queue : queues.values()) {
+                count += queue.size();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Lets the workers finish the queued tasks and stop.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            lock.notifyAll();
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread worker : workers) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) return false;
+            worker.join(left);
+            if (worker.isAlive()) return false;
+        }
+        return true;
+    }
+
+    private Runnable next() throws InterruptedException {
+        synchronized (lock) {
+            while (turns.isEmpty()) {
+                if (shutdown) return null;
+                lock.wait();
+            }
+            String project = turns.poll();
+            ArrayDeque<Runnable> queue = queues.get(project);
+            Runnable task = queue.poll();
+            if (queue.isEmpty()) {
+                queues.remove(project);
+            } else {
+                turns.add(project);
+            }
+            return task;
+        }
+    }
+
+    private void work() {
+        try {
+            Runnable task;
+            while ((task = next()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    logger.error("Engine worker task failed", ex);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -17,9 +17,23 @@
 package com.mortenson.slipsheet;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -33,21 +47,119 @@ public class FileHelper {
         // nothing
     }
     
+    /**
+     * Whether a file can be written to right now.
+     */
+    public enum LockState {
+        FREE,
+        /** open elsewhere; may become free later */
+        LOCKED,
+        /** missing or read-only; won't change by waiting */
+        NOT_WRITABLE
+    }
+    
     public static boolean isFileWritable(File file) {
-        if (file.canWrite()) {
-            // file.canWrite does not reliably indicate if the file can be written
-            // to on a Windows machine, so further checking needs to be done.
-            try (FileOutputStream fos = new FileOutputStream(file, true)) {
-                logger.info("file " + file.getName() + " is writable");
-                return true;
-            } catch (IOException e) {
-                logger.error("Unable to write to file. Check to make sure it is not open elsewhere: " + e);
-                return false;
+        LockState state = probeLock(file);
+        if (state == LockState.LOCKED) {
+            logger.error("Unable to write to file " + file + ". Check to make sure it is not open elsewhere.");
+        } else if (state == LockState.NOT_WRITABLE) {
+            logger.error("Unable to write to file " + file + ". Check to make permissions are correct.");
+        }
+        return state == LockState.FREE;
+    }
+    
+    /**
+     * Opens the file for writing and takes an exclusive lock on it, then
+     * releases it again. Nothing is written.
+     */
+    public static LockState probeLock(File file) {
+        // file.canWrite does not reliably indicate if the file can be written
+        // to on a Windows machine, so the file is opened and locked as well.
+        if (!file.isFile() || !file.canWrite()) return LockState.NOT_WRITABLE;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) return LockState.LOCKED;
+            lock.release();
+            return LockState.FREE;
+        } catch (OverlappingFileLockException ex) {
+            // locked by this process, e.g. a slipsheet still running on it
+            return LockState.LOCKED;
+        } catch (IOException ex) {
+            // Windows refuses to open a file another program has open
+            logger.debug("unable to open " + file + ": " + ex);
+            return LockState.LOCKED;
+        }
+    }
+    
+    /**
+     * Probes files in parallel, which pays off on network shares where every
+     * open is a round trip.
+     * 
+     * @return the state of every file, in the order given
+     */
+    public static Map<File, LockState> probeLocks(Collection<File> files, int parallelism) {
+        Map<File, LockState> states = new LinkedHashMap<>();
+        if (parallelism <= 1 || files.size() <= 1) {
+            for (File file : files) {
+                states.put(file, probeLock(file));
+            }
+            return states;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, files.size()));
+        try {
+            Map<File, Future<LockState>> futures = new LinkedHashMap<>();
+            for (final File file : files) {
+                futures.put(file, pool.submit(new Callable<LockState>() {
+                    
+                    @Override
+                    public LockState call() {
+                        return probeLock(file);
+                    }
+                }));
             }
-        } else{
-            logger.error("Unable to write to file. Check to make permissions are correct.");
-            return false;
+            for (Map.Entry<File, Future<LockState>> entry : futures.entrySet()) {
+                try {
+                    states.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException ex) {
+                    states.put(entry.getKey(), LockState.LOCKED);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    states.put(entry.getKey(), LockState.LOCKED);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return states;
+    }
+    
+    /**
+     * @return the SHA-256 hash of the file contents as a hex string
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+    
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
         }
+        return sb.toString();
     }
     
     public static void main(String[] args){
@@ -0,0 +1,366 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdfwriter.compress.CompressParameters;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+/**
+ * Shrinks historical files by sharing the resources that every revision
+ * brings along again. Every slipsheet adds another copy of the title block
+ * images, the fonts and the stamp; resources with the same content are
+ * found by hashing them and the pages are pointed at one copy. The file is
+ * then saved with object streams and a cross-reference stream. Resources
+ * that lead back to themselves are left as they are.
+ *
+ * Signed and encrypted documents are left alone, since rewriting them would
+ * break the signature or drop the encryption.
+ *
+ * @author jdegiova
+ */
+public class HistoricalCompactor {
+
+    // the resource types pages refer to by name
+    private static final COSName[] RESOURCE_TYPES = {
+        COSName.FONT, COSName.XOBJECT, COSName.EXT_G_STATE, COSName.COLORSPACE,
+        COSName.PATTERN, COSName.SHADING, COSName.PROPERTIES
+    };
+
+    private final Logger logger = Logger.getRootLogger();
+    private final AtomicInteger compactedCount = new AtomicInteger();
+    private final AtomicInteger skippedCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * Points the pages of the document at one copy of each distinct resource.
+     * The copies no longer used are left out when the document is saved in
+     * full.
+     *
+     * @return the number of resource references that now share a copy
+     */
+    public int shareResources(PDDocument doc) throws IOException {
+        Sharing sharing = new Sharing();
+        for (PDPage page : doc.getPages()) {
+            if (page.getResources() != null) {
+                sharing.share(page.getResources().getCOSObject());
+            }
+        }
+        return sharing.shared;
+    }
+
+    /**
+     * Shares the resources of a PDF and saves it compressed, replacing the
+     * file only if it got smaller and is neither open elsewhere nor changed
+     * since it was read. The modification time is kept, so a compacted file
+     * does not look changed.
+     *
+     * @return the number of bytes saved, 0 if the file was left as it was
+     */
+    public long compact(File pdf) throws IOException {
+        long before = pdf.length();
+        long lastModified = pdf.lastModified();
+        File temp = File.createTempFile("slipsheet", ".pdf", pdf.getAbsoluteFile().getParentFile());
+        try {
+            try (PDDocument doc = Loader.loadPDF(pdf)) {
+                if (doc.isEncrypted() || !doc.getSignatureDictionaries().isEmpty()) {
+                    logger.debug("not compacting signed or encrypted " + pdf);
+                    return 0;
+                }
+                int shared = shareResources(doc);
+                // compacted before and nothing new to share
+                if (shared == 0 && doc.getDocument().isXRefStream()) return 0;
+                doc.save(temp, CompressParameters.DEFAULT_COMPRESSION);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("shared " + shared + " resources of " + pdf);
+                }
+            }
+            long after = temp.length();
+            if (after >= before) return 0;
+            // probed again right before the replace: someone may have opened
+            // it since compactAll's probe, and a slipsheet may be saving it
+            if (FileHelper.probeLock(pdf) != FileHelper.LockState.FREE) {
+                logger.debug(pdf + " was opened while it was compacted, leaving it");
+                return 0;
+            }
+            if (pdf.lastModified() != lastModified || pdf.length() != before) {
+                logger.debug(pdf + " changed while it was compacted, leaving it");
+                return 0;
+            }
+            temp.setLastModified(lastModified);
+            Files.move(temp.toPath(), pdf.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return before - after;
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Compacts every PDF of a historical set. Files open elsewhere are
+     * skipped, to be compacted by a later pass.
+     */
+    public void compactAll(File historicalSet, int parallelism) {
+        ScanSnapshot snapshot = new TreeScanner(parallelism).scan(historicalSet);
+        List<File> pdfs = new ArrayList<>(snapshot.getPdfCount());
+        for (ScanSnapshot.Directory dir : snapshot.getDirectories()) {
+            for (ScanSnapshot.ScannedFile pdf : dir.getPdfs()) {
+                pdfs.add(pdf.getFile());
+            }
+        }
+        compactAll(pdfs, parallelism);
+    }
+
+    /**
+     * Compacts the PDFs in parallel. Files open elsewhere are skipped.
+     */
+    public void compactAll(List<File> pdfs, int parallelism) {
+        long begin = System.nanoTime();
+        Map<File, FileHelper.LockState> locks = FileHelper.probeLocks(pdfs, parallelism);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, pdfs.size())));
+        try {
+            List<Future<?>> futures = new ArrayList<>(pdfs.size());
+            for (final File pdf : pdfs) {
+                if (locks.get(pdf) != FileHelper.LockState.FREE) {
+                    logger.info("Skipping " + pdf + ", it is open elsewhere or not writable");
+                    skippedCount.incrementAndGet();
+                    continue;
+                }
+                futures.add(pool.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() {
+                        compactCounted(pdf);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    logger.error("Compaction failed", ex.getCause());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        logger.info("Compacted " + compactedCount + " of " + pdfs.size() + " historical files in "
+                + (System.nanoTime() - begin) / 1000000 + " ms, saving " + bytesSaved.get() / 1024 + " KB ("
+                + skippedCount + " skipped, " + failedCount + " failed)");
+    }
+
+    private void compactCounted(File pdf) {
+        try {
+            long saved = compact(pdf);
+            if (saved > 0) {
+                compactedCount.incrementAndGet();
+                bytesSaved.addAndGet(saved);
+            } else {
+                skippedCount.incrementAndGet();
+            }
+        } catch (IOException | RuntimeException ex) {
+            failedCount.incrementAndGet();
+            logger.warn("Unable to compact " + pdf + ": " + ex);
+        }
+    }
+
+    public int getCompactedCount() {
+        return compactedCount.get();
+    }
+
+    public int getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * The resources of one document by content hash. Hashes are kept per
+     * object, so a resource used by many pages is hashed once.
+     */
+    private static class Sharing {
+
+        private final Map<String, COSBase> canonical = new HashMap<>();
+        private final Map<COSBase, byte[]> hashes = new IdentityHashMap<>();
+        // objects being hashed, by their depth in the traversal
+        private final Map<COSBase, Integer> hashing = new IdentityHashMap<>();
+        private final Set<COSBase> cyclic = Collections.newSetFromMap(new IdentityHashMap<COSBase, Boolean>());
+        // the lowest depth a back-reference in the current traversal led to
+        private int reached = Integer.MAX_VALUE;
+        private final Set<COSDictionary> visited = Collections.newSetFromMap(new IdentityHashMap<COSDictionary, Boolean>());
+        private int shared;
+
+        private void share(COSDictionary resources) throws IOException {
+            if (!visited.add(resources)) return;
+            for (COSName type : RESOURCE_TYPES) {
+                COSDictionary named = resources.getCOSDictionary(type);
+                if (named == null) continue;
+                for (COSName name : new ArrayList<>(named.keySet())) {
+                    COSBase item = named.getItem(name);
+                    // only objects written on their own can be shared
+                    if (!(item instanceof COSObject) && !(item instanceof COSStream)) continue;
+                    COSBase object = dereference(item);
+                    if (object == null) continue;
+                    String hash = FileHelper.toHex(hash(object));
+                    // objects in a cycle are left as they are
+                    if (cyclic.contains(object)) continue;
+                    COSBase first = canonical.get(hash);
+                    if (first == null) {
+                        canonical.put(hash, item);
+                    } else if (dereference(first) != object) {
+                        named.setItem(name, first);
+                        shared++;
+                    }
+                    // forms have resources of their own
+                    COSBase kept = dereference(named.getItem(name));
+                    if (kept instanceof COSStream && COSName.FORM.equals(((COSStream) kept).getCOSName(COSName.SUBTYPE))) {
+                        COSDictionary formResources = ((COSStream) kept).getCOSDictionary(COSName.RESOURCES);
+                        if (formResources != null) share(formResources);
+                    }
+                }
+            }
+        }
+
+        private byte[] hash(COSBase object) throws IOException {
+            byte[] hash = hashes.get(object);
+            if (hash != null) return hash;
+            MessageDigest digest = DocumentComparator.sha256();
+            int depth = hashing.size();
+            Integer open = hashing.get(object);
+            if (open != null) {
+                // a reference back to an object being hashed, by how far up it leads
+                reached = Math.min(reached, open);
+                digest.update((byte) 'R');
+                digest.update(Integer.toString(depth - open).getBytes(StandardCharsets.UTF_8));
+                return digest.digest();
+            }
+            hashing.put(object, depth);
+            int outer = reached;
+            reached = Integer.MAX_VALUE;
+            try {
+                if (object instanceof COSStream) {
+                    digest.update((byte) 'S');
+                    updateDictionary(digest, (COSDictionary) object);
+                    try (InputStream in = ((COSStream) object).createRawInputStream()) {
+                        byte[] buffer = new byte[64 * 1024];
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            digest.update(buffer, 0, read);
+                        }
+                    }
+                } else if (object instanceof COSDictionary) {
+                    digest.update((byte) 'D');
+                    updateDictionary(digest, (COSDictionary) object);
+                } else if (object instanceof COSArray) {
+                    digest.update((byte) 'A');
+                    for (COSBase element : (COSArray) object) {
+                        update(digest, element);
+                    }
+                } else if (object instanceof COSString) {
+                    digest.update((byte) 's');
+                    digest.update(((COSString) object).getBytes());
+                } else if (object instanceof COSName) {
+                    digest.update((byte) 'n');
+                    digest.update(((COSName) object).getName().getBytes(StandardCharsets.UTF_8));
+                } else if (object instanceof COSNumber || object instanceof COSBoolean) {
+                    digest.update((byte) 'v');
+                    digest.update(object.toString().getBytes(StandardCharsets.UTF_8));
+                } else {
+                    digest.update((byte) '0');
+                }
+            } finally {
+                hashing.remove(object);
+            }
+            hash = digest.digest();
+            if (reached <= depth) cyclic.add(object);
+            if (reached < depth) {
+                // depends on where the traversal entered the cycle
+                reached = Math.min(outer, reached);
+            } else {
+                reached = outer;
+                hashes.put(object, hash);
+            }
+            return hash;
+        }
+
+        private void updateDictionary(MessageDigest digest, COSDictionary dictionary) throws IOException {
+            List<COSName> keys = new ArrayList<>(dictionary.keySet());
+            Collections.sort(keys);
+            for (COSName key : keys) {
+                // the length follows from the data, and parents lead out of the resource
+                if (COSName.LENGTH.equals(key) || COSName.PARENT.equals(key)) continue;
+                digest.update(key.getName().getBytes(StandardCharsets.UTF_8));
+                update(digest, dictionary.getItem(key));
+            }
+        }
+
+        private void update(MessageDigest digest, COSBase item) throws IOException {
+            COSBase object = dereference(item);
+            if (object == null) {
+                digest.update((byte) '0');
+            } else {
+                digest.update(hash(object));
+            }
+        }
+
+        private static COSBase dereference(COSBase item) {
+            return item instanceof COSObject ? ((COSObject) item).getObject() : item;
+        }
+    }
+}
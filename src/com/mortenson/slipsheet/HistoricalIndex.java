@@ -0,0 +1,268 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * Index of the PDF file names in the historical set, keyed by the directory
+ * path relative to the historical set. A directory is only listed again when
+ * its modification time has changed since it was indexed, so lookups against
+ * a large historical set on a network share don't re-list every folder.
+ *
+ * The index is stored in a compact gzipped binary file next to slipsheet.cfg
+ * and updated as the run adds files to the historical set.
+ *
+ * @author jdegiova
+ */
+public class HistoricalIndex {
+
+    public static final String DEFAULT_FILE_NAME = "slipsheet-historical.idx";
+    private static final int MAGIC = 0x534c4958; // "SLIX"
+    private static final int VERSION = 1;
+
+    private final File historicalSet;
+    private final File indexFile;
+    private final Map<String, DirectoryEntry> directories = new HashMap<>();
+    // directories whose mtime has been checked during this run
+    private final Set<String> validated = new HashSet<>();
+    private final Set<String> modified = new HashSet<>();
+    // directories this run added files to, so their listing is out of date
+    private final Set<String> written = new HashSet<>();
+    private final PDFFileFilter pff = new PDFFileFilter();
+    private final Logger logger = Logger.getRootLogger();
+    private int listings;
+
+    private static class DirectoryEntry {
+
+        private long lastModified;
+        private final Set<String> names;
+        /** names by sheet key, built on the first normalized lookup */
+        private Map<String, List<String>> keys;
+        private SheetMatcher keyedBy;
+
+        private DirectoryEntry(long lastModified, Set<String> names) {
+            this.lastModified = lastModified;
+            this.names = names;
+        }
+    }
+
+    private HistoricalIndex(File historicalSet, File indexFile) {
+        this.historicalSet = historicalSet.getAbsoluteFile();
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Loads the index for the given historical set. If the index file is
+     * missing, unreadable or belongs to another historical set an empty index
+     * is returned, which is filled in as directories are looked up.
+     */
+    public static HistoricalIndex load(File indexFile, File historicalSet) {
+        HistoricalIndex index = new HistoricalIndex(historicalSet, indexFile);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(indexFile))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                index.logger.info("Ignoring historical index " + indexFile + " with unknown format");
+                return index;
+            }
+            if (!in.readUTF().equals(index.historicalSet.getPath())) {
+                index.logger.info("Historical index " + indexFile + " belongs to another historical set. Rebuilding...");
+                return index;
+            }
+            int directoryCount = in.readInt();
+            for (int i = 0; i < directoryCount; i++) {
+                String relativeDir = in.readUTF();
+                long lastModified = in.readLong();
+                int nameCount = in.readInt();
+                Set<String> names = new HashSet<>(nameCount * 2);
+                for (int j = 0; j < nameCount; j++) {
+                    names.add(in.readUTF());
+                }
+                index.directories.put(relativeDir, new DirectoryEntry(lastModified, names));
+            }
+            index.logger.info("Loaded historical index with " + directoryCount + " directories");
+        } catch (FileNotFoundException ex) {
+            index.logger.info("No historical index found. Building one...");
+        } catch (IOException ex) {
+            index.logger.error("Unable to read historical index " + indexFile + ". Rebuilding... " + ex);
+            index.directories.clear();
+        }
+        return index;
+    }
+
+    /**
+     * @param relativeDir the directory relative to the historical set, using
+     * '/' as separator and "" for the historical set itself
+     * @return true if the directory contains a PDF with the given name
+     */
+    public synchronized boolean contains(String relativeDir, String name) {
+        return getEntry(relativeDir).names.contains(name);
+    }
+
+    /**
+     * Finds the historical documents a new document supersedes. A document
+     * with the same name always wins; otherwise the documents with the same
+     * sheet key are returned, found through a per-directory hash of the keys.
+     *
+     * @return the names of the matching historical documents, more than one
+     * if the match is ambiguous
+     */
+    public synchronized List<String> find(String relativeDir, String name, SheetMatcher matcher) {
+        DirectoryEntry entry = getEntry(relativeDir);
+        if (entry.names.contains(name)) return Collections.singletonList(name);
+        if (matcher.isExact()) return Collections.emptyList();
+        if (entry.keys == null || entry.keyedBy != matcher) {
+            entry.keys = new HashMap<>(entry.names.size() * 2);
+            entry.keyedBy = matcher;
+            for (String historicalName : entry.names) {
+                addKey(entry, historicalName);
+            }
+        }
+        List<String> matches = entry.keys.get(matcher.key(name));
+        return matches == null ? Collections.<String>emptyList() : new ArrayList<>(matches);
+    }
+
+    private static void addKey(DirectoryEntry entry, String name) {
+        String key = entry.keyedBy.key(name);
+        List<String> names = entry.keys.get(key);
+        if (names == null) {
+            names = new ArrayList<>(1);
+            entry.keys.put(key, names);
+        }
+        names.add(name);
+    }
+
+    /**
+     * Records that a PDF was added to a directory of the historical set during
+     * this run.
+     */
+    public synchronized void add(String relativeDir, String name) {
+        DirectoryEntry entry = getEntry(relativeDir);
+        if (entry.names.add(name) && entry.keys != null) {
+            addKey(entry, name);
+        }
+        modified.add(relativeDir);
+        written.add(relativeDir);
+    }
+
+    /**
+     * Makes the next lookup in every directory check its modification time
+     * again. Used by long-running processes to notice outside changes.
+     */
+    public synchronized void revalidate() {
+        validated.clear();
+    }
+
+    /**
+     * @return the number of directories listed from disk during this run
+     */
+    public synchronized int getListingCount() {
+        return listings;
+    }
+
+    private DirectoryEntry getEntry(String relativeDir) {
+        DirectoryEntry entry = directories.get(relativeDir);
+        if (validated.add(relativeDir)) {
+            File dir = resolve(relativeDir);
+            long lastModified = dir.lastModified();
+            if (entry == null || entry.lastModified != lastModified) {
+                entry = new DirectoryEntry(lastModified, list(dir));
+                directories.put(relativeDir, entry);
+                modified.add(relativeDir);
+            }
+        }
+        return entry;
+    }
+
+    private Set<String> list(File dir) {
+        listings++;
+        Set<String> names = new HashSet<>();
+        File[] files = dir.listFiles(pff);
+        if (files != null) {
+            for (File f : files) {
+                names.add(f.getName());
+            }
+        }
+        return names;
+    }
+
+    private File resolve(String relativeDir) {
+        return relativeDir.isEmpty() ? historicalSet : new File(historicalSet, relativeDir);
+    }
+
+    /**
+     * Writes the index to disk. Directories this run added files to are
+     * listed again first and stamped with the modification time taken before
+     * that listing, so files others added or removed in the meantime are not
+     * hidden behind the new modification time. Every other directory keeps
+     * the time taken when it was listed.
+     */
+    public synchronized void save() {
+        if (modified.isEmpty()) return;
+        for (String relativeDir : written) {
+            if (!directories.containsKey(relativeDir)) continue;
+            File dir = resolve(relativeDir);
+            // taken before listing, so a change during the listing shows next time
+            long lastModified = dir.lastModified();
+            directories.put(relativeDir, new DirectoryEntry(lastModified, list(dir)));
+        }
+        File dir = indexFile.getAbsoluteFile().getParentFile();
+        File temp = null;
+        try {
+            temp = File.createTempFile("slipsheet", ".idx", dir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(historicalSet.getPath());
+                out.writeInt(directories.size());
+                for (Map.Entry<String, DirectoryEntry> e : directories.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue().lastModified);
+                    out.writeInt(e.getValue().names.size());
+                    for (String name : e.getValue().names) {
+                        out.writeUTF(name);
+                    }
+                }
+            }
+            Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            modified.clear();
+            written.clear();
+        } catch (IOException ex) {
+            logger.error("Unable to save historical index " + indexFile + ": " + ex);
+            if (temp != null) temp.delete();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Logger;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdfwriter.compress.CompressParameters;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDPageTree;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationWidget;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceStream;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+import org.apache.pdfbox.util.Matrix;
+
+/**
+ * Slipsheets documents in-process with PDFBox. This performs the same steps
+ * as the Bluebeam script without launching an external process, so it also
+ * runs on machines without a Bluebeam Revu installation.
+ *
+ * @author jdegiova
+ */
+public class PDFBoxSlipsheetEngine implements SlipsheetEngine {
+
+    private final Logger logger = Logger.getRootLogger();
+    private boolean incrementalSave;
+    private StampCache stampCache = new StampCache();
+    private SlipsheetMetrics metrics = new SlipsheetMetrics();
+    private HistoricalCompactor compactor;
+
+    @Override
+    public String getName() {
+        return "PDFBox";
+    }
+
+    /**
+     * With incremental saves the new page and the stamp are appended to the
+     * historical file as a PDF incremental update, instead of rewriting the
+     * whole file. The earlier revisions are left exactly as they are, so they
+     * are not flattened again either. The cost of a slipsheet then depends on
+     * the new page rather than on the size of the historical file.
+     */
+    public void setIncrementalSave(boolean incrementalSave) {
+        this.incrementalSave = incrementalSave;
+    }
+
+    /**
+     * With compaction the pages of a historical file share one copy of the
+     * fonts, images and forms that every revision brings along again. This
+     * applies to full saves; incremental saves leave the earlier revisions as
+     * they are, so those files are compacted by a {@link HistoricalCompactor}
+     * pass instead. Full saves use object streams with or without
+     * compaction.
+     */
+    public void setCompact(boolean compact) {
+        this.compactor = compact ? new HistoricalCompactor() : null;
+    }
+
+    /**
+     * Stamps are parsed once per cache, so an engine kept alive by the
+     * watcher parses each stamp once for its whole lifetime. Engines can
+     * share a cache.
+     */
+    public void setStampCache(StampCache stampCache) {
+        this.stampCache = stampCache;
+    }
+
+    public StampCache getStampCache() {
+        return stampCache;
+    }
+
+    @Override
+    public void setMetrics(SlipsheetMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void slipsheet(SlipsheetJob job) throws IOException {
+        long before = job.getHistorical().length();
+        long begin = System.nanoTime();
+        if (incrementalSave) {
+            slipsheetIncremental(job);
+        } else {
+            slipsheetFull(job);
+        }
+        long after = job.getHistorical().length();
+        job.setHistoricalSize(before, after);
+        if (logger.isDebugEnabled()) {
+            logger.debug("slipsheeted " + job.getHistorical().getAbsolutePath() + ": " + before + " -> " + after
+                    + " bytes in " + (System.nanoTime() - begin) / 1000000 + " ms" + (incrementalSave ? " (incremental)" : ""));
+        }
+    }
+
+    private void slipsheetFull(SlipsheetJob job) throws IOException {
+        File historical = job.getHistorical();
+        File current = job.getCurrent();
+        File histTemp = File.createTempFile("slipsheet", ".pdf", historical.getAbsoluteFile().getParentFile());
+        File currTemp = File.createTempFile("slipsheet", ".pdf", current.getAbsoluteFile().getParentFile());
+        try {
+            long loadBegin = System.nanoTime();
+            try (PDDocument hist = Loader.loadPDF(historical);
+                    PDDocument latest = Loader.loadPDF(job.getLatest())) {
+                metrics.recordSince(SlipsheetMetrics.Stage.PDF_LOAD, loadBegin);
+                // Bluebeam needs to unflatten the markups before editing pages;
+                // PDFBox edits the page tree directly, so there is nothing to undo.
+                supersede(hist, latest, job);
+                flatten(hist);
+                if (compactor != null) {
+                    long compactBegin = System.nanoTime();
+                    compactor.shareResources(hist);
+                    metrics.recordSince(SlipsheetMetrics.Stage.COMPACT, compactBegin);
+                }
+
+                long saveBegin = System.nanoTime();
+                saveCurrent(hist, latest.getNumberOfPages(), currTemp);
+                // always with object streams, the PDFBox default, compacted or not
+                hist.save(histTemp, CompressParameters.DEFAULT_COMPRESSION);
+                metrics.recordSince(SlipsheetMetrics.Stage.PDF_SAVE, saveBegin);
+            }
+            // the source documents must be closed before they can be replaced
+            Files.move(histTemp.toPath(), historical.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(currTemp.toPath(), current.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(histTemp.toPath());
+            Files.deleteIfExists(currTemp.toPath());
+        }
+    }
+
+    private void slipsheetIncremental(SlipsheetJob job) throws IOException {
+        File historical = job.getHistorical();
+        File current = job.getCurrent();
+        File currTemp = File.createTempFile("slipsheet", ".pdf", current.getAbsoluteFile().getParentFile());
+        try {
+            long loadBegin = System.nanoTime();
+            try (PDDocument hist = Loader.loadPDF(historical);
+                    PDDocument latest = Loader.loadPDF(job.getLatest());
+                    FileChannel out = FileChannel.open(historical.toPath(), StandardOpenOption.WRITE)) {
+                metrics.recordSince(SlipsheetMetrics.Stage.PDF_LOAD, loadBegin);
+                supersede(hist, latest, job);
+
+                long saveBegin = System.nanoTime();
+                saveCurrent(hist, latest.getNumberOfPages(), currTemp);
+
+                // PDFBox writes the original bytes followed by the update;
+                // only the update is appended to the file
+                long originalLength = out.size();
+                try {
+                    hist.saveIncremental(new AppendingOutputStream(out, originalLength));
+                    out.force(false);
+                    metrics.recordSince(SlipsheetMetrics.Stage.PDF_SAVE, saveBegin);
+                } catch (IOException | RuntimeException ex) {
+                    out.truncate(originalLength);
+                    throw ex;
+                }
+            }
+            Files.move(currTemp.toPath(), current.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(currTemp.toPath());
+        }
+    }
+
+    /**
+     * Replaces the current pages at the start of the historical document with
+     * the pages of the latest document. The current pages the alignment names
+     * as superseded stay behind them and are stamped; the others are dropped,
+     * since the latest document has a page with the same content.
+     */
+    private void supersede(PDDocument hist, PDDocument latest, SlipsheetJob job) throws IOException {
+        PageAlignment alignment = job.getAlignment();
+        PDPageTree pages = hist.getPages();
+        int currentPages = Math.min(alignment.getCurrentPages(), pages.getCount());
+        List<PDPage> current = new ArrayList<>(currentPages);
+        for (PDPage page : pages) {
+            if (current.size() == currentPages) break;
+            current.add(page);
+        }
+        List<PDPage> superseded = new ArrayList<>();
+        for (int i = 0; i < currentPages; i++) {
+            if (alignment.isSuperseded(i + 1)) {
+                superseded.add(current.get(i));
+            } else {
+                pages.remove(current.get(i));
+            }
+        }
+
+        // importPage appends, so move the latest pages in front of the old ones
+        PDPage first = pages.getCount() > 0 ? pages.get(0) : null;
+        for (PDPage page : latest.getPages()) {
+            PDPage imported = hist.importPage(page);
+            if (first != null) {
+                pages.remove(imported);
+                pages.insertBefore(imported, first);
+            }
+        }
+
+        for (PDPage page : superseded) {
+            applyStamp(hist, job.getStampPDF(), page);
+        }
+    }
+
+    /**
+     * Saves the first pages of the historical document, the current ones, as
+     * the current set file.
+     */
+    private static void saveCurrent(PDDocument hist, int currentPages, File target) throws IOException {
+        try (PDDocument curr = new PDDocument()) {
+            for (PDPage page : hist.getPages()) {
+                if (curr.getNumberOfPages() == currentPages) break;
+                curr.importPage(page);
+            }
+            curr.save(target);
+        }
+    }
+
+    /**
+     * Skips the bytes the file already contains and appends the rest.
+     */
+    private static class AppendingOutputStream extends OutputStream {
+
+        private final FileChannel channel;
+        private long skip;
+
+        private AppendingOutputStream(FileChannel channel, long skip) throws IOException {
+            this.channel = channel;
+            this.skip = skip;
+            channel.position(skip);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (skip >= len) {
+                skip -= len;
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off + (int) skip, len - (int) skip);
+            skip = 0;
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    @Override
+    public void slipsheet(List<SlipsheetJob> jobs) {
+        for (SlipsheetJob job : jobs) {
+            try {
+                slipsheet(job);
+            } catch (IOException ex) {
+                job.setFailure(ex.toString());
+            }
+        }
+    }
+
+    /**
+     * Draws the first page of the stamp PDF in the upper left corner of the
+     * given page, the same placement the Bluebeam script uses.
+     */
+    private void applyStamp(PDDocument doc, File stampPDF, PDPage page) throws IOException {
+        PDFormXObject form = stampCache.importForm(stampPDF, doc);
+        PDRectangle box = page.getCropBox();
+        PDRectangle bbox = form.getBBox();
+        try (PDPageContentStream cs = new PDPageContentStream(doc, page, PDPageContentStream.AppendMode.APPEND, true, true)) {
+            cs.saveGraphicsState();
+            cs.transform(Matrix.getTranslateInstance(
+                    box.getLowerLeftX() - bbox.getLowerLeftX(),
+                    box.getUpperRightY() - bbox.getUpperRightY()));
+            cs.drawForm(form);
+            cs.restoreGraphicsState();
+        }
+    }
+
+    /**
+     * Burns form fields and markups into the page content, like Bluebeam's
+     * Flatten() command.
+     */
+    private void flatten(PDDocument doc) throws IOException {
+        PDAcroForm acroForm = doc.getDocumentCatalog().getAcroForm();
+        if (acroForm != null) {
+            acroForm.flatten();
+        }
+        for (PDPage page : doc.getPages()) {
+            List<PDAnnotation> annotations = page.getAnnotations();
+            if (annotations.isEmpty()) continue;
+            List<PDAnnotation> kept = new ArrayList<>();
+            try (PDPageContentStream cs = new PDPageContentStream(doc, page, PDPageContentStream.AppendMode.APPEND, true, true)) {
+                for (PDAnnotation annotation : annotations) {
+                    PDAppearanceStream appearance = annotation.getNormalAppearanceStream();
+                    if (annotation instanceof PDAnnotationWidget || appearance == null
+                            || annotation.isHidden() || annotation.isNoView()) {
+                        kept.add(annotation);
+                        continue;
+                    }
+                    drawAppearance(cs, annotation, appearance);
+                }
+            }
+            page.setAnnotations(kept);
+        }
+    }
+
+    private void drawAppearance(PDPageContentStream cs, PDAnnotation annotation, PDAppearanceStream appearance) throws IOException {
+        PDRectangle rect = annotation.getRectangle();
+        PDRectangle bbox = appearance.getBBox();
+        if (rect == null || bbox == null || bbox.getWidth() == 0 || bbox.getHeight() == 0) return;
+        // map the appearance bounding box onto the annotation rectangle
+        Matrix transform = Matrix.getTranslateInstance(rect.getLowerLeftX(), rect.getLowerLeftY());
+        transform.concatenate(Matrix.getScaleInstance(
+                rect.getWidth() / bbox.getWidth(),
+                rect.getHeight() / bbox.getHeight()));
+        transform.concatenate(Matrix.getTranslateInstance(-bbox.getLowerLeftX(), -bbox.getLowerLeftY()));
+        cs.saveGraphicsState();
+        cs.transform(transform);
+        cs.drawForm(appearance);
+        cs.restoreGraphicsState();
+    }
+}
@@ -0,0 +1,146 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How the pages of a new document line up with the pages that are current in
+ * the historical document. The historical document starts with the current
+ * version of every sheet, the same pages as the current set file, followed
+ * by the superseded pages of earlier revisions.
+ *
+ * A current page is superseded when the new document has no page that draws
+ * the same content, so sheets that were only reissued or moved within a bound
+ * set are not stamped again. Every page of the new document becomes current.
+ *
+ * @author jdegiova
+ */
+public class PageAlignment {
+
+    private final int currentPages;
+    private final int latestPages;
+    private final List<Integer> superseded;
+
+    private PageAlignment(int currentPages, int latestPages, List<Integer> superseded) {
+        this.currentPages = currentPages;
+        this.latestPages = latestPages;
+        this.superseded = Collections.unmodifiableList(superseded);
+    }
+
+    /**
+     * Matches pages by their content digests. A new page can match only one
+     * current page.
+     *
+     * @param currentDigests the page digests of the current set file
+     * @param latestDigests the page digests of the new document
+     */
+    public static PageAlignment align(List<String> currentDigests, List<String> latestDigests) {
+        Map<String, Integer> available = new HashMap<>();
+        for (String digest : latestDigests) {
+            Integer count = available.get(digest);
+            available.put(digest, count == null ? 1 : count + 1);
+        }
+        List<Integer> superseded = new ArrayList<>();
+        for (int i = 0; i < currentDigests.size(); i++) {
+            Integer count = available.get(currentDigests.get(i));
+            if (count == null) {
+                superseded.add(i + 1);
+            } else if (count == 1) {
+                available.remove(currentDigests.get(i));
+            } else {
+                available.put(currentDigests.get(i), count - 1);
+            }
+        }
+        return new PageAlignment(currentDigests.size(), latestDigests.size(), superseded);
+    }
+
+    /**
+     * @return the layout of single sheet documents: the first page is
+     * superseded by the single page of the new document
+     */
+    public static PageAlignment singlePage() {
+        return singlePage(1);
+    }
+
+    /**
+     * @return the alignment for a historical document of a single page with
+     * no current set file to compare with: that page is superseded
+     */
+    public static PageAlignment singlePage(int latestPages) {
+        return new PageAlignment(1, latestPages, Collections.singletonList(1));
+    }
+
+    /**
+     * @return the number of pages at the start of the historical document
+     * that are current, which is where the superseded pages begin
+     */
+    public int getCurrentPages() {
+        return currentPages;
+    }
+
+    /**
+     * @return the number of pages of the new document, which are current
+     * afterwards
+     */
+    public int getLatestPages() {
+        return latestPages;
+    }
+
+    /**
+     * @return the current pages to stamp and keep as superseded, numbered
+     * from 1 in ascending order
+     */
+    public List<Integer> getSuperseded() {
+        return superseded;
+    }
+
+    public boolean isSuperseded(int page) {
+        return Collections.binarySearch(superseded, page) >= 0;
+    }
+
+    /**
+     * @return the pages as a page range list like "1-3,7", the way Bluebeam
+     * scripts take them
+     */
+    static String ranges(List<Integer> pages) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pages.size(); i++) {
+            int first = pages.get(i);
+            while (i + 1 < pages.size() && pages.get(i + 1) == pages.get(i) + 1) {
+                i++;
+            }
+            if (sb.length() > 0) sb.append(',');
+            sb.append(first);
+            if (pages.get(i) != first) sb.append('-').append(pages.get(i));
+        }
+        return sb.toString();
+    }
+
+    static String range(int first, int last) {
+        return first == last ? Integer.toString(first) : first + "-" + last;
+    }
+
+    @Override
+    public String toString() {
+        return superseded.size() + " of " + currentPages + " page(s) superseded, " + latestPages + " page(s) current";
+    }
+}
@@ -0,0 +1,303 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.apache.log4j.Logger;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * The page digests of PDFs, so a document is parsed for its pages once and
+ * not again for every revision that supersedes it. Entries are keyed by path
+ * and dropped when the file's size or modification time changes. The least
+ * recently used entries are dropped beyond the capacity.
+ *
+ * The pages of a bound set are hashed in parallel: each chunk of pages is
+ * read through its own PDDocument, since a PDDocument is not thread safe.
+ *
+ * @author jdegiova
+ */
+public class PageDigestCache {
+
+    public static final String DEFAULT_FILE_NAME = "slipsheet-pages.cache";
+    public static final int DEFAULT_CAPACITY = 10000;
+    // fewer pages than this per chunk aren't worth another parse
+    private static final int MIN_PAGES_PER_TASK = 8;
+    // a page digest is the first half of its SHA-256
+    private static final int DIGEST_BYTES = 16;
+
+    private final Logger logger = Logger.getRootLogger();
+    private final File file;
+    private final Map<String, Pages> entries;
+    private int parallelism = 1;
+    private ExecutorService pool;
+    private int parseCount;
+    private boolean dirty;
+
+    private static class Pages {
+
+        private final long size, lastModified;
+        private final List<String> digests;
+
+        private Pages(long size, long lastModified, List<String> digests) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digests = digests;
+        }
+    }
+
+    /**
+     * Creates a cache that is kept in memory only.
+     */
+    public PageDigestCache() {
+        this(null);
+    }
+
+    private PageDigestCache(File file) {
+        this.file = file;
+        entries = new LinkedHashMap<String, Pages>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Pages> eldest) {
+                return size() > DEFAULT_CAPACITY;
+            }
+        };
+    }
+
+    /**
+     * Reads the digests kept by an earlier run.
+     */
+    public static PageDigestCache load(File file) {
+        PageDigestCache cache = new PageDigestCache(file);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 4) continue;
+                try {
+                    cache.entries.put(fields[0], new Pages(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            Collections.unmodifiableList(Arrays.asList(fields[3].split(",")))));
+                } catch (NumberFormatException ex) {
+                    cache.logger.debug("Ignoring page cache line " + line);
+                }
+            }
+        } catch (FileNotFoundException ex) {
+            cache.logger.debug("No page cache yet");
+        } catch (IOException ex) {
+            cache.logger.error("Unable to read page cache " + file + ": " + ex);
+        }
+        return cache;
+    }
+
+    /**
+     * @param parallelism how many threads may hash the pages of one document
+     */
+    public synchronized void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @return the digest of every page of the PDF, in page order; pages that
+     * draw the same content have the same digest
+     */
+    public List<String> getDigests(File pdf) throws IOException {
+        String key = pdf.getAbsolutePath();
+        long size = pdf.length();
+        long lastModified = pdf.lastModified();
+        synchronized (this) {
+            Pages entry = entries.get(key);
+            if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+                return entry.digests;
+            }
+            parseCount++;
+        }
+        List<String> digests = Collections.unmodifiableList(compute(pdf));
+        synchronized (this) {
+            entries.put(key, new Pages(size, lastModified, digests));
+            dirty = true;
+        }
+        return digests;
+    }
+
+    /**
+     * @return the number of pages of the PDF, from the cache if its digests
+     * are known
+     */
+    public int getPageCount(File pdf) throws IOException {
+        synchronized (this) {
+            Pages entry = entries.get(pdf.getAbsolutePath());
+            if (entry != null && entry.size == pdf.length() && entry.lastModified == pdf.lastModified()) {
+                return entry.digests.size();
+            }
+        }
+        try (PDDocument doc = Loader.loadPDF(pdf)) {
+            return doc.getNumberOfPages();
+        }
+    }
+
+    /**
+     * Records the digests of a file that was just written with pages whose
+     * digests are known, so it does not have to be parsed again.
+     */
+    public synchronized void put(File pdf, List<String> digests) {
+        entries.put(pdf.getAbsolutePath(), new Pages(pdf.length(), pdf.lastModified(), digests));
+        dirty = true;
+    }
+
+    /**
+     * @return how many times a PDF had to be parsed for its pages
+     */
+    public synchronized int getParseCount() {
+        return parseCount;
+    }
+
+    private List<String> compute(final File pdf) throws IOException {
+        try (PDDocument doc = Loader.loadPDF(pdf)) {
+            int pages = doc.getNumberOfPages();
+            // every chunk is parsed again, which only pays off on its own processor
+            int tasks = Math.min(Math.min(getParallelism(), Runtime.getRuntime().availableProcessors()), pages / MIN_PAGES_PER_TASK);
+            if (tasks <= 1) return digest(doc, 0, pages);
+            int chunk = (pages + tasks - 1) / tasks;
+            List<Future<List<String>>> futures = new ArrayList<>(tasks - 1);
+            for (int from = chunk; from < pages; from += chunk) {
+                final int first = from;
+                final int last = Math.min(pages, from + chunk);
+                futures.add(getPool().submit(new Callable<List<String>>() {
+
+                    @Override
+                    public List<String> call() throws IOException {
+                        try (PDDocument own = Loader.loadPDF(pdf)) {
+                            return digest(own, first, last);
+                        }
+                    }
+                }));
+            }
+            // the first chunk is hashed here while the others are
+            List<String> digests = new ArrayList<>(pages);
+            digests.addAll(digest(doc, 0, chunk));
+            for (Future<List<String>> future : futures) {
+                try {
+                    digests.addAll(future.get());
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+                    throw new IOException(ex.getCause());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted hashing the pages of " + pdf);
+                }
+            }
+            return digests;
+        }
+    }
+
+    private static List<String> digest(PDDocument doc, int first, int last) throws IOException {
+        List<String> digests = new ArrayList<>(last - first);
+        for (int i = first; i < last; i++) {
+            MessageDigest digest = DocumentComparator.sha256();
+            DocumentComparator.updatePage(digest, doc.getPage(i));
+            digests.add(FileHelper.toHex(Arrays.copyOf(digest.digest(), DIGEST_BYTES)));
+        }
+        return digests;
+    }
+
+    private synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    private synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "page digests");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Writes the cache if it changed and stops its threads.
+     */
+    public void close() {
+        synchronized (this) {
+            if (pool != null) {
+                pool.shutdown();
+                pool = null;
+            }
+        }
+        save();
+    }
+
+    private void save() {
+        List<String> lines;
+        synchronized (this) {
+            if (file == null || !dirty) return;
+            dirty = false;
+            lines = new ArrayList<>(entries.size());
+            // least recently used first, so a reload keeps the order
+            for (Map.Entry<String, Pages> e : entries.entrySet()) {
+                Pages entry = e.getValue();
+                lines.add(e.getKey() + "\t" + entry.size + "\t" + entry.lastModified + "\t" + String.join(",", entry.digests));
+            }
+        }
+        File temp = null;
+        try {
+            temp = File.createTempFile("slipsheet", ".cache", file.getAbsoluteFile().getParentFile());
+            try (PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)))) {
+                for (String line : lines) {
+                    writer.println(line);
+                }
+                if (writer.checkError()) throw new IOException("error writing " + temp);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            logger.error("Unable to save page cache " + file + ": " + ex);
+            if (temp != null) temp.delete();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+
+/**
+ * A single step of a {@link SlipsheetPlan}.
+ *
+ * @author jdegiova
+ */
+public final class PlannedOperation {
+
+    public enum Type {
+        /** create a directory in the historical or current set */
+        MKDIR,
+        /** copy a new document into the historical set */
+        COPY_TO_HISTORICAL,
+        /** copy a new document into the current set */
+        COPY_TO_CURRENT,
+        /** slipsheet a new document into its historical and current set files */
+        SLIPSHEET
+    }
+
+    private final Type type;
+    private final String relativePath;
+    private final File source, target, currentTarget;
+    private final long bytes;
+
+    private PlannedOperation(Type type, String relativePath, File source, File target, File currentTarget, long bytes) {
+        this.type = type;
+        this.relativePath = relativePath;
+        this.source = source;
+        this.target = target;
+        this.currentTarget = currentTarget;
+        this.bytes = bytes;
+    }
+
+    static PlannedOperation mkdir(String relativePath, File dir) {
+        return new PlannedOperation(Type.MKDIR, relativePath, null, dir, null, 0);
+    }
+
+    static PlannedOperation copy(Type type, String relativePath, File source, File target, long bytes) {
+        return new PlannedOperation(type, relativePath, source, target, null, bytes);
+    }
+
+    static PlannedOperation slipsheet(String relativePath, File latest, File historical, File current, long bytes) {
+        return new PlannedOperation(Type.SLIPSHEET, relativePath, latest, historical, current, bytes);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the path of the document or directory relative to the root of
+     * its set
+     */
+    public String getRelativePath() {
+        return relativePath;
+    }
+
+    /**
+     * @return the new document, null for {@link Type#MKDIR}
+     */
+    public File getSource() {
+        return source;
+    }
+
+    /**
+     * @return the directory to create, the copy destination or the historical
+     * file to slipsheet
+     */
+    public File getTarget() {
+        return target;
+    }
+
+    /**
+     * @return the current set file of a {@link Type#SLIPSHEET}, otherwise null
+     */
+    public File getCurrentTarget() {
+        return currentTarget;
+    }
+
+    /**
+     * @return the size of the new document
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the directory of the document relative to the root of its set
+     */
+    String getRelativeDir() {
+        int slash = relativePath.lastIndexOf('/');
+        return slash < 0 ? "" : relativePath.substring(0, slash);
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + relativePath;
+    }
+}
@@ -0,0 +1,278 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs an external process and keeps it on a leash. Standard output and
+ * standard error are drained by their own threads, so a process that floods
+ * either stream can't block on a full pipe. A process that runs past its
+ * timeout is killed together with every process it started.
+ *
+ * The supervisor also holds the retry policy for callers that retry
+ * transient failures: the number of attempts and an exponential backoff
+ * between them.
+ *
+ * @author jdegiova
+ */
+public class ProcessSupervisor {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_BACKOFF_MILLIS = 2000;
+    // only the first lines of a stream are kept, the rest is drained and dropped
+    private static final int MAX_KEPT_LINES = 1000;
+    private static final long PUMP_JOIN_MILLIS = 5000;
+
+    private final Logger logger = Logger.getRootLogger();
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long backoffMillis = DEFAULT_BACKOFF_MILLIS;
+
+    /**
+     * @param maxAttempts how many times a caller may run a failing process,
+     * including the first run
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param backoffMillis the pause before the first retry; it doubles with
+     * every further retry
+     */
+    public void setBackoffMillis(long backoffMillis) {
+        this.backoffMillis = Math.max(0, backoffMillis);
+    }
+
+    /**
+     * Sleeps before the given retry.
+     *
+     * @param attempt the attempt that failed, starting at 1
+     * @return false if the thread was interrupted and should not retry
+     */
+    public boolean backoff(int attempt) {
+        long millis = backoffMillis << Math.min(attempt - 1, 16);
+        logger.info("retrying in " + millis + " ms");
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Runs the command once and waits for it to exit, killing its process
+     * tree after the timeout.
+     *
+     * @param command the program and its arguments
+     * @param directory the working directory, or null for the current one
+     * @param timeoutMillis wall-clock limit for the run
+     * @return the outcome; launch failures are reported in it, not thrown
+     */
+    public Result run(List<String> command, File directory, long timeoutMillis) {
+        long begin = System.nanoTime();
+        Process process;
+        try {
+            process = new ProcessBuilder(command).directory(directory).start();
+        } catch (IOException ex) {
+            logger.error("unable to start " + command.get(0) + ": " + ex.getMessage());
+            return new Result(-1, false, Collections.<String>emptyList(),
+                    Collections.singletonList(String.valueOf(ex.getMessage())), System.nanoTime() - begin, false);
+        }
+        try {
+            process.getOutputStream().close();
+        } catch (IOException ex) {
+            // nothing to tell the process anyway
+        }
+        StreamPump stdout = new StreamPump(process.getInputStream(), "stdout " + process.pid(), false);
+        StreamPump stderr = new StreamPump(process.getErrorStream(), "stderr " + process.pid(), true);
+        stdout.start();
+        stderr.start();
+
+        boolean timedOut = false;
+        try {
+            if (!process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                timedOut = true;
+                logger.error(command.get(0) + " did not finish within " + timeoutMillis + " ms, killing it");
+                killTree(process.toHandle());
+                process.waitFor();
+            }
+        } catch (InterruptedException ex) {
+            killTree(process.toHandle());
+            Thread.currentThread().interrupt();
+            timedOut = true;
+        }
+        stdout.finish();
+        stderr.finish();
+        int exitCode = process.isAlive() ? -1 : process.exitValue();
+        return new Result(exitCode, timedOut, stdout.getLines(), stderr.getLines(), System.nanoTime() - begin, true);
+    }
+
+    /**
+     * Kills the process and everything it started. The descendants are
+     * collected first, because once the parent is gone they are reparented
+     * and can no longer be found through it.
+     */
+    private void killTree(ProcessHandle root) {
+        List<ProcessHandle> tree = new ArrayList<>();
+        root.descendants().forEach(tree::add);
+        root.destroyForcibly();
+        for (ProcessHandle handle : tree) {
+            handle.destroyForcibly();
+        }
+    }
+
+    /**
+     * The outcome of one run of a process.
+     */
+    public static final class Result {
+
+        private final int exitCode;
+        private final boolean timedOut;
+        private final List<String> output;
+        private final List<String> errors;
+        private final long nanos;
+        private final boolean started;
+
+        private Result(int exitCode, boolean timedOut, List<String> output, List<String> errors, long nanos, boolean started) {
+            this.exitCode = exitCode;
+            this.timedOut = timedOut;
+            this.output = output;
+            this.errors = errors;
+            this.nanos = nanos;
+            this.started = started;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        public boolean wasStarted() {
+            return started;
+        }
+
+        /**
+         * @return true if the process started, finished in time and exited
+         * with 0
+         */
+        public boolean isSuccess() {
+            return started && !timedOut && exitCode == 0;
+        }
+
+        /**
+         * @return the first lines written to standard output
+         */
+        public List<String> getOutput() {
+            return output;
+        }
+
+        /**
+         * @return the first lines written to standard error
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        public long getMillis() {
+            return nanos / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            if (!started) return "not started";
+            return timedOut ? "timed out after " + getMillis() + " ms" : "exit code " + exitCode + " after " + getMillis() + " ms";
+        }
+    }
+
+    private class StreamPump extends Thread {
+
+        private final InputStream in;
+        private final boolean error;
+        private final List<String> lines = new ArrayList<>();
+        private int dropped;
+
+        private StreamPump(InputStream in, String name, boolean error) {
+            super("pump " + name);
+            setDaemon(true);
+            this.in = in;
+            this.error = error;
+        }
+
+        @Override
+        public void run() {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charset.defaultCharset()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    synchronized (lines) {
+                        if (lines.size() >= MAX_KEPT_LINES) {
+                            dropped++;
+                            continue;
+                        }
+                        lines.add(line);
+                    }
+                    if (error) {
+                        logger.error(line);
+                    } else if (logger.isDebugEnabled()) {
+                        logger.debug(line);
+                    }
+                }
+            } catch (IOException ex) {
+                // the stream is closed when the process is killed
+            }
+        }
+
+        /**
+         * Waits for the stream to be drained. A process that left children
+         * behind holding the pipe open is not waited on forever.
+         */
+        private void finish() {
+            try {
+                join(PUMP_JOIN_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private List<String> getLines() {
+            synchronized (lines) {
+                List<String> copy = new ArrayList<>(lines);
+                if (dropped > 0) copy.add("(" + dropped + " more lines)");
+                return copy;
+            }
+        }
+    }
+}
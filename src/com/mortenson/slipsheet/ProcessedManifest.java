@@ -0,0 +1,212 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+
+/**
+ * Record of the documents of the new document set that have been processed,
+ * keyed by their path relative to the new document set. Every outcome is
+ * appended to the manifest file as soon as it is known, so a run that is
+ * interrupted can pick up where it stopped.
+ *
+ * A document is skipped if it was processed successfully before and its size
+ * and modification time are unchanged, or if its content hash is unchanged.
+ *
+ * The first line of the file names the historical and current sets the
+ * outcomes were applied to. A manifest written for other sets is ignored, so
+ * pointing a state directory at another project processes everything again.
+ *
+ * @author jdegiova
+ */
+public class ProcessedManifest {
+
+    public static final String DEFAULT_FILE_NAME = "slipsheet.manifest";
+    private static final String HEADER = "#sets";
+
+    private final File manifestFile;
+    private final String header;
+    private final Map<String, Entry> entries = new HashMap<>();
+    // hashes of documents already read whose outcome is not recorded yet
+    private final Map<File, String> knownHashes = new ConcurrentHashMap<>();
+    private final Logger logger = Logger.getRootLogger();
+    private PrintWriter writer;
+    // false until the file holds the header of these sets
+    private boolean headerCurrent;
+
+    private static class Entry {
+
+        private final long size, lastModified;
+        private final String hash;
+        private final DocumentOutcome outcome;
+
+        private Entry(long size, long lastModified, String hash, DocumentOutcome outcome) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.outcome = outcome;
+        }
+    }
+
+    private ProcessedManifest(File manifestFile, File historicalSet, File currentSet) {
+        this.manifestFile = manifestFile;
+        this.header = HEADER + "\t" + historicalSet.getAbsolutePath() + "\t" + currentSet.getAbsolutePath();
+    }
+
+    /**
+     * Reads the manifest file. Later lines for the same document replace
+     * earlier ones. If the file is missing or belongs to other sets the
+     * manifest starts out empty and the file is started over on the first
+     * outcome.
+     */
+    public static ProcessedManifest load(File manifestFile, File historicalSet, File currentSet) {
+        ProcessedManifest manifest = new ProcessedManifest(manifestFile, historicalSet, currentSet);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if (line == null) return manifest;
+            if (!line.equals(manifest.header)) {
+                manifest.logger.info("Manifest " + manifestFile + " belongs to other historical and current sets. Processing all documents...");
+                return manifest;
+            }
+            manifest.headerCurrent = true;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 5) continue;
+                try {
+                    manifest.entries.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            fields[3], DocumentOutcome.valueOf(fields[4])));
+                } catch (IllegalArgumentException ex) {
+                    manifest.logger.debug("Ignoring manifest line " + line);
+                }
+            }
+            manifest.logger.info("Loaded manifest with " + manifest.entries.size() + " processed documents");
+        } catch (FileNotFoundException ex) {
+            manifest.logger.info("No manifest found. Processing all documents...");
+        } catch (IOException ex) {
+            manifest.logger.error("Unable to read manifest " + manifestFile + ": " + ex);
+        }
+        return manifest;
+    }
+
+    /**
+     * @return true if the document was processed successfully by an earlier
+     * run and has not changed since
+     */
+    public synchronized boolean isUnchanged(String relativePath, File document) {
+        Entry entry = entries.get(relativePath);
+        if (entry == null || !entry.outcome.isDone()) return false;
+        long size = document.length();
+        if (size != entry.size) return false;
+        if (document.lastModified() == entry.lastModified) return true;
+        // touched but maybe not changed, e.g. delivered again
+        try {
+            String hash = FileHelper.sha256(document);
+            if (hash.equals(entry.hash)) return true;
+            knownHashes.put(document, hash);
+            return false;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Hands over the hash of a document read before its outcome is known,
+     * such as by the {@link DocumentComparator}, so that recording the
+     * outcome does not read the document again.
+     */
+    public void rememberHash(File document, String hash) {
+        knownHashes.put(document, hash);
+    }
+
+    /**
+     * Records the outcome for a document and appends it to the manifest file.
+     */
+    public void record(String relativePath, File document, DocumentOutcome outcome) {
+        String hash = knownHashes.remove(document);
+        if (hash == null) {
+            try {
+                hash = FileHelper.sha256(document);
+            } catch (IOException ex) {
+                logger.error("Unable to hash " + document + " for the manifest: " + ex);
+                hash = "-";
+            }
+        }
+        Entry entry = new Entry(document.length(), document.lastModified(), hash, outcome);
+        synchronized (this) {
+            entries.put(relativePath, entry);
+            try {
+                if (writer == null) {
+                    // a file of other sets is replaced rather than appended to
+                    writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifestFile, headerCurrent), StandardCharsets.UTF_8)));
+                    if (!headerCurrent) writer.println(header);
+                    headerCurrent = true;
+                }
+                write(writer, relativePath, entry);
+                writer.flush();
+            } catch (IOException ex) {
+                logger.error("Unable to write manifest " + manifestFile + ": " + ex);
+            }
+        }
+    }
+
+    private static void write(PrintWriter writer, String relativePath, Entry entry) {
+        writer.println(relativePath + "\t" + entry.size + "\t" + entry.lastModified + "\t" + entry.hash + "\t" + entry.outcome);
+    }
+
+    /**
+     * Closes the manifest file and rewrites it with only the latest outcome
+     * per document.
+     */
+    public synchronized void close() {
+        if (writer == null) return;
+        writer.close();
+        writer = null;
+        File temp = null;
+        try {
+            temp = File.createTempFile("slipsheet", ".manifest", manifestFile.getAbsoluteFile().getParentFile());
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8);
+                    PrintWriter compacted = new PrintWriter(new BufferedWriter(out))) {
+                compacted.println(header);
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    write(compacted, e.getKey(), e.getValue());
+                }
+                if (compacted.checkError()) throw new IOException("error writing " + temp);
+            }
+            Files.move(temp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            logger.error("Unable to compact manifest " + manifestFile + ": " + ex);
+            if (temp != null) temp.delete();
+        }
+    }
+}
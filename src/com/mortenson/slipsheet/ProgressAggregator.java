@@ -0,0 +1,232 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the progress events of a run and publishes a snapshot at a fixed
+ * rate from a thread of its own, however fast the documents go by. The rates
+ * are taken over the last {@link #RATE_WINDOW_MILLIS} so that the ETA follows
+ * the run as it speeds up or slows down.
+ *
+ * @author jdegiova
+ */
+public class ProgressAggregator implements ProgressListener {
+
+    public static final long RATE_WINDOW_MILLIS = 10000;
+    /** failures kept for display, the oldest are dropped */
+    public static final int MAX_FAILURES = 5;
+
+    public interface Publisher {
+
+        void publish(Progress progress);
+    }
+
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong doneBytes = new AtomicLong();
+    private final ArrayDeque<String> failures = new ArrayDeque<>();
+    /** (nanos, done, doneBytes) taken at every publish, oldest first */
+    private final ArrayDeque<long[]> samples = new ArrayDeque<>();
+    private ScheduledExecutorService publisher;
+
+    @Override
+    public void runPlanned(int documents, long bytes) {
+        total.addAndGet(documents);
+        totalBytes.addAndGet(bytes);
+    }
+
+    @Override
+    public void documentFinished(String relativePath, DocumentOutcome outcome, long bytes, String message) {
+        done.incrementAndGet();
+        doneBytes.addAndGet(bytes);
+        if (!outcome.isDone()) {
+            failed.incrementAndGet();
+            synchronized (failures) {
+                if (failures.size() == MAX_FAILURES) failures.removeFirst();
+                failures.addLast(relativePath + (message == null ? "" : ": " + message));
+            }
+        }
+    }
+
+    /**
+     * Starts publishing a snapshot every period until {@link #stop()}.
+     */
+    public synchronized void start(final Publisher target, long periodMillis) {
+        stop();
+        publisher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "progress");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        publisher.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                target.publish(snapshot());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops publishing. No snapshot is published once this returns.
+     */
+    public synchronized void stop() {
+        if (publisher != null) {
+            publisher.shutdownNow();
+            try {
+                publisher.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            publisher = null;
+        }
+    }
+
+    /**
+     * @return the progress as of now
+     */
+    public Progress snapshot() {
+        long now = System.nanoTime();
+        int doneNow = done.get();
+        long bytesNow = doneBytes.get();
+        long[] oldest;
+        synchronized (samples) {
+            samples.addLast(new long[]{now, doneNow, bytesNow});
+            while (samples.size() > 2 && now - samples.getFirst()[0] > TimeUnit.MILLISECONDS.toNanos(RATE_WINDOW_MILLIS)) {
+                samples.removeFirst();
+            }
+            oldest = samples.getFirst();
+        }
+        double seconds = (now - oldest[0]) / 1e9;
+        double filesPerSecond = seconds > 0 ? (doneNow - oldest[1]) / seconds : 0;
+        double bytesPerSecond = seconds > 0 ? (bytesNow - oldest[2]) / seconds : 0;
+        List<String> recentFailures;
+        synchronized (failures) {
+            recentFailures = Collections.unmodifiableList(new ArrayList<>(failures));
+        }
+        return new Progress(doneNow, total.get(), failed.get(), bytesNow, totalBytes.get(),
+                filesPerSecond, bytesPerSecond, recentFailures);
+    }
+
+    /**
+     * A snapshot of the progress of a run.
+     */
+    public static final class Progress {
+
+        private final int done, total, failed;
+        private final long bytes, totalBytes;
+        private final double filesPerSecond, bytesPerSecond;
+        private final List<String> failures;
+
+        private Progress(int done, int total, int failed, long bytes, long totalBytes,
+                double filesPerSecond, double bytesPerSecond, List<String> failures) {
+            this.done = done;
+            this.total = total;
+            this.failed = failed;
+            this.bytes = bytes;
+            this.totalBytes = totalBytes;
+            this.filesPerSecond = filesPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+            this.failures = failures;
+        }
+
+        public int getDone() {
+            return done;
+        }
+
+        /**
+         * @return the number of documents of the run, 0 until it is planned
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public double getFilesPerSecond() {
+            return filesPerSecond;
+        }
+
+        public double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * @return the estimated time left, by bytes where the documents have
+         * a size and by count otherwise; -1 if there is no rate yet
+         */
+        public long getEtaMillis() {
+            if (total == 0 || done >= total) return total == 0 ? -1 : 0;
+            if (bytesPerSecond > 0 && totalBytes > bytes) {
+                return (long) ((totalBytes - bytes) / bytesPerSecond * 1000);
+            }
+            if (filesPerSecond > 0) {
+                return (long) ((total - done) / filesPerSecond * 1000);
+            }
+            return -1;
+        }
+
+        /**
+         * @return the latest failures, oldest first
+         */
+        public List<String> getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return e.g. "1204 of 10312 documents, 3.2 documents/s, 4.1 MB/s, 47 min left, 2 failed"
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(done);
+            if (total > 0) sb.append(" of ").append(total);
+            sb.append(" documents, ").append(String.format("%.1f", filesPerSecond)).append(" documents/s, ")
+                    .append(String.format("%.1f", bytesPerSecond / (1024 * 1024))).append(" MB/s");
+            long eta = getEtaMillis();
+            if (eta > 0) sb.append(", ").append(formatDuration(eta)).append(" left");
+            if (failed > 0) sb.append(", ").append(failed).append(" failed");
+            return sb.toString();
+        }
+
+        private static String formatDuration(long millis) {
+            long seconds = millis / 1000;
+            if (seconds < 60) return seconds + " s";
+            if (seconds < 3600) return seconds / 60 + " min";
+            return seconds / 3600 + " h " + seconds % 3600 / 60 + " min";
+        }
+    }
+}
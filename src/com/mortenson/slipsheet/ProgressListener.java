@@ -0,0 +1,40 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+/**
+ * Receives the progress of a {@link Slipsheeter} run. Called from the
+ * threads doing the work, so implementations must be quick and thread safe.
+ *
+ * @author jdegiova
+ */
+public interface ProgressListener {
+
+    /**
+     * @param documents the number of new documents the run will go through,
+     * unchanged ones included
+     * @param bytes the size of the documents that will be copied or
+     * slipsheeted
+     */
+    void runPlanned(int documents, long bytes);
+
+    /**
+     * @param bytes the size of the new document, 0 if it was skipped as
+     * unchanged
+     */
+    void documentFinished(String relativePath, DocumentOutcome outcome, long bytes, String message);
+}
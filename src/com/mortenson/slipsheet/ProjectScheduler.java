@@ -0,0 +1,105 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs several projects at the same time. Each project is planned, scanned
+ * and copied on a thread of its own, up to a limit, while its engine batches
+ * go to a {@link FairShareExecutor} shared by all projects, so the engine
+ * workers stay busy and are divided evenly between the projects with work.
+ *
+ * @author jdegiova
+ */
+public class ProjectScheduler {
+
+    private final Logger logger = Logger.getRootLogger();
+    private final FairShareExecutor engineWorkers;
+    private final ExecutorService projects;
+
+    /**
+     * @param engineWorkers the number of engine batches running at once over
+     * all projects
+     * @param concurrentProjects the number of projects running at once, the
+     * others wait for their turn
+     */
+    public ProjectScheduler(int engineWorkers, int concurrentProjects) {
+        this.engineWorkers = new FairShareExecutor(engineWorkers);
+        this.projects = Executors.newFixedThreadPool(Math.max(1, concurrentProjects));
+    }
+
+    /**
+     * Queues a run of a project.
+     *
+     * @param project the name the engine workers are shared by
+     * @param slipsheeter the configured slipsheeter of the project; its
+     * workers are replaced by the shared ones
+     * @return the report, once the run is finished
+     */
+    public Future<RunReport> submit(final String project, final Slipsheeter slipsheeter) {
+        slipsheeter.setExecutor(engineWorkers.forProject(project));
+        return projects.submit(new Callable<RunReport>() {
+
+            @Override
+            public RunReport call() {
+                String name = Thread.currentThread().getName();
+                Thread.currentThread().setName("project " + project);
+                try {
+                    logger.info("Starting project " + project);
+                    slipsheeter.start();
+                    logger.info("Finished project " + project + ": " + slipsheeter.getMetrics().getSummary());
+                    return slipsheeter.getReport();
+                } finally {
+                    Thread.currentThread().setName(name);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a run of a saved profile with its own state directory.
+     *
+     * @param scriptEnginePath the Bluebeam ScriptEngine, or null for the
+     * default one
+     * @throws InstantiationException if the engine is not available
+     */
+    public Future<RunReport> submit(SlipsheetProfile profile, String scriptEnginePath) throws InstantiationException {
+        SlipsheetEngine engine = Slipsheeter.createEngine(profile.getEngine(), scriptEnginePath);
+        return submit(profile.getName(), profile.createSlipsheeter(engine));
+    }
+
+    /**
+     * Finishes the queued projects and stops the workers.
+     */
+    public void shutdown() {
+        projects.shutdown();
+        try {
+            while (!projects.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info("Waiting for projects to finish...");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        engineWorkers.shutdown();
+    }
+}
@@ -0,0 +1,175 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Works through a {@link WorkQueue} with one {@link Slipsheeter}: claims a
+ * unit, slipsheets or copies its documents, marks it done and claims the
+ * next, until every unit is done. The lease of the current unit is renewed
+ * from a background thread; if it is lost anyway, the worker stops before the
+ * next document and leaves the unit to the worker that took it over.
+ *
+ * @author jdegiova
+ */
+public class QueueWorker {
+
+    public static final long DEFAULT_POLL_MILLIS = 5000;
+
+    private final Logger logger = Logger.getRootLogger();
+    private final WorkQueue queue;
+    private final Slipsheeter slipsheeter;
+    private final File newDocumentSet;
+    private long pollMillis = DEFAULT_POLL_MILLIS;
+    private volatile WorkQueue.Lease current;
+    private volatile boolean stopped;
+
+    /**
+     * @param slipsheeter not yet opened; its progress listener is replaced
+     */
+    public QueueWorker(WorkQueue queue, Slipsheeter slipsheeter, File newDocumentSet) {
+        this.queue = queue;
+        this.slipsheeter = slipsheeter;
+        this.newDocumentSet = newDocumentSet;
+    }
+
+    /**
+     * @param pollMillis how long to wait before looking again when every
+     * remaining unit is leased by another worker
+     */
+    public void setPollMillis(long pollMillis) {
+        this.pollMillis = pollMillis;
+    }
+
+    /**
+     * Finishes the current document and stops.
+     */
+    public void stop() {
+        stopped = true;
+        slipsheeter.cancel();
+    }
+
+    /**
+     * @return the number of units this worker finished
+     */
+    public int run() throws IOException {
+        slipsheeter.setProgressListener(new ProgressListener() {
+
+            @Override
+            public void runPlanned(int documents, long bytes) {
+                // units are planned one document at a time
+            }
+
+            @Override
+            public void documentFinished(String relativePath, DocumentOutcome outcome, long bytes, String message) {
+                queue.recordCompletion(relativePath, outcome);
+            }
+        });
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "lease heartbeat");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1, queue.getLeaseExpiryMillis() / 4);
+        heartbeat.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                WorkQueue.Lease lease = current;
+                if (lease != null && !lease.heartbeat()) {
+                    logger.warn("Lost the lease of " + lease + ", stopping the unit before the next document");
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        int finished = 0;
+        slipsheeter.open();
+        try {
+            while (!stopped) {
+                WorkQueue.Lease lease = queue.claim();
+                if (lease == null) {
+                    if (queue.isFinished()) break;
+                    try {
+                        Thread.sleep(pollMillis);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    continue;
+                }
+                current = lease;
+                try {
+                    if (process(lease)) finished++;
+                } finally {
+                    current = null;
+                }
+            }
+        } finally {
+            heartbeat.shutdownNow();
+            slipsheeter.close();
+            queue.close();
+        }
+        logger.info("Worker " + queue.getWorkerId() + " finished " + finished + " units");
+        return finished;
+    }
+
+    /**
+     * @return true if the unit was finished by this worker
+     */
+    private boolean process(WorkQueue.Lease lease) throws IOException {
+        logger.info("Claimed " + lease);
+        Set<String> completed = queue.getCompleted();
+        String relativeDir = lease.getRelativeDir();
+        File dir = relativeDir.isEmpty() ? newDocumentSet : new File(newDocumentSet, relativeDir);
+        boolean held = true;
+        for (String name : lease.getNames()) {
+            if (stopped || !(held = lease.isHeld())) break;
+            String relativePath = relativeDir.isEmpty() ? name : relativeDir + "/" + name;
+            // done by a worker that held the unit before
+            if (completed.contains(relativePath)) continue;
+            File newFile = new File(dir, name);
+            if (!newFile.isFile()) {
+                logger.warn(relativePath + " is gone since it was queued");
+                continue;
+            }
+            slipsheeter.process(newFile);
+        }
+        slipsheeter.drain();
+        if (stopped) {
+            lease.release();
+            return false;
+        }
+        if (!held || !lease.isHeld()) {
+            logger.warn("Left " + lease + " to the worker that took it over");
+            return false;
+        }
+        lease.complete();
+        return true;
+    }
+}
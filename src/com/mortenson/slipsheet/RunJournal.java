@@ -0,0 +1,247 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.apache.log4j.Logger;
+
+/**
+ * Structured journal of a run: one typed event per thing that happened to a
+ * document, with its duration. Recording an event only queues it; a
+ * background thread writes the events in batches as JSON lines and derives
+ * the human readable log lines from them, so neither formatting nor I/O
+ * happens on the thread doing the work.
+ *
+ * The journal file is appended to by every run and each line carries the
+ * run it belongs to, so it doubles as an audit trail:
+ * <pre>
+ * {"t":1413795600000,"run":"1413795590123","event":"SLIPSHEETED","path":"A/A-101.pdf","ms":812,"msg":null}
+ * </pre>
+ *
+ * @author jdegiova
+ */
+public class RunJournal {
+
+    public static final String DEFAULT_FILE_NAME = "slipsheet-journal.jsonl";
+
+    public enum EventType {
+        RUN_STARTED,
+        /** a new document matched a historical document and is queued for slipsheeting */
+        MATCHED,
+        /** put aside because its files are open elsewhere */
+        DEFERRED,
+        COPIED,
+        SLIPSHEETED,
+        SKIPPED_UNCHANGED,
+        SKIPPED_IDENTICAL,
+        FAILED,
+        LOCKED,
+        RUN_FINISHED;
+
+        static EventType of(DocumentOutcome outcome) {
+            switch (outcome) {
+                case COPIED: return COPIED;
+                case SLIPSHEETED: return SLIPSHEETED;
+                case SKIPPED_UNCHANGED: return SKIPPED_UNCHANGED;
+                case SKIPPED_IDENTICAL: return SKIPPED_IDENTICAL;
+                case LOCKED: return LOCKED;
+                default: return FAILED;
+            }
+        }
+    }
+
+    private static final int QUEUE_CAPACITY = 16 * 1024;
+    private static final int BATCH_SIZE = 1024;
+    private static final Event END = new Event(null, null, 0, null);
+
+    private final Logger logger = Logger.getRootLogger();
+    private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final String runId = Long.toString(System.currentTimeMillis());
+    private final Writer out;
+    private final Thread writer;
+
+    private static final class Event {
+
+        private final EventType type;
+        private final String path;
+        private final long nanos;
+        private final String message;
+        private final long timestamp = System.currentTimeMillis();
+
+        private Event(EventType type, String path, long nanos, String message) {
+            this.type = type;
+            this.path = path;
+            this.nanos = nanos;
+            this.message = message;
+        }
+    }
+
+    /**
+     * @param file the journal file to append to, or null to only derive the
+     * log lines
+     */
+    public RunJournal(File file) {
+        Writer w = null;
+        if (file != null) {
+            try {
+                w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 64 * 1024);
+            } catch (IOException ex) {
+                logger.error("Unable to open journal " + file + ": " + ex.getMessage());
+            }
+        }
+        this.out = w;
+        writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "journal writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues an event. Blocks only if the writer has fallen a full queue
+     * behind, so no event is lost.
+     *
+     * @param path the document relative to the new document set, or null
+     * for run events
+     * @param nanos how long it took, 0 if not timed
+     */
+    public void record(EventType type, String path, long nanos, String message) {
+        try {
+            queue.put(new Event(type, path, nanos, message));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void record(EventType type, String path) {
+        record(type, path, 0, null);
+    }
+
+    /**
+     * Writes the queued events and closes the journal file.
+     */
+    public void close() {
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        List<Event> batch = new ArrayList<>(BATCH_SIZE);
+        StringBuilder line = new StringBuilder(256);
+        boolean open = true;
+        while (open) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException ex) {
+                break;
+            }
+            queue.drainTo(batch, BATCH_SIZE - 1);
+            for (Event event : batch) {
+                if (event == END) {
+                    open = false;
+                    break;
+                }
+                log(event, line);
+                write(event, line);
+            }
+            batch.clear();
+            flush();
+        }
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                logger.error("Unable to close journal: " + ex.getMessage());
+            }
+        }
+    }
+
+    private void write(Event event, StringBuilder line) {
+        if (out == null) return;
+        line.setLength(0);
+        line.append("{\"t\":").append(event.timestamp)
+                .append(",\"run\":").append(Json.quote(runId))
+                .append(",\"event\":").append(Json.quote(event.type.name()))
+                .append(",\"path\":").append(Json.quote(event.path))
+                .append(",\"ms\":").append(event.nanos / 1000000)
+                .append(",\"msg\":").append(Json.quote(event.message))
+                .append("}\n");
+        try {
+            out.write(line.toString());
+        } catch (IOException ex) {
+            logger.error("Unable to write journal: " + ex.getMessage());
+        }
+    }
+
+    private void flush() {
+        if (out == null) return;
+        try {
+            out.flush();
+        } catch (IOException ex) {
+            logger.error("Unable to write journal: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * The human readable log line of an event.
+     */
+    private void log(Event event, StringBuilder line) {
+        boolean error = event.type == EventType.FAILED || event.type == EventType.LOCKED;
+        boolean warning = event.type == EventType.DEFERRED;
+        if (!error && !warning && !logger.isInfoEnabled()) return;
+        line.setLength(0);
+        switch (event.type) {
+            case MATCHED: line.append("Processing new file "); break;
+            case DEFERRED: line.append("Open elsewhere, trying again later: "); break;
+            case COPIED: line.append("No match, added to historical and current set: "); break;
+            case SLIPSHEETED: line.append("Slipsheeted "); break;
+            case SKIPPED_UNCHANGED: line.append("Skipping unchanged file "); break;
+            case SKIPPED_IDENTICAL: line.append("Skipping file identical to the current set "); break;
+            case FAILED: line.append("Failed "); break;
+            case LOCKED: line.append("Still open elsewhere, giving up "); break;
+            default: line.append(event.type).append(' ');
+        }
+        if (event.path != null) line.append(event.path);
+        if (event.nanos > 0) line.append(" (").append(event.nanos / 1000000).append(" ms)");
+        if (event.message != null) line.append(": ").append(event.message);
+        if (error) {
+            logger.error(line.toString());
+        } else if (warning) {
+            logger.warn(line.toString());
+        } else {
+            logger.info(line.toString());
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome and timing of every document handled by a run, written as JSON at
+ * the end of a headless run.
+ *
+ * @author jdegiova
+ */
+public class RunReport {
+
+    private final List<DocumentResult> results = new ArrayList<>();
+    private final Map<DocumentOutcome, Integer> counts = new EnumMap<>(DocumentOutcome.class);
+    private final String engine;
+    private final boolean dryRun;
+    private final long startedAt = System.currentTimeMillis();
+    private long finishedAt;
+
+    public static class DocumentResult {
+
+        private final String relativePath;
+        private final DocumentOutcome outcome;
+        private final long millis;
+        private final String message;
+
+        DocumentResult(String relativePath, DocumentOutcome outcome, long millis, String message) {
+            this.relativePath = relativePath;
+            this.outcome = outcome;
+            this.millis = millis;
+            this.message = message;
+        }
+
+        public String getRelativePath() {
+            return relativePath;
+        }
+
+        public DocumentOutcome getOutcome() {
+            return outcome;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    RunReport(String engine, boolean dryRun) {
+        this.engine = engine;
+        this.dryRun = dryRun;
+    }
+
+    synchronized void add(String relativePath, DocumentOutcome outcome, long millis, String message) {
+        results.add(new DocumentResult(relativePath, outcome, millis, message));
+        Integer count = counts.get(outcome);
+        counts.put(outcome, count == null ? 1 : count + 1);
+    }
+
+    synchronized void finish() {
+        finishedAt = System.currentTimeMillis();
+    }
+
+    public synchronized List<DocumentResult> getResults() {
+        return Collections.unmodifiableList(new ArrayList<>(results));
+    }
+
+    public synchronized int getCount(DocumentOutcome outcome) {
+        Integer count = counts.get(outcome);
+        return count == null ? 0 : count;
+    }
+
+    public boolean hasFailures() {
+        return getCount(DocumentOutcome.FAILED) > 0 || getCount(DocumentOutcome.LOCKED) > 0;
+    }
+
+    public synchronized void writeJson(File file) throws IOException {
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.println("  \"engine\": " + Json.quote(engine) + ",");
+            out.println("  \"dryRun\": " + dryRun + ",");
+            out.println("  \"startedAt\": " + Json.quote(iso.format(new Date(startedAt))) + ",");
+            out.println("  \"durationMillis\": " + ((finishedAt == 0 ? System.currentTimeMillis() : finishedAt) - startedAt) + ",");
+            out.println("  \"counts\": {");
+            DocumentOutcome[] outcomes = DocumentOutcome.values();
+            for (int i = 0; i < outcomes.length; i++) {
+                out.println("    " + Json.quote(outcomes[i].name()) + ": " + getCount(outcomes[i]) + (i < outcomes.length - 1 ? "," : ""));
+            }
+            out.println("  },");
+            out.println("  \"documents\": [");
+            for (int i = 0; i < results.size(); i++) {
+                DocumentResult r = results.get(i);
+                out.println("    {\"path\": " + Json.quote(r.relativePath)
+                        + ", \"outcome\": " + Json.quote(r.outcome.name())
+                        + ", \"millis\": " + r.millis
+                        + ", \"message\": " + Json.quote(r.message) + "}"
+                        + (i < results.size() - 1 ? "," : ""));
+            }
+            out.println("  ]");
+            out.println("}");
+            if (out.checkError()) throw new IOException("error writing " + file);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable result of scanning a directory tree with {@link TreeScanner}: the
+ * PDFs and subdirectories of every directory, keyed by the directory path
+ * relative to the root ('/' separated, "" for the root itself).
+ *
+ * @author jdegiova
+ */
+public final class ScanSnapshot {
+
+    private final File root;
+    private final Map<String, Directory> directories;
+    private final long scannedAt;
+    private final int pdfCount;
+    private final long pdfBytes;
+
+    ScanSnapshot(File root, Map<String, Directory> directories, long scannedAt) {
+        this.root = root;
+        this.directories = Collections.unmodifiableMap(directories);
+        this.scannedAt = scannedAt;
+        int count = 0;
+        long bytes = 0;
+        for (Directory dir : directories.values()) {
+            count += dir.getPdfs().size();
+            for (ScannedFile pdf : dir.getPdfs()) {
+                bytes += pdf.getSize();
+            }
+        }
+        this.pdfCount = count;
+        this.pdfBytes = bytes;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the directory or null if it was not part of the scan
+     */
+    public Directory getDirectory(String relativePath) {
+        return directories.get(relativePath);
+    }
+
+    public Directory getRootDirectory() {
+        return directories.get("");
+    }
+
+    public Collection<Directory> getDirectories() {
+        return directories.values();
+    }
+
+    public int getPdfCount() {
+        return pdfCount;
+    }
+
+    public long getPdfBytes() {
+        return pdfBytes;
+    }
+
+    /**
+     * @return when the scan was started, in milliseconds since the epoch
+     */
+    public long getScannedAt() {
+        return scannedAt;
+    }
+
+    public static final class Directory {
+
+        private final File file;
+        private final String relativePath;
+        private final long lastModified;
+        private final List<ScannedFile> pdfs;
+        private final List<String> subdirectories;
+
+        Directory(File file, String relativePath, long lastModified, List<ScannedFile> pdfs, List<String> subdirectories) {
+            this.file = file;
+            this.relativePath = relativePath;
+            this.lastModified = lastModified;
+            this.pdfs = Collections.unmodifiableList(pdfs);
+            this.subdirectories = Collections.unmodifiableList(subdirectories);
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getRelativePath() {
+            return relativePath;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public List<ScannedFile> getPdfs() {
+            return pdfs;
+        }
+
+        /**
+         * @return the names of the subdirectories
+         */
+        public List<String> getSubdirectories() {
+            return subdirectories;
+        }
+
+        /**
+         * @return the relative path of a file or directory in this directory
+         */
+        public String child(String name) {
+            return relativePath.isEmpty() ? name : relativePath + "/" + name;
+        }
+    }
+
+    public static final class ScannedFile {
+
+        private final File file;
+        private final long size, lastModified;
+
+        ScannedFile(File file, long size, long lastModified) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getName() {
+            return file.getName();
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which historical document a new document supersedes. The exact
+ * matcher only pairs documents with the same file name. The normalized
+ * matcher pairs documents with the same sheet number: the extension and any
+ * revision suffix are stripped, case is folded and separators are dropped, so
+ * "A-101 Rev 3.pdf", "a101_r4.PDF" and "A101.pdf" all have the key "A101".
+ *
+ * @author jdegiova
+ */
+public final class SheetMatcher {
+
+    public static final String EXACT = "exact";
+    public static final String NORMALIZED = "normalized";
+
+    /**
+     * Revision suffixes stripped by default, matched at the end of the name
+     * without its extension: "Rev 3", "rev.B", "_r4", "-R2a", "v2", " (2)".
+     */
+    public static final List<String> DEFAULT_REVISION_PATTERNS = Collections.unmodifiableList(Arrays.asList(
+            "(?i)(?:[\\s_.-]+|(?<=[0-9]))rev(?:ision)?[\\s_.-]*[0-9a-z]{1,3}$",
+            "(?i)[\\s_.-]+r[0-9]{1,3}[a-z]?$",
+            "(?i)[\\s_.-]+v[0-9]{1,3}$",
+            "[\\s_.-]*\\([0-9]{1,3}\\)$"));
+
+    private static final Pattern EXTENSION = Pattern.compile("(?i)\\.pdf$");
+    private static final Pattern SEPARATORS = Pattern.compile("[\\s_.-]+");
+
+    private final boolean exact;
+    private final List<Pattern> revisionPatterns;
+
+    private SheetMatcher(boolean exact, List<Pattern> revisionPatterns) {
+        this.exact = exact;
+        this.revisionPatterns = revisionPatterns;
+    }
+
+    /**
+     * @return the matcher that pairs identical file names only
+     */
+    public static SheetMatcher exact() {
+        return new SheetMatcher(true, Collections.<Pattern>emptyList());
+    }
+
+    /**
+     * @return a normalizing matcher with {@link #DEFAULT_REVISION_PATTERNS}
+     */
+    public static SheetMatcher normalized() {
+        return normalized(DEFAULT_REVISION_PATTERNS);
+    }
+
+    /**
+     * @param revisionPatterns regular expressions for the revision suffixes
+     * to strip, tried in order until one matches
+     * @throws java.util.regex.PatternSyntaxException if a pattern is invalid
+     */
+    public static SheetMatcher normalized(List<String> revisionPatterns) {
+        List<Pattern> patterns = new ArrayList<>(revisionPatterns.size());
+        for (String pattern : revisionPatterns) {
+            patterns.add(Pattern.compile(pattern));
+        }
+        return new SheetMatcher(false, patterns);
+    }
+
+    /**
+     * @param name {@link #EXACT} or {@link #NORMALIZED}
+     * @throws IllegalArgumentException for any other name
+     */
+    public static SheetMatcher forName(String name) {
+        if (EXACT.equalsIgnoreCase(name)) return exact();
+        if (NORMALIZED.equalsIgnoreCase(name)) return normalized();
+        throw new IllegalArgumentException("unknown sheet matching " + name);
+    }
+
+    public boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * @return the key documents of the same sheet share; the name itself for
+     * the exact matcher
+     */
+    public String key(String fileName) {
+        if (exact) return fileName;
+        String base = EXTENSION.matcher(fileName).replaceFirst("");
+        for (Pattern pattern : revisionPatterns) {
+            String stripped = pattern.matcher(base).replaceFirst("");
+            // never strip a name down to nothing, "Rev 3.pdf" is a sheet of its own
+            if (!stripped.equals(base) && !stripped.isEmpty()) {
+                base = stripped;
+                break;
+            }
+        }
+        return SEPARATORS.matcher(base).replaceAll("").toUpperCase(Locale.ROOT);
+    }
+}
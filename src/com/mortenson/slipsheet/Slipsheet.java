@@ -20,6 +20,9 @@ import java.io.File;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import javafx.application.Application;
 import javafx.beans.property.BooleanProperty;
@@ -27,6 +30,7 @@ import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
 import javafx.concurrent.Task;
+import javafx.concurrent.WorkerStateEvent;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.geometry.HPos;
@@ -34,8 +38,10 @@ import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.layout.ColumnConstraints;
 import javafx.scene.layout.GridPane;
+import javafx.scene.layout.HBox;
 import javafx.scene.text.Text;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
@@ -51,10 +57,17 @@ public class Slipsheet extends Application {
     private Stage stage;
     private File historicalSetDirectory, currentSetDirectory, newDocumentSetDirectory, stampPDFLocation, lastChosenDirectory;
     private Text resultText;
-    private Button slipsheetButton;
+    private Button slipsheetButton, watchButton, pauseButton, cancelButton;
+    private ProgressBar progressBar;
+    private volatile Slipsheeter running;
+    private SlipsheetWatcher watcher;
     private final SlipsheetConfig config = SlipsheetConfig.getInstance();
     private final Logger logger = Logger.getRootLogger();
     private BooleanProperty waitingToStart;
+    private ScanSnapshot newDocumentSetSnapshot;
+    private static final int SCAN_PARALLELISM = 4;
+    /** how often the progress of a run or a scan is shown, however fast it goes */
+    private static final long PROGRESS_REFRESH_MILLIS = 250;
 
     @Override
     public void start(Stage primaryStage) {
@@ -144,13 +157,56 @@ public class Slipsheet extends Application {
                 });
         grid.add(slipsheetButton, 2, 6);
 
+        // watch button
+        watchButton = new Button("Watch new document set...");
+        watchButton.setOnAction(
+                new EventHandler<ActionEvent>() {
+                    @Override
+                    public void handle(final ActionEvent e) {
+                        toggleWatcher();
+                    }
+                });
+        grid.add(watchButton, 1, 6);
+
+        // pause and cancel, between documents
+        pauseButton = new Button("Pause");
+        pauseButton.setDisable(true);
+        pauseButton.setOnAction(
+                new EventHandler<ActionEvent>() {
+                    @Override
+                    public void handle(final ActionEvent e) {
+                        togglePause();
+                    }
+                });
+        cancelButton = new Button("Cancel");
+        cancelButton.setDisable(true);
+        cancelButton.setOnAction(
+                new EventHandler<ActionEvent>() {
+                    @Override
+                    public void handle(final ActionEvent e) {
+                        Slipsheeter s = running;
+                        if (s != null) {
+                            s.cancel();
+                            cancelButton.disableProperty().unbind();
+                            cancelButton.setDisable(true);
+                        }
+                    }
+                });
+        HBox runControls = new HBox(10, pauseButton, cancelButton);
+        grid.add(runControls, 0, 6);
+
+        progressBar = new ProgressBar(0);
+        progressBar.setPrefWidth(850);
+        progressBar.setVisible(false);
+        grid.add(progressBar, 0, 7, 3, 1);
+
         resultText = new Text("");
-        grid.add(resultText, 0, 7, 3, 1);
+        grid.add(resultText, 0, 8, 3, 1);
 
         grid.getColumnConstraints().add(0, column1);
         grid.getColumnConstraints().add(1, column2);
 
-        Scene scene = new Scene(grid, 900, 350);
+        Scene scene = new Scene(grid, 900, 450);
 
         addStyleSheetToScene(scene, "Login.css");
 
@@ -165,7 +221,11 @@ public class Slipsheet extends Application {
                 Slipsheeter s;
                 updateMessage("Running Task...");
                 try {
-                    s = new Slipsheeter(historicalSetDirectory, currentSetDirectory, newDocumentSetDirectory, stampPDFLocation);
+                    s = new Slipsheeter(historicalSetDirectory, currentSetDirectory, newDocumentSetDirectory, stampPDFLocation,
+                            Slipsheeter.createEngine(config.getDefaultEngine(), config.getScriptEnginePath()));
+                    s.setScanParallelism(SCAN_PARALLELISM);
+                    s.setSheetMatcher(config.getSheetMatcher());
+                    s.setNewDocumentSnapshot(newDocumentSetSnapshot);
                 } catch (InstantiationException ie) {
                     updateMessage("Error: " + ie.getMessage());
                     return null;
@@ -174,14 +234,50 @@ public class Slipsheet extends Application {
                     return null;
                 }
 
-                s.start();
+                // the workers only count; the progress is shown at a fixed rate
+                final SlipsheetMetrics metrics = s.getMetrics();
+                final ProgressAggregator aggregator = new ProgressAggregator();
+                s.setProgressListener(aggregator);
+                aggregator.start(new ProgressAggregator.Publisher() {
+
+                    @Override
+                    public void publish(ProgressAggregator.Progress progress) {
+                        showProgress(progress);
+                    }
+                }, PROGRESS_REFRESH_MILLIS);
+                running = s;
+                try {
+                    s.start();
+                } finally {
+                    running = null;
+                    aggregator.stop();
+                }
 
                 DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
                 Calendar cal = Calendar.getInstance();
-                updateMessage("Successfully completed slipsheeting at " + dateFormat.format(cal.getTime()));
+                updateProgress(1, 1);
+                if (s.isCancelled()) {
+                    updateMessage("Cancelled at " + dateFormat.format(cal.getTime())
+                            + ", the remaining documents are left for the next run\n" + metrics.getSummary());
+                } else {
+                    updateMessage("Successfully completed slipsheeting at " + dateFormat.format(cal.getTime())
+                            + "\n" + metrics.getSummary());
+                }
                 return s;
             }
 
+            private void showProgress(ProgressAggregator.Progress progress) {
+                if (progress.getTotal() > 0) {
+                    updateProgress(progress.getDone(), progress.getTotal());
+                }
+                StringBuilder message = new StringBuilder(running != null && running.isPaused() ? "Paused... " : "Running... ");
+                message.append(progress);
+                for (String failure : progress.getFailures()) {
+                    message.append("\nFailed: ").append(failure);
+                }
+                updateMessage(message.toString());
+            }
+
         };
         return task;
 
@@ -200,6 +296,12 @@ public class Slipsheet extends Application {
                 //resultText.textProperty().bind(task.messageProperty());
                 resultText.textProperty().bind(task.messageProperty());
                 slipsheetButton.disableProperty().bind(task.runningProperty());
+                watchButton.disableProperty().bind(task.runningProperty());
+                pauseButton.setText("Pause");
+                pauseButton.disableProperty().bind(task.runningProperty().not());
+                cancelButton.disableProperty().bind(task.runningProperty().not());
+                progressBar.progressProperty().bind(task.progressProperty());
+                progressBar.visibleProperty().bind(task.runningProperty());
             } catch (Exception ex) {
                 java.util.logging.Logger.getLogger(Slipsheet.class.getName()).log(Level.SEVERE, null, ex);
             }
@@ -207,6 +309,49 @@ public class Slipsheet extends Application {
         }
     }
 
+    private void togglePause() {
+        Slipsheeter s = running;
+        if (s == null) return;
+        if (s.isPaused()) {
+            s.resume();
+            pauseButton.setText("Pause");
+        } else {
+            s.pause();
+            pauseButton.setText("Resume");
+        }
+    }
+
+    private void toggleWatcher() {
+        if (watcher != null && watcher.isRunning()) {
+            watcher.stop();
+            watcher = null;
+            watchButton.setText("Watch new document set...");
+            slipsheetButton.setDisable(false);
+            resultText.textProperty().unbind();
+            resultText.setText("Stopped watching " + newDocumentSetDirectory.getAbsolutePath());
+            return;
+        }
+        Slipsheeter s;
+        try {
+            s = new Slipsheeter(historicalSetDirectory, currentSetDirectory, newDocumentSetDirectory, stampPDFLocation,
+                    Slipsheeter.createEngine(config.getDefaultEngine(), config.getScriptEnginePath()));
+        } catch (InstantiationException ie) {
+            resultText.textProperty().unbind();
+            resultText.setText("Error: " + ie.getMessage());
+            return;
+        }
+        s.setSheetMatcher(config.getSheetMatcher());
+        watcher = new SlipsheetWatcher(s, newDocumentSetDirectory);
+        Thread th = new Thread(watcher);
+        th.setDaemon(true);
+        th.start();
+        watchButton.setText("Stop watching");
+        slipsheetButton.disableProperty().unbind();
+        slipsheetButton.setDisable(true);
+        resultText.textProperty().unbind();
+        resultText.setText("Watching " + newDocumentSetDirectory.getAbsolutePath() + " for new documents...");
+    }
+
     private void configureFileChooser(final DirectoryChooser dirChooser, String title) {
         dirChooser.setTitle(title);
         File initialDirectory;
@@ -270,29 +415,31 @@ public class Slipsheet extends Application {
         return button;
     }
 
-    private Task<Integer> createPDFCountTask(final File directory) {
-        Task<Integer> task = new Task<Integer>() {
+    private Task<ScanSnapshot> createPDFCountTask(final File directory) {
+        Task<ScanSnapshot> task = new Task<ScanSnapshot>() {
 
             @Override
-            protected Integer call() throws Exception {
-                int i = 0;
-                File[] files = directory.listFiles(new PDFFileFilter());
+            protected ScanSnapshot call() throws Exception {
+                updateMessage(directory.getAbsolutePath() + " - searching...");
+                final TreeScanner scanner = new TreeScanner(SCAN_PARALLELISM);
+                // one update per refresh however many directories are listed in between
+                ScheduledExecutorService refresh = Executors.newSingleThreadScheduledExecutor();
+                refresh.scheduleAtFixedRate(new Runnable() {
 
-                if (files != null) {
-                    i = files.length;
-                    updateMessage("searching... "+directory.getAbsolutePath() + " - searching... found " + i + " PDFs");
-                }
-
-                File[] subDirs = directory.listFiles(new DirectoryFileFilter());
-                if (subDirs != null) {
-                    for (File sub : subDirs) {
-                        i += getPDFCount(sub);
-                    updateMessage(directory.getAbsolutePath() + " - searching... found " + i + " PDFs");
+                    @Override
+                    public void run() {
+                        updateMessage(directory.getAbsolutePath() + " - searching... " + scanner.getScannedPdfCount() + " PDFs so far");
                     }
+                }, PROGRESS_REFRESH_MILLIS, PROGRESS_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+                ScanSnapshot snapshot;
+                try {
+                    snapshot = scanner.scan(directory);
+                } finally {
+                    refresh.shutdownNow();
+                    refresh.awaitTermination(1, TimeUnit.SECONDS);
                 }
-
-                updateMessage(directory.getAbsolutePath() + " - found " + i + " PDFs");
-                return i;
+                updateMessage(directory.getAbsolutePath() + " - found " + snapshot.getPdfCount() + " PDFs");
+                return snapshot;
             }
 
         };
@@ -300,31 +447,24 @@ public class Slipsheet extends Application {
     }
 
     private void runPDFCount(File directory, Text countElement) {
-        Task<Integer> t = createPDFCountTask(directory);
+        final Task<ScanSnapshot> t = createPDFCountTask(directory);
+        t.setOnSucceeded(new EventHandler<WorkerStateEvent>() {
+
+            @Override
+            public void handle(WorkerStateEvent event) {
+                // keep the scan of the new document set so the run can reuse it
+                ScanSnapshot snapshot = t.getValue();
+                if (snapshot.getRoot().equals(newDocumentSetDirectory)) {
+                    newDocumentSetSnapshot = snapshot;
+                }
+            }
+        });
         Thread th = new Thread(t);
         th.setDaemon(true);
         th.start();
         countElement.textProperty().bind(t.messageProperty());
     }
 
-    private int getPDFCount(File directory) {
-        int i = 0;
-        File[] files = directory.listFiles(new PDFFileFilter());
-
-        if (files != null) {
-            i = files.length;
-        }
-
-        File[] subDirs = directory.listFiles(new DirectoryFileFilter());
-        if (subDirs != null) {
-            for (File sub : subDirs) {
-                i += getPDFCount(sub);
-            }
-        }
-
-        return i;
-    }
-
     /**
      * @param args the command line arguments
      */
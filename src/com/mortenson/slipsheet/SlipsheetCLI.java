@@ -0,0 +1,588 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.apache.log4j.Logger;
+
+/**
+ * Headless entry point for scheduled and server-side runs. Drives
+ * {@link Slipsheeter} directly without starting the JavaFX toolkit and writes a
+ * JSON report of every document's outcome.
+ *
+ * Exit status: 0 if every document was processed, 1 if some documents failed,
+ * 2 for invalid arguments and 3 if the run could not be started.
+ *
+ * @author jdegiova
+ */
+public class SlipsheetCLI {
+
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILURES = 1;
+    public static final int EXIT_USAGE = 2;
+    public static final int EXIT_ERROR = 3;
+    /** how long a shutdown waits for a watcher or queue worker to close */
+    private static final long SHUTDOWN_WAIT_MILLIS = 30000;
+
+    private static final Logger logger = Logger.getRootLogger();
+
+    private File historicalSet, currentSet, newDocumentSet, stampPDF;
+    private File report = new File("slipsheet-report.json");
+    private File planFile;
+    private File metricsFile = new File(SlipsheetMetrics.DEFAULT_FILE_NAME);
+    private File journalFile = new File(RunJournal.DEFAULT_FILE_NAME);
+    private String engine = Slipsheeter.ENGINE_PDFBOX;
+    private String scriptEngine;
+    private int parallelism = 1;
+    private int batchSize = 1;
+    private int timeoutSeconds;
+    private int lockRetries = -1;
+    private DocumentComparator.Mode compare = DocumentComparator.Mode.BYTES;
+    private boolean dryRun, watch, full, hardLinks, incrementalSave, compact, compactHistorical;
+    private final List<SlipsheetProfile> profiles = new ArrayList<>();
+    private int concurrentProjects = 4;
+    private String saveProfile;
+    private File queueDirectory;
+    private boolean enqueue;
+    private int unitSize = WorkQueue.DEFAULT_UNIT_SIZE;
+    private int leaseExpirySeconds;
+    private String match = SheetMatcher.EXACT;
+    private final List<String> revisionPatterns = new ArrayList<>();
+
+    private SlipsheetCLI() {
+        // created by main
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * @return the exit status
+     */
+    public static int run(String[] args) {
+        SlipsheetCLI cli = new SlipsheetCLI();
+        try {
+            cli.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            usage(System.err);
+            return EXIT_USAGE;
+        }
+        return cli.execute();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--historical":
+                    historicalSet = new File(value(args, ++i, arg));
+                    break;
+                case "--current":
+                    currentSet = new File(value(args, ++i, arg));
+                    break;
+                case "--new":
+                    newDocumentSet = new File(value(args, ++i, arg));
+                    break;
+                case "--stamp":
+                    stampPDF = new File(value(args, ++i, arg));
+                    break;
+                case "--engine":
+                    engine = value(args, ++i, arg);
+                    break;
+                case "--parallelism":
+                    parallelism = number(args, ++i, arg);
+                    break;
+                case "--batch-size":
+                    batchSize = number(args, ++i, arg);
+                    break;
+                case "--report":
+                    report = new File(value(args, ++i, arg));
+                    break;
+                case "--plan":
+                    planFile = new File(value(args, ++i, arg));
+                    break;
+                case "--dry-run":
+                    dryRun = true;
+                    break;
+                case "--watch":
+                    watch = true;
+                    break;
+                case "--full":
+                    full = true;
+                    break;
+                case "--hard-links":
+                    hardLinks = true;
+                    break;
+                case "--timeout":
+                    timeoutSeconds = number(args, ++i, arg);
+                    break;
+                case "--script-engine":
+                    scriptEngine = value(args, ++i, arg);
+                    break;
+                case "--compare":
+                    try {
+                        compare = DocumentComparator.Mode.valueOf(value(args, ++i, arg).toUpperCase(Locale.ROOT));
+                    } catch (IllegalArgumentException ex) {
+                        throw new IllegalArgumentException("--compare needs off, bytes or content");
+                    }
+                    break;
+                case "--metrics":
+                    metricsFile = new File(value(args, ++i, arg));
+                    break;
+                case "--journal":
+                    journalFile = new File(value(args, ++i, arg));
+                    break;
+                case "--lock-retries":
+                    lockRetries = number(args, ++i, arg);
+                    break;
+                case "--incremental-save":
+                    incrementalSave = true;
+                    break;
+                case "--compact":
+                    compact = true;
+                    break;
+                case "--compact-historical":
+                    compactHistorical = true;
+                    break;
+                case "--match":
+                    match = value(args, ++i, arg).toLowerCase(Locale.ROOT);
+                    if (!match.equals(SheetMatcher.EXACT) && !match.equals(SheetMatcher.NORMALIZED)) {
+                        throw new IllegalArgumentException("--match needs " + SheetMatcher.EXACT + " or " + SheetMatcher.NORMALIZED);
+                    }
+                    break;
+                case "--revision-pattern":
+                    String pattern = value(args, ++i, arg);
+                    try {
+                        Pattern.compile(pattern);
+                    } catch (PatternSyntaxException ex) {
+                        throw new IllegalArgumentException("--revision-pattern is not a valid regular expression: " + ex.getDescription());
+                    }
+                    revisionPatterns.add(pattern);
+                    match = SheetMatcher.NORMALIZED;
+                    break;
+                case "--queue":
+                    queueDirectory = new File(value(args, ++i, arg));
+                    break;
+                case "--enqueue":
+                    enqueue = true;
+                    break;
+                case "--unit-size":
+                    unitSize = Math.max(1, number(args, ++i, arg));
+                    break;
+                case "--lease-expiry":
+                    leaseExpirySeconds = number(args, ++i, arg);
+                    break;
+                case "--profile":
+                    String name = value(args, ++i, arg);
+                    SlipsheetProfile profile = SlipsheetConfig.getInstance().getProfile(name);
+                    if (profile == null) throw new IllegalArgumentException("unknown profile " + name);
+                    profiles.add(profile);
+                    break;
+                case "--projects":
+                    concurrentProjects = number(args, ++i, arg);
+                    break;
+                case "--save-profile":
+                    saveProfile = value(args, ++i, arg);
+                    if (!SlipsheetProfile.isValidName(saveProfile)) {
+                        throw new IllegalArgumentException("--save-profile needs a name of letters, digits, - and _");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        if (compactHistorical) {
+            requireDirectory(historicalSet, "--historical");
+            return;
+        }
+        if (!profiles.isEmpty()) {
+            if (watch || planFile != null || saveProfile != null) {
+                throw new IllegalArgumentException("--profile can not be combined with --watch, --plan or --save-profile");
+            }
+            return;
+        }
+        requireDirectory(historicalSet, "--historical");
+        requireDirectory(currentSet, "--current");
+        requireDirectory(newDocumentSet, "--new");
+        if (stampPDF == null || !stampPDF.isFile()) {
+            throw new IllegalArgumentException("--stamp must name an existing PDF");
+        }
+        if (incrementalSave && !Slipsheeter.ENGINE_PDFBOX.equalsIgnoreCase(engine)) {
+            throw new IllegalArgumentException("--incremental-save needs the " + Slipsheeter.ENGINE_PDFBOX + " engine");
+        }
+        if (compact && (incrementalSave || !Slipsheeter.ENGINE_PDFBOX.equalsIgnoreCase(engine))) {
+            throw new IllegalArgumentException("--compact needs the " + Slipsheeter.ENGINE_PDFBOX
+                    + " engine without --incremental-save, use --compact-historical otherwise");
+        }
+        if (queueDirectory != null && (watch || dryRun || planFile != null || saveProfile != null)) {
+            throw new IllegalArgumentException("--queue can not be combined with --watch, --dry-run, --plan or --save-profile");
+        }
+        if (enqueue && queueDirectory == null) {
+            throw new IllegalArgumentException("--enqueue needs --queue");
+        }
+        if (watch && dryRun) {
+            throw new IllegalArgumentException("--watch can not be combined with --dry-run");
+        }
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) throw new IllegalArgumentException(option + " needs a value");
+        return args[i];
+    }
+
+    private static int number(String[] args, int i, String option) {
+        try {
+            return Integer.parseInt(value(args, i, option));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(option + " needs a number");
+        }
+    }
+
+    private static void requireDirectory(File dir, String option) {
+        if (dir == null || !dir.isDirectory()) {
+            throw new IllegalArgumentException(option + " must name an existing directory");
+        }
+    }
+
+    private int execute() {
+        if (saveProfile != null) {
+            SlipsheetConfig config = SlipsheetConfig.getInstance();
+            config.putProfile(new SlipsheetProfile(saveProfile, historicalSet, currentSet, newDocumentSet, stampPDF, engine));
+            config.saveConfigFile();
+            logger.info("Saved profile " + saveProfile);
+            return EXIT_OK;
+        }
+        if (compactHistorical) {
+            HistoricalCompactor compactor = new HistoricalCompactor();
+            compactor.compactAll(historicalSet, parallelism);
+            return compactor.getFailedCount() > 0 ? EXIT_FAILURES : EXIT_OK;
+        }
+        if (!profiles.isEmpty()) {
+            return executeProfiles();
+        }
+        if (queueDirectory != null) {
+            return executeQueue();
+        }
+        Slipsheeter s;
+        try {
+            s = new Slipsheeter(historicalSet, currentSet, newDocumentSet, stampPDF, createEngine(engine));
+        } catch (InstantiationException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            return EXIT_ERROR;
+        }
+        configure(s);
+        s.setMetricsFile(metricsFile);
+        s.setJournalFile(journalFile);
+
+        if (watch) {
+            final Slipsheeter slipsheeter = s;
+            final SlipsheetWatcher watcher = new SlipsheetWatcher(s, newDocumentSet);
+            return runUntilStopped("watcher", new Callable<Integer>() {
+
+                @Override
+                public Integer call() {
+                    watcher.run();
+                    return writeResults(slipsheeter);
+                }
+            }, new Runnable() {
+
+                @Override
+                public void run() {
+                    watcher.stop();
+                }
+            });
+        }
+        try {
+            s.start();
+        } catch (RuntimeException ex) {
+            logger.error("Slipsheet run failed", ex);
+            return EXIT_ERROR;
+        }
+        return writeResults(s);
+    }
+
+    /**
+     * Writes the plan, if asked for, and the report of a finished run.
+     *
+     * @return the exit status for the run
+     */
+    private int writeResults(Slipsheeter s) {
+        if (planFile != null && s.getPlan() != null) {
+            try {
+                s.getPlan().writeJson(planFile);
+                logger.info("Wrote plan to " + planFile.getAbsolutePath());
+            } catch (IOException ex) {
+                logger.error("Unable to write plan " + planFile + ": " + ex);
+            }
+        }
+
+        RunReport runReport = s.getReport();
+        try {
+            runReport.writeJson(report);
+            logger.info("Wrote report to " + report.getAbsolutePath());
+        } catch (IOException ex) {
+            logger.error("Unable to write report " + report + ": " + ex);
+        }
+        return runReport.hasFailures() ? EXIT_FAILURES : EXIT_OK;
+    }
+
+    /**
+     * Runs a long-running task, a watcher or a queue worker, on a thread of
+     * its own. A shutdown, Ctrl-C or a kill, stops the task and waits up to
+     * {@link #SHUTDOWN_WAIT_MILLIS} for it to finish, so the run closes its
+     * state files and writes its report before the JVM exits.
+     *
+     * @return the status returned by the task, or {@link #EXIT_ERROR} if it
+     * failed
+     */
+    private static int runUntilStopped(final String name, final Callable<Integer> task, final Runnable stop) {
+        final AtomicInteger status = new AtomicInteger(EXIT_ERROR);
+        final Thread runner = new Thread(name) {
+
+            @Override
+            public void run() {
+                try {
+                    status.set(task.call());
+                } catch (Exception ex) {
+                    logger.error("The " + name + " failed", ex);
+                }
+            }
+        };
+        Thread hook = new Thread() {
+
+            @Override
+            public void run() {
+                stop.run();
+                try {
+                    runner.join(SHUTDOWN_WAIT_MILLIS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                if (runner.isAlive()) {
+                    logger.warn("The " + name + " did not finish within " + SHUTDOWN_WAIT_MILLIS + " ms of the shutdown");
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(hook);
+        runner.start();
+        try {
+            runner.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            stop.run();
+            return EXIT_ERROR;
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException ex) {
+            // already shutting down, the hook is running
+        }
+        return status.get();
+    }
+
+    /**
+     * Runs the profiles side by side, sharing --parallelism engine workers.
+     * Every profile's report goes to its state directory.
+     */
+    private int executeProfiles() {
+        ProjectScheduler scheduler = new ProjectScheduler(parallelism, concurrentProjects);
+        Map<SlipsheetProfile, Future<RunReport>> runs = new LinkedHashMap<>();
+        int status = EXIT_OK;
+        try {
+            for (SlipsheetProfile profile : profiles) {
+                Slipsheeter s = profile.createSlipsheeter(createEngine(profile.getEngine()));
+                configure(s);
+                runs.put(profile, scheduler.submit(profile.getName(), s));
+            }
+        } catch (InstantiationException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            status = EXIT_ERROR;
+        }
+        for (Map.Entry<SlipsheetProfile, Future<RunReport>> run : runs.entrySet()) {
+            File profileReport = new File(run.getKey().getStateDirectory(), report.getName());
+            try {
+                RunReport runReport = run.getValue().get();
+                runReport.writeJson(profileReport);
+                logger.info("Wrote report of " + run.getKey().getName() + " to " + profileReport.getAbsolutePath());
+                if (runReport.hasFailures() && status == EXIT_OK) status = EXIT_FAILURES;
+            } catch (ExecutionException ex) {
+                logger.error("Profile " + run.getKey().getName() + " failed", ex.getCause());
+                status = EXIT_ERROR;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                status = EXIT_ERROR;
+                break;
+            } catch (IOException ex) {
+                logger.error("Unable to write report " + profileReport + ": " + ex);
+            }
+        }
+        scheduler.shutdown();
+        return status;
+    }
+
+    /**
+     * Works as one of any number of workers sharing the queue directory. The
+     * worker's state and report go to its directory in the queue.
+     */
+    private int executeQueue() {
+        final QueueWorker worker;
+        final WorkQueue queue;
+        final Slipsheeter slipsheeter;
+        try {
+            queue = new WorkQueue(queueDirectory, WorkQueue.defaultWorkerId());
+            if (leaseExpirySeconds > 0) {
+                queue.setLeaseExpiryMillis(leaseExpirySeconds * 1000L);
+            }
+            if (enqueue) {
+                ScanSnapshot snapshot = new TreeScanner(parallelism).scan(newDocumentSet);
+                logger.info("Queued " + queue.enqueue(snapshot, unitSize) + " units of " + snapshot.getPdfCount() + " documents");
+            }
+            Slipsheeter s = new Slipsheeter(historicalSet, currentSet, newDocumentSet, stampPDF, createEngine(engine));
+            configure(s);
+            s.setStateDirectory(queue.getWorkerDirectory());
+            worker = new QueueWorker(queue, s, newDocumentSet);
+            worker.setPollMillis(Math.min(QueueWorker.DEFAULT_POLL_MILLIS, queue.getLeaseExpiryMillis() / 4));
+            slipsheeter = s;
+        } catch (InstantiationException | IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            return EXIT_ERROR;
+        }
+        return runUntilStopped("queue worker", new Callable<Integer>() {
+
+            @Override
+            public Integer call() {
+                try {
+                    worker.run();
+                    File workerReport = new File(queue.getWorkerDirectory(), report.getName());
+                    slipsheeter.getReport().writeJson(workerReport);
+                    logger.info("Wrote report to " + workerReport.getAbsolutePath());
+                    return slipsheeter.getReport().hasFailures() ? EXIT_FAILURES : EXIT_OK;
+                } catch (IOException ex) {
+                    System.err.println("Error: " + ex.getMessage());
+                    return EXIT_ERROR;
+                }
+            }
+        }, new Runnable() {
+
+            @Override
+            public void run() {
+                worker.stop();
+            }
+        });
+    }
+
+    private SlipsheetEngine createEngine(String name) throws InstantiationException {
+        SlipsheetEngine slipsheetEngine = Slipsheeter.createEngine(name, scriptEngine);
+        if (slipsheetEngine instanceof PDFBoxSlipsheetEngine) {
+            ((PDFBoxSlipsheetEngine) slipsheetEngine).setIncrementalSave(incrementalSave);
+            ((PDFBoxSlipsheetEngine) slipsheetEngine).setCompact(compact);
+        }
+        if (slipsheetEngine instanceof BluebeamSlipsheetEngine && timeoutSeconds > 0) {
+            ((BluebeamSlipsheetEngine) slipsheetEngine).setTimeoutMillis(timeoutSeconds * 1000L);
+        }
+        return slipsheetEngine;
+    }
+
+    private void configure(Slipsheeter s) {
+        s.setParallelism(parallelism);
+        s.setScanParallelism(parallelism);
+        s.setBatchSize(batchSize);
+        s.setDryRun(dryRun);
+        s.setIncremental(!full);
+        s.setAllowHardLinks(hardLinks);
+        s.setIdenticalCheck(compare);
+        if (revisionPatterns.isEmpty()) {
+            s.setSheetMatcher(SheetMatcher.forName(match));
+        } else {
+            s.setSheetMatcher(SheetMatcher.normalized(revisionPatterns));
+        }
+        if (lockRetries >= 0) {
+            s.setLockRetry(lockRetries, 5000);
+        }
+    }
+
+    private static void usage(PrintStream out) {
+        out.println("usage: java -cp Slipsheet.jar " + SlipsheetCLI.class.getName() + " [options]");
+        out.println("  --historical <dir>   historical set (required without --profile)");
+        out.println("  --current <dir>      current set (required without --profile)");
+        out.println("  --new <dir>          new document set (required without --profile)");
+        out.println("  --stamp <pdf>        superseded stamp (required without --profile)");
+        out.println("  --profile <name>     run a profile saved in slipsheet.cfg, repeat to run several");
+        out.println("                       projects sharing --parallelism engine workers");
+        out.println("  --projects <n>       profiles running at the same time (default 4)");
+        out.println("  --save-profile <name>");
+        out.println("                       save the sets, stamp and engine as a profile and exit");
+        out.println("  --engine <name>      " + Slipsheeter.ENGINE_PDFBOX + " (default) or " + Slipsheeter.ENGINE_BLUEBEAM);
+        out.println("  --script-engine <exe>");
+        out.println("                       Bluebeam ScriptEngine to run instead of the installed one");
+        out.println("  --parallelism <n>    number of slipsheet workers (default 1)");
+        out.println("  --batch-size <n>     documents per engine run (default 1)");
+        out.println("  --timeout <seconds>  time ScriptEngine may take per document before it is");
+        out.println("                       killed and retried (" + Slipsheeter.ENGINE_BLUEBEAM + ", default "
+                + BluebeamSlipsheetEngine.DEFAULT_TIMEOUT_MILLIS / 1000 + "); a batch gets "
+                + BluebeamSlipsheetEngine.DEFAULT_LAUNCH_TIMEOUT_MILLIS / 1000 + " s more to start");
+        out.println("                       and at most " + BluebeamSlipsheetEngine.MAX_BATCH_TIMEOUT_MILLIS / 60000 + " minutes in all");
+        out.println("  --lock-retries <n>   how often to retry documents open elsewhere, waiting");
+        out.println("                       5 s and then twice as long each time (default 5)");
+        out.println("  --report <file>      JSON report (default slipsheet-report.json)");
+        out.println("  --metrics <file>     stage timings and counters, CSV if the name ends with");
+        out.println("                       .csv, JSON otherwise (default " + SlipsheetMetrics.DEFAULT_FILE_NAME + ")");
+        out.println("  --journal <file>     event journal, appended to (default " + RunJournal.DEFAULT_FILE_NAME + ")");
+        out.println("  --plan <file>        write the planned operations and estimate as JSON");
+        out.println("  --dry-run            only plan, don't touch any file");
+        out.println("  --compare <mode>     skip documents identical to the current set: off, bytes");
+        out.println("                       (default) or content to compare what the pages draw");
+        out.println("  --match <mode>       pair new and historical documents by exact name (default)");
+        out.println("                       or normalized sheet number: case, separators and revision");
+        out.println("                       suffixes such as \"Rev 3\" or \"_r4\" are ignored");
+        out.println("  --revision-pattern <regex>");
+        out.println("                       revision suffix to strip instead of the defaults, repeatable;");
+        out.println("                       implies --match normalized");
+        out.println("  --queue <dir>        work as one of several workers, on this or other machines,");
+        out.println("                       sharing the queue directory; each claims units of documents");
+        out.println("  --enqueue            first queue the new document set (--queue)");
+        out.println("  --unit-size <n>      documents per unit (default " + WorkQueue.DEFAULT_UNIT_SIZE + ")");
+        out.println("  --lease-expiry <seconds>");
+        out.println("                       take over units of workers silent this long (default "
+                + WorkQueue.DEFAULT_LEASE_EXPIRY_MILLIS / 1000 + ")");
+        out.println("  --full               process documents even if they are unchanged");
+        out.println("  --hard-links         hard link new documents into the current set when");
+        out.println("                       it is on the same volume as the historical set");
+        out.println("  --incremental-save   append the new page to historical files as an");
+        out.println("                       incremental update instead of rewriting them (" + Slipsheeter.ENGINE_PDFBOX + ")");
+        out.println("  --compact            share the fonts, images and forms repeated by earlier");
+        out.println("                       revisions when saving historical files (" + Slipsheeter.ENGINE_PDFBOX + ")");
+        out.println("  --compact-historical compact every file of the historical set, skipping files");
+        out.println("                       open elsewhere, and exit; only needs --historical");
+        out.println("  --watch              keep running and process documents as they arrive");
+    }
+}
@@ -21,50 +21,148 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import org.apache.log4j.Logger;
 
 /**
+ * The settings kept in slipsheet.cfg: the defaults of the window and the
+ * named project profiles. Safe to use from several threads. Changes are kept
+ * in memory and written together shortly after, replacing the file in one
+ * move so a crash never leaves it half written.
  *
  * @author jdegiova
  */
 public final class SlipsheetConfig {
     
     private static SlipsheetConfig instance = null;
-    private Properties config;
-    private File configFile;
+    private final Properties config;
+    private final File configFile;
     public static final String HIST_KEY = "DefaultHistoricalSet";
     public static final String CURR_KEY = "DefaultCurrentSet";
     public static final String NEW_DOC_KEY = "DefaultNewDocumentSet";
     public static final String STAMP_KEY = "DefaultPDFStamp";
+    public static final String ENGINE_KEY = "DefaultEngine";
+    public static final String SCRIPT_ENGINE_KEY = "ScriptEnginePath";
+    public static final String SHEET_MATCHING_KEY = "SheetMatching";
+    /** profile keys are Profile.&lt;name&gt;.&lt;suffix&gt; */
+    public static final String PROFILE_PREFIX = "Profile.";
+    private static final String PROFILE_HIST = ".HistoricalSet";
+    private static final String PROFILE_CURR = ".CurrentSet";
+    private static final String PROFILE_NEW_DOC = ".NewDocumentSet";
+    private static final String PROFILE_STAMP = ".PDFStamp";
+    private static final String PROFILE_ENGINE = ".Engine";
+    /** how long changes are collected before they are written */
+    private static final long SAVE_DELAY_MILLIS = 500;
     private static final String userHome = System.getProperty("user.home");
     private final Logger logger = Logger.getRootLogger();
+    private final ScheduledExecutorService saver;
+    private final Object saveLock = new Object();
+    private boolean dirty;
+    private boolean saveScheduled;
     
     private SlipsheetConfig(){
         configFile = new File("slipsheet.cfg");
         config = new Properties();
+        saver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "config saver");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            
+            @Override
+            public void run() {
+                saveIfDirty();
+            }
+        });
         
         try(FileReader fr = new FileReader(configFile)){
             config.load(fr);
-            fr.close();
         } catch (FileNotFoundException ex) {
             logger.info(ex.getMessage()+"\nCould not find config file. Attempting to create one...");
-            saveConfigFile();
+            changed();
         } catch (IOException ex) {
             logger.error("Unable to load config file\n" + ex.getMessage());
         }
     }
     
+    /**
+     * Writes the configuration now, to a temporary file that then replaces
+     * slipsheet.cfg.
+     */
     public void saveConfigFile(){
-        try(FileWriter fw = new FileWriter(configFile)){
-            config.store(fw, "Configuration Properties for Slippy 3000");
-            fw.close();
+        // one save at a time, so an older snapshot can't replace a newer one
+        synchronized(saveLock){
+            save();
+        }
+    }
+    
+    private void save(){
+        Properties snapshot = new Properties();
+        synchronized(this){
+            snapshot.putAll(config);
+            dirty = false;
+        }
+        File temp = null;
+        try {
+            temp = File.createTempFile("slipsheet", ".cfg", configFile.getAbsoluteFile().getParentFile());
+            try(FileWriter fw = new FileWriter(temp)){
+                snapshot.store(fw, "Configuration Properties for Slippy 3000");
+            }
+            try {
+                Files.move(temp.toPath(), configFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp.toPath(), configFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
         } catch (IOException ex) {
             logger.error("Unable to save config file");
             logger.error(ex.getMessage());
+            if(temp!=null) temp.delete();
+            synchronized(this){
+                dirty = true;
+            }
         }
     }
     
+    private void saveIfDirty(){
+        synchronized(this){
+            saveScheduled = false;
+            if(!dirty) return;
+        }
+        saveConfigFile();
+    }
+    
+    /**
+     * Marks the configuration changed; it is written once the changes of the
+     * next moment have been collected.
+     */
+    private synchronized void changed(){
+        dirty = true;
+        if(saveScheduled) return;
+        saveScheduled = true;
+        saver.schedule(new Runnable() {
+            
+            @Override
+            public void run() {
+                saveIfDirty();
+            }
+        }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
     public String getDefaultHistoricalSet(){
         return getKeyOrUserHome(HIST_KEY);
     }
@@ -81,11 +179,41 @@ public final class SlipsheetConfig {
         return getKeyOrUserHome(STAMP_KEY);
     }
     
+    public String getDefaultEngine(){
+        return getKeyOrDefault(ENGINE_KEY, Slipsheeter.ENGINE_BLUEBEAM);
+    }
+    
+    /**
+     * @return the Bluebeam ScriptEngine executable, or an empty string to
+     * look for the local installation
+     */
+    public String getScriptEnginePath(){
+        return config.getProperty(SCRIPT_ENGINE_KEY, "");
+    }
+    
+    /**
+     * @return the sheet matcher named by SheetMatching, exact if it is not
+     * set or unknown
+     */
+    public SheetMatcher getSheetMatcher(){
+        String name = config.getProperty(SHEET_MATCHING_KEY, SheetMatcher.EXACT);
+        try {
+            return SheetMatcher.forName(name);
+        } catch (IllegalArgumentException ex) {
+            logger.error(ex.getMessage()+". Matching exact file names");
+            return SheetMatcher.exact();
+        }
+    }
+    
     private String getKeyOrUserHome(String key){
+        return getKeyOrDefault(key, userHome);
+    }
+    
+    private synchronized String getKeyOrDefault(String key, String defaultValue){
         if(!config.containsKey(key) || config.getProperty(key).equals("")){
-            logger.info("Unable to find property "+key+". Defaulting to "+userHome);
-            config.put(key, userHome);
-            saveConfigFile();
+            logger.info("Unable to find property "+key+". Defaulting to "+defaultValue);
+            config.put(key, defaultValue);
+            changed();
         }
         return config.getProperty(key);
     }
@@ -106,14 +234,78 @@ public final class SlipsheetConfig {
         return setKeyOrUserHome(STAMP_KEY,value);
     }
     
-    private String setKeyOrUserHome(String key,String value){
+    public String setDefaultEngine(String value){
+        return setKeyOrUserHome(ENGINE_KEY,value);
+    }
+    
+    public String setScriptEnginePath(String value){
+        return setKeyOrUserHome(SCRIPT_ENGINE_KEY,value);
+    }
+    
+    private synchronized String setKeyOrUserHome(String key,String value){
         logger.debug("Setting "+key+" to "+value);
         config.put(key, value);
-        saveConfigFile();
+        changed();
         return config.getProperty(key);
     }
     
-    public static SlipsheetConfig getInstance(){
+    /**
+     * @return the names of the saved profiles, sorted
+     */
+    public synchronized List<String> getProfileNames(){
+        List<String> names = new ArrayList<>();
+        for(String key:config.stringPropertyNames()){
+            if(key.startsWith(PROFILE_PREFIX) && key.endsWith(PROFILE_HIST)){
+                names.add(key.substring(PROFILE_PREFIX.length(), key.length()-PROFILE_HIST.length()));
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+    
+    /**
+     * @return the profile with the given name, or null if there is none
+     */
+    public synchronized SlipsheetProfile getProfile(String name){
+        String key = PROFILE_PREFIX+name;
+        if(!config.containsKey(key+PROFILE_HIST)) return null;
+        return new SlipsheetProfile(name,
+                new File(config.getProperty(key+PROFILE_HIST)),
+                new File(config.getProperty(key+PROFILE_CURR, userHome)),
+                new File(config.getProperty(key+PROFILE_NEW_DOC, userHome)),
+                new File(config.getProperty(key+PROFILE_STAMP, userHome)),
+                config.getProperty(key+PROFILE_ENGINE, Slipsheeter.ENGINE_BLUEBEAM));
+    }
+    
+    /**
+     * Adds or replaces a profile.
+     */
+    public synchronized void putProfile(SlipsheetProfile profile){
+        String key = PROFILE_PREFIX+profile.getName();
+        logger.debug("Saving profile "+profile);
+        config.put(key+PROFILE_HIST, profile.getHistoricalSet().getPath());
+        config.put(key+PROFILE_CURR, profile.getCurrentSet().getPath());
+        config.put(key+PROFILE_NEW_DOC, profile.getNewDocumentSet().getPath());
+        config.put(key+PROFILE_STAMP, profile.getStampPDF().getPath());
+        config.put(key+PROFILE_ENGINE, profile.getEngine());
+        changed();
+    }
+    
+    /**
+     * @return true if there was a profile with the given name
+     */
+    public synchronized boolean removeProfile(String name){
+        String key = PROFILE_PREFIX+name;
+        if(config.remove(key+PROFILE_HIST)==null) return false;
+        config.remove(key+PROFILE_CURR);
+        config.remove(key+PROFILE_NEW_DOC);
+        config.remove(key+PROFILE_STAMP);
+        config.remove(key+PROFILE_ENGINE);
+        changed();
+        return true;
+    }
+    
+    public static synchronized SlipsheetConfig getInstance(){
         if (instance == null){
             instance = new SlipsheetConfig();
         }
@@ -0,0 +1,53 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Performs the actual slipsheet of a historical document: the current pages
+ * named by the job's {@link PageAlignment} are kept and stamped as superseded,
+ * the pages of the latest document take the place of the current pages in
+ * front of them and the current set file is replaced with the latest pages.
+ *
+ * @author jdegiova
+ */
+public interface SlipsheetEngine {
+
+    /**
+     * @return a short name used in log messages
+     */
+    String getName();
+
+    void slipsheet(SlipsheetJob job) throws IOException;
+
+    /**
+     * Slipsheets several documents in one go. A document that could not be
+     * slipsheeted is marked with {@link SlipsheetJob#setFailure(String)}; the
+     * remaining documents are still processed.
+     */
+    void slipsheet(List<SlipsheetJob> jobs);
+
+    /**
+     * Gives the engine the metrics of the run to record its own stages in.
+     * Engines without stages of their own can ignore it.
+     */
+    default void setMetrics(SlipsheetMetrics metrics) {
+        // nothing to record
+    }
+}
@@ -0,0 +1,130 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+
+/**
+ * A single slipsheet operation: the latest revision of a document, the
+ * historical and current set files it supersedes, and the stamp to apply.
+ *
+ * @author jdegiova
+ */
+public class SlipsheetJob {
+
+    private final File latest, historical, current, stampPDF;
+    private final String relativePath;
+    private volatile String failure;
+    private volatile PageAlignment alignment;
+    private volatile long historicalBytesBefore = -1, historicalBytesAfter = -1;
+
+    public SlipsheetJob(File latest, File historical, File current, File stampPDF) {
+        this(latest, historical, current, stampPDF, latest.getName());
+    }
+
+    /**
+     * @param relativePath the path of the latest document relative to the new
+     * document set
+     */
+    public SlipsheetJob(File latest, File historical, File current, File stampPDF, String relativePath) {
+        this.relativePath = relativePath;
+        this.latest = latest;
+        this.historical = historical;
+        this.current = current;
+        this.stampPDF = stampPDF;
+    }
+
+    public File getLatest() {
+        return latest;
+    }
+
+    public File getHistorical() {
+        return historical;
+    }
+
+    public File getCurrent() {
+        return current;
+    }
+
+    public File getStampPDF() {
+        return stampPDF;
+    }
+
+    public String getRelativePath() {
+        return relativePath;
+    }
+
+    /**
+     * @param alignment which current pages the latest document supersedes
+     */
+    public void setAlignment(PageAlignment alignment) {
+        this.alignment = alignment;
+    }
+
+    /**
+     * @return which current pages the latest document supersedes; a single
+     * sheet if the pages were never aligned
+     */
+    public PageAlignment getAlignment() {
+        return alignment == null ? PageAlignment.singlePage() : alignment;
+    }
+
+    /**
+     * Marks this job as failed. Used by engines that process several jobs at
+     * once so a failure can be attributed to the document that caused it.
+     */
+    public void setFailure(String failure) {
+        this.failure = failure;
+    }
+
+    public String getFailure() {
+        return failure;
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Records the size of the historical file before and after the slipsheet.
+     */
+    public void setHistoricalSize(long before, long after) {
+        this.historicalBytesBefore = before;
+        this.historicalBytesAfter = after;
+    }
+
+    /**
+     * @return the size of the historical file before the slipsheet, or -1 if
+     * the engine did not record it
+     */
+    public long getHistoricalBytesBefore() {
+        return historicalBytesBefore;
+    }
+
+    /**
+     * @return the size of the historical file after the slipsheet, or -1 if
+     * the engine did not record it
+     */
+    public long getHistoricalBytesAfter() {
+        return historicalBytesAfter;
+    }
+
+    @Override
+    public String toString() {
+        return latest.getName();
+    }
+}
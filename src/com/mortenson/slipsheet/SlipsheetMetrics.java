@@ -0,0 +1,333 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings and counters of a run, broken down by stage so it's visible where
+ * the time goes: listing directories, probing locks, writing scripts,
+ * launching the engine or copying. Every stage keeps a latency histogram with
+ * power-of-two buckets, from which percentiles are read.
+ *
+ * Recording is lock free, so the workers can record concurrently and the GUI
+ * can take a snapshot at any time. At the end of a run the metrics are
+ * exported as JSON or CSV.
+ *
+ * @author jdegiova
+ */
+public class SlipsheetMetrics {
+
+    public static final String DEFAULT_FILE_NAME = "slipsheet-metrics.json";
+
+    public enum Stage {
+        /** listing the new document set */
+        SCAN,
+        /** matching new documents against the historical set */
+        PLAN,
+        /** comparing matched documents with the current set */
+        COMPARE,
+        /** lining up the pages of new documents with the current set */
+        PAGE_ALIGN,
+        /** probing historical and current set files for locks */
+        LOCK_PROBE,
+        MKDIR,
+        /** placing a new document into the historical and current set */
+        COPY,
+        /** writing a Bluebeam script */
+        SCRIPT_WRITE,
+        /** one ScriptEngine run */
+        ENGINE_LAUNCH,
+        /** loading the PDFs of one document with PDFBox */
+        PDF_LOAD,
+        /** saving the PDFs of one document with PDFBox */
+        PDF_SAVE,
+        /** sharing the resources of a historical file before it is saved */
+        COMPACT,
+        /** one batch handed to the engine */
+        SLIPSHEET,
+        /** saving the historical index */
+        INDEX_SAVE
+    }
+
+    public enum Counter {
+        /** new documents with a match in the historical set */
+        MATCHED,
+        SLIPSHEETED,
+        COPIED,
+        SKIPPED,
+        /** matched documents identical to the current set */
+        IDENTICAL,
+        FAILED,
+        LOCKED,
+        /** bytes written by copies, leaving out clones and hard links */
+        BYTES_COPIED,
+        /** copies placed as a copy-on-write clone */
+        CLONED,
+        /** copies placed as a hard link */
+        LINKED,
+        ENGINE_LAUNCHES,
+        BATCHES
+    }
+
+    // bucket i holds durations below 2^i microseconds
+    private static final int BUCKETS = 40;
+
+    private final Map<Stage, Timer> timers = new EnumMap<>(Stage.class);
+    private final Map<Counter, AtomicLong> counters = new EnumMap<>(Counter.class);
+    private final long startNanos = System.nanoTime();
+
+    public SlipsheetMetrics() {
+        // the maps are filled once and only read afterwards
+        for (Stage stage : Stage.values()) {
+            timers.put(stage, new Timer());
+        }
+        for (Counter counter : Counter.values()) {
+            counters.put(counter, new AtomicLong());
+        }
+    }
+
+    /**
+     * Records one run of a stage.
+     */
+    public void record(Stage stage, long nanos) {
+        timers.get(stage).record(nanos);
+    }
+
+    /**
+     * Records one run of a stage that started at the given
+     * {@link System#nanoTime()}.
+     */
+    public void recordSince(Stage stage, long beginNanos) {
+        record(stage, System.nanoTime() - beginNanos);
+    }
+
+    public void increment(Counter counter) {
+        counters.get(counter).incrementAndGet();
+    }
+
+    public void add(Counter counter, long delta) {
+        counters.get(counter).addAndGet(delta);
+    }
+
+    public long get(Counter counter) {
+        return counters.get(counter).get();
+    }
+
+    /**
+     * @return the statistics of every stage that has run at least once
+     */
+    public List<StageStats> getStages() {
+        List<StageStats> stages = new ArrayList<>();
+        for (Stage stage : Stage.values()) {
+            StageStats stats = timers.get(stage).stats(stage);
+            if (stats.getCount() > 0) stages.add(stats);
+        }
+        return Collections.unmodifiableList(stages);
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    /**
+     * @return a one line summary for showing progress
+     */
+    public String getSummary() {
+        long elapsed = Math.max(1, getElapsedMillis());
+        long done = get(Counter.SLIPSHEETED) + get(Counter.COPIED);
+        return String.format(Locale.ROOT, "%d slipsheeted, %d copied, %d skipped, %d failed, %d locked, %.1f MB copied, "
+                + "%d engine launches, %.1f documents/s",
+                get(Counter.SLIPSHEETED), get(Counter.COPIED), get(Counter.SKIPPED), get(Counter.FAILED), get(Counter.LOCKED),
+                get(Counter.BYTES_COPIED) / 1048576.0, get(Counter.ENGINE_LAUNCHES), done * 1000.0 / elapsed);
+    }
+
+    /**
+     * Writes the metrics as CSV if the file name ends with .csv, as JSON
+     * otherwise.
+     */
+    public void write(File file) throws IOException {
+        if (file.getName().toLowerCase(Locale.ROOT).endsWith(".csv")) {
+            writeCsv(file);
+        } else {
+            writeJson(file);
+        }
+    }
+
+    public void writeJson(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.println("  \"elapsedMillis\": " + getElapsedMillis() + ",");
+            out.println("  \"counters\": {");
+            Counter[] all = Counter.values();
+            for (int i = 0; i < all.length; i++) {
+                out.println("    " + Json.quote(all[i].name()) + ": " + get(all[i]) + (i < all.length - 1 ? "," : ""));
+            }
+            out.println("  },");
+            out.println("  \"stages\": [");
+            List<StageStats> stages = getStages();
+            for (int i = 0; i < stages.size(); i++) {
+                StageStats s = stages.get(i);
+                StringBuilder histogram = new StringBuilder();
+                for (int b = 0; b < BUCKETS; b++) {
+                    if (s.histogram[b] == 0) continue;
+                    if (histogram.length() > 0) histogram.append(", ");
+                    histogram.append("{\"belowMicros\": ").append(1L << b).append(", \"count\": ").append(s.histogram[b]).append('}');
+                }
+                out.println("    {\"stage\": " + Json.quote(s.stage.name())
+                        + ", \"count\": " + s.count
+                        + ", \"totalMillis\": " + format(s.getTotalMillis())
+                        + ", \"meanMillis\": " + format(s.getMeanMillis())
+                        + ", \"maxMillis\": " + format(s.getMaxMillis())
+                        + ", \"p50Millis\": " + format(s.getPercentileMillis(50))
+                        + ", \"p95Millis\": " + format(s.getPercentileMillis(95))
+                        + ", \"p99Millis\": " + format(s.getPercentileMillis(99))
+                        + ", \"histogram\": [" + histogram + "]}"
+                        + (i < stages.size() - 1 ? "," : ""));
+            }
+            out.println("  ]");
+            out.println("}");
+            if (out.checkError()) throw new IOException("error writing " + file);
+        }
+    }
+
+    /**
+     * Writes one row per stage and one per counter; counters have their
+     * value in the count column.
+     */
+    public void writeCsv(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            out.println("type,name,count,total_ms,mean_ms,max_ms,p50_ms,p95_ms,p99_ms");
+            for (StageStats s : getStages()) {
+                out.println("stage," + s.stage.name() + "," + s.count
+                        + "," + format(s.getTotalMillis()) + "," + format(s.getMeanMillis()) + "," + format(s.getMaxMillis())
+                        + "," + format(s.getPercentileMillis(50)) + "," + format(s.getPercentileMillis(95))
+                        + "," + format(s.getPercentileMillis(99)));
+            }
+            for (Counter counter : Counter.values()) {
+                out.println("counter," + counter.name() + "," + get(counter) + ",,,,,,");
+            }
+            if (out.checkError()) throw new IOException("error writing " + file);
+        }
+    }
+
+    private static String format(double millis) {
+        return String.format(Locale.ROOT, "%.3f", millis);
+    }
+
+    /**
+     * A copy of the statistics of one stage.
+     */
+    public static final class StageStats {
+
+        private final Stage stage;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long[] histogram;
+
+        private StageStats(Stage stage, long count, long totalNanos, long maxNanos, long[] histogram) {
+            this.stage = stage;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.histogram = histogram;
+        }
+
+        public Stage getStage() {
+            return stage;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getTotalMillis() {
+            return totalNanos / 1e6;
+        }
+
+        public double getMeanMillis() {
+            return count == 0 ? 0 : totalNanos / 1e6 / count;
+        }
+
+        public double getMaxMillis() {
+            return maxNanos / 1e6;
+        }
+
+        /**
+         * @return the upper bound of the histogram bucket holding the
+         * percentile, so at most twice the real value
+         */
+        public double getPercentileMillis(double percentile) {
+            long total = 0;
+            for (long bucket : histogram) {
+                total += bucket;
+            }
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int b = 0; b < histogram.length; b++) {
+                seen += histogram[b];
+                if (seen >= rank) return Math.min((1L << b) / 1e3, getMaxMillis());
+            }
+            return getMaxMillis();
+        }
+    }
+
+    private static final class Timer {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        private void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            count.increment();
+            totalNanos.add(nanos);
+            long max;
+            while ((max = maxNanos.get()) < nanos && !maxNanos.compareAndSet(max, nanos)) {
+                // retry
+            }
+            long micros = nanos / 1000;
+            int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+            histogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        }
+
+        private StageStats stats(Stage stage) {
+            long[] buckets = new long[BUCKETS];
+            for (int b = 0; b < BUCKETS; b++) {
+                buckets[b] = histogram.get(b);
+            }
+            return new StageStats(stage, count.sum(), totalNanos.sum(), maxNanos.get(), buckets);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything a run will do, worked out before any file is touched: the
+ * directories to create, the documents to copy and the documents to
+ * slipsheet, with their sizes and an estimate of the duration.
+ *
+ * @author jdegiova
+ */
+public final class SlipsheetPlan {
+
+    private final List<PlannedOperation> operations;
+    private final List<String> unchanged;
+    private final List<AmbiguousMatch> ambiguous;
+    private final Map<PlannedOperation.Type, Integer> counts = new EnumMap<>(PlannedOperation.Type.class);
+    private final Map<PlannedOperation.Type, Long> bytes = new EnumMap<>(PlannedOperation.Type.class);
+    private long estimatedMillis;
+
+    /**
+     * A new document that matches more than one historical document, or a
+     * historical document another new document of the same run already
+     * supersedes. It is reported as failed rather than slipsheeted into a
+     * guess.
+     */
+    public static final class AmbiguousMatch {
+
+        private final String relativePath;
+        private final File source;
+        private final List<String> candidates;
+        private final String claimedBy;
+
+        AmbiguousMatch(String relativePath, File source, List<String> candidates) {
+            this(relativePath, source, candidates, null);
+        }
+
+        /**
+         * @param claimedBy the new document already superseding the single
+         * candidate in this run, or null
+         */
+        AmbiguousMatch(String relativePath, File source, List<String> candidates, String claimedBy) {
+            this.relativePath = relativePath;
+            this.source = source;
+            this.candidates = Collections.unmodifiableList(candidates);
+            this.claimedBy = claimedBy;
+        }
+
+        public String getRelativePath() {
+            return relativePath;
+        }
+
+        public File getSource() {
+            return source;
+        }
+
+        /**
+         * @return the names of the matching historical documents
+         */
+        public List<String> getCandidates() {
+            return candidates;
+        }
+
+        /**
+         * @return the new document already superseding the candidate in this
+         * run, or null if the document matches several historical documents
+         */
+        public String getClaimedBy() {
+            return claimedBy;
+        }
+
+        public String getMessage() {
+            if (claimedBy != null) {
+                return "ambiguous match: the historical document " + candidates.get(0) + " is superseded by " + claimedBy
+                        + " in this run";
+            }
+            return "ambiguous match in the historical set: " + String.join(", ", candidates);
+        }
+    }
+
+    SlipsheetPlan(List<PlannedOperation> operations, List<String> unchanged, List<AmbiguousMatch> ambiguous) {
+        this.operations = Collections.unmodifiableList(operations);
+        this.unchanged = Collections.unmodifiableList(unchanged);
+        this.ambiguous = Collections.unmodifiableList(ambiguous);
+        for (PlannedOperation.Type type : PlannedOperation.Type.values()) {
+            counts.put(type, 0);
+            bytes.put(type, 0L);
+        }
+        for (PlannedOperation op : operations) {
+            counts.put(op.getType(), counts.get(op.getType()) + 1);
+            bytes.put(op.getType(), bytes.get(op.getType()) + op.getBytes());
+        }
+    }
+
+    void setEstimatedMillis(long estimatedMillis) {
+        this.estimatedMillis = estimatedMillis;
+    }
+
+    /**
+     * @return the operations, parent directories before their contents
+     */
+    public List<PlannedOperation> getOperations() {
+        return operations;
+    }
+
+    /**
+     * @return the documents skipped because they are unchanged since an
+     * earlier run
+     */
+    public List<String> getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return the documents left out because they match several historical
+     * documents
+     */
+    public List<AmbiguousMatch> getAmbiguous() {
+        return ambiguous;
+    }
+
+    public int getCount(PlannedOperation.Type type) {
+        return counts.get(type);
+    }
+
+    public long getBytes(PlannedOperation.Type type) {
+        return bytes.get(type);
+    }
+
+    public long getEstimatedMillis() {
+        return estimatedMillis;
+    }
+
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    public String getSummary() {
+        return counts.get(PlannedOperation.Type.SLIPSHEET) + " slipsheets, "
+                + counts.get(PlannedOperation.Type.COPY_TO_HISTORICAL) + " new documents ("
+                + (bytes.get(PlannedOperation.Type.COPY_TO_HISTORICAL) + bytes.get(PlannedOperation.Type.COPY_TO_CURRENT)) / 1024 + " KB to copy), "
+                + counts.get(PlannedOperation.Type.MKDIR) + " directories to create, "
+                + unchanged.size() + " unchanged"
+                + (ambiguous.isEmpty() ? "" : ", " + ambiguous.size() + " ambiguous")
+                + "; estimated " + estimatedMillis / 1000 + " s";
+    }
+
+    public void writeJson(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.println("  \"estimatedMillis\": " + estimatedMillis + ",");
+            out.println("  \"counts\": {");
+            PlannedOperation.Type[] types = PlannedOperation.Type.values();
+            for (int i = 0; i < types.length; i++) {
+                out.println("    " + Json.quote(types[i].name()) + ": {\"count\": " + counts.get(types[i])
+                        + ", \"bytes\": " + bytes.get(types[i]) + "}" + (i < types.length - 1 ? "," : ""));
+            }
+            out.println("  },");
+            out.println("  \"unchanged\": " + unchanged.size() + ",");
+            out.println("  \"ambiguous\": [");
+            for (int i = 0; i < ambiguous.size(); i++) {
+                AmbiguousMatch match = ambiguous.get(i);
+                StringBuilder candidates = new StringBuilder();
+                for (String candidate : match.getCandidates()) {
+                    if (candidates.length() > 0) candidates.append(", ");
+                    candidates.append(Json.quote(candidate));
+                }
+                out.println("    {\"path\": " + Json.quote(match.getRelativePath())
+                        + ", \"candidates\": [" + candidates + "]"
+                        + (match.getClaimedBy() == null ? "" : ", \"claimedBy\": " + Json.quote(match.getClaimedBy())) + "}"
+                        + (i < ambiguous.size() - 1 ? "," : ""));
+            }
+            out.println("  ],");
+            out.println("  \"operations\": [");
+            for (int i = 0; i < operations.size(); i++) {
+                PlannedOperation op = operations.get(i);
+                out.println("    {\"type\": " + Json.quote(op.getType().name())
+                        + ", \"path\": " + Json.quote(op.getRelativePath())
+                        + ", \"target\": " + Json.quote(op.getTarget().getPath())
+                        + ", \"bytes\": " + op.getBytes() + "}"
+                        + (i < operations.size() - 1 ? "," : ""));
+            }
+            out.println("  ]");
+            out.println("}");
+            if (out.checkError()) throw new IOException("error writing " + file);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Walks the new document set and decides what has to happen to every
+ * document, without touching any file. The result is a {@link SlipsheetPlan}
+ * that {@link Slipsheeter} executes or reports.
+ *
+ * @author jdegiova
+ */
+public class SlipsheetPlanner {
+
+    private final File historicalSet, currentSet;
+    private final HistoricalIndex historicalIndex;
+    private final ProcessedManifest manifest;
+    private final boolean incremental;
+    private SheetMatcher matcher = SheetMatcher.exact();
+    // historical documents claimed by documents planned one at a time, until releaseClaims()
+    private final Map<String, String> claimed = new HashMap<>();
+
+    /**
+     * @param manifest used to leave out unchanged documents, or null to plan
+     * every document
+     */
+    public SlipsheetPlanner(File historicalSet, File currentSet, HistoricalIndex historicalIndex, ProcessedManifest manifest) {
+        this.historicalSet = historicalSet;
+        this.currentSet = currentSet;
+        this.historicalIndex = historicalIndex;
+        this.manifest = manifest;
+        this.incremental = manifest != null;
+    }
+
+    /**
+     * @param matcher decides which historical document a new document
+     * supersedes; exact file names by default
+     */
+    public void setSheetMatcher(SheetMatcher matcher) {
+        this.matcher = matcher;
+    }
+
+    /**
+     * Plans the whole new document set. A historical document is superseded
+     * by at most one new document: with a normalized matcher several new
+     * documents can match the same one, and all but the first are reported
+     * as ambiguous. A new document with the historical document's exact name
+     * is always the first.
+     */
+    public SlipsheetPlan plan(ScanSnapshot snapshot) {
+        List<PlannedOperation> operations = new ArrayList<>();
+        List<String> unchanged = new ArrayList<>();
+        List<SlipsheetPlan.AmbiguousMatch> ambiguous = new ArrayList<>();
+        Map<String, String> claimed = new HashMap<>();
+        planDirectory(snapshot, snapshot.getRootDirectory(), historicalSet, currentSet, operations, unchanged, ambiguous, claimed);
+        return new SlipsheetPlan(operations, unchanged, ambiguous);
+    }
+
+    /**
+     * Plans a single document, including any directories it needs. Like in
+     * a whole plan, a historical document another document planned since the
+     * last {@link #releaseClaims()} already supersedes is reported as
+     * ambiguous.
+     * 
+     * @param relativeDir the directory of the document relative to the new
+     * document set
+     */
+    public SlipsheetPlan plan(File newFile, String relativeDir) {
+        List<PlannedOperation> operations = new ArrayList<>();
+        List<String> unchanged = new ArrayList<>();
+        List<SlipsheetPlan.AmbiguousMatch> ambiguous = new ArrayList<>();
+        File historicalDocDir = relativeDir.isEmpty() ? historicalSet : new File(historicalSet, relativeDir);
+        File currentDocDir = relativeDir.isEmpty() ? currentSet : new File(currentSet, relativeDir);
+        if (!historicalDocDir.exists()) operations.add(PlannedOperation.mkdir(relativeDir, historicalDocDir));
+        if (!currentDocDir.exists()) operations.add(PlannedOperation.mkdir(relativeDir, currentDocDir));
+        planDocument(newFile, newFile.length(), relativeDir, historicalDocDir, currentDocDir, operations, unchanged, ambiguous, claimed);
+        return new SlipsheetPlan(operations, unchanged, ambiguous);
+    }
+
+    /**
+     * Ends a batch of documents planned one at a time, such as the documents
+     * a watcher found together or a queue unit. Their historical documents
+     * may be superseded again by later documents.
+     */
+    public void releaseClaims() {
+        claimed.clear();
+    }
+
+    private void planDirectory(ScanSnapshot snapshot, ScanSnapshot.Directory newDocDir, File historicalDocDir, File currentDocDir,
+            List<PlannedOperation> operations, List<String> unchanged, List<SlipsheetPlan.AmbiguousMatch> ambiguous,
+            Map<String, String> claimed) {
+        String relativeDir = newDocDir.getRelativePath();
+        List<ScanSnapshot.ScannedFile> normalized = new ArrayList<>();
+        for (ScanSnapshot.ScannedFile newFile : newDocDir.getPdfs()) {
+            // exact names claim their historical document before any normalized match can
+            if (!matcher.isExact() && !historicalIndex.contains(relativeDir, newFile.getName())) {
+                normalized.add(newFile);
+                continue;
+            }
+            planDocument(newFile.getFile(), newFile.getSize(), relativeDir, historicalDocDir, currentDocDir, operations, unchanged, ambiguous, claimed);
+        }
+        for (ScanSnapshot.ScannedFile newFile : normalized) {
+            planDocument(newFile.getFile(), newFile.getSize(), relativeDir, historicalDocDir, currentDocDir, operations, unchanged, ambiguous, claimed);
+        }
+
+        for (String name : newDocDir.getSubdirectories()) {
+            ScanSnapshot.Directory newSubDir = snapshot.getDirectory(newDocDir.child(name));
+            if (newSubDir == null) continue;
+
+            File histSubDir = new File(historicalDocDir, name);
+            File currSubDir = new File(currentDocDir, name);
+
+            if (!histSubDir.exists()) operations.add(PlannedOperation.mkdir(newSubDir.getRelativePath(), histSubDir));
+            if (!currSubDir.exists()) operations.add(PlannedOperation.mkdir(newSubDir.getRelativePath(), currSubDir));
+
+            planDirectory(snapshot, newSubDir, histSubDir, currSubDir, operations, unchanged, ambiguous, claimed);
+        }
+    }
+
+    private void planDocument(File newFile, long size, String relativeDir, File historicalDocDir, File currentDocDir,
+            List<PlannedOperation> operations, List<String> unchanged, List<SlipsheetPlan.AmbiguousMatch> ambiguous,
+            Map<String, String> claimed) {
+        String name = newFile.getName();
+        String relativePath = relativeDir.isEmpty() ? name : relativeDir + "/" + name;
+        if (incremental && manifest.isUnchanged(relativePath, newFile)) {
+            unchanged.add(relativePath);
+            return;
+        }
+        List<String> matches = historicalIndex.find(relativeDir, name, matcher);
+        if (matches.size() > 1) {
+            ambiguous.add(new SlipsheetPlan.AmbiguousMatch(relativePath, newFile, matches));
+        } else if (matches.size() == 1) {
+            // the historical and current set documents keep their names
+            String historicalName = matches.get(0);
+            String historicalPath = relativeDir.isEmpty() ? historicalName : relativeDir + "/" + historicalName;
+            String claimedBy = claimed.get(historicalPath);
+            if (claimedBy != null) {
+                ambiguous.add(new SlipsheetPlan.AmbiguousMatch(relativePath, newFile, matches, claimedBy));
+                return;
+            }
+            claimed.put(historicalPath, relativePath);
+            operations.add(PlannedOperation.slipsheet(relativePath, newFile, new File(historicalDocDir, historicalName),
+                    new File(currentDocDir, historicalName), size));
+        } else {
+            operations.add(PlannedOperation.copy(PlannedOperation.Type.COPY_TO_HISTORICAL, relativePath, newFile, new File(historicalDocDir, name), size));
+            operations.add(PlannedOperation.copy(PlannedOperation.Type.COPY_TO_CURRENT, relativePath, newFile, new File(currentDocDir, name), size));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+
+/**
+ * The sets, stamp and engine of one project, saved by name in
+ * {@link SlipsheetConfig}. Every profile keeps its historical index,
+ * manifest, timings, metrics and journal in a directory of its own, so
+ * several projects can run at the same time from one working directory.
+ *
+ * @author jdegiova
+ */
+public final class SlipsheetProfile {
+
+    /** parent of the per-profile state directories */
+    public static final String STATE_DIRECTORY = "profiles";
+
+    private final String name;
+    private final File historicalSet, currentSet, newDocumentSet, stampPDF;
+    private final String engine;
+
+    /**
+     * @throws IllegalArgumentException if the name is empty or contains
+     * characters that can't be used in a property key or directory name
+     */
+    public SlipsheetProfile(String name, File historicalSet, File currentSet, File newDocumentSet, File stampPDF, String engine) {
+        if (!isValidName(name)) {
+            throw new IllegalArgumentException("invalid profile name \"" + name + "\", use letters, digits, - and _");
+        }
+        this.name = name;
+        this.historicalSet = historicalSet;
+        this.currentSet = currentSet;
+        this.newDocumentSet = newDocumentSet;
+        this.stampPDF = stampPDF;
+        this.engine = engine;
+    }
+
+    public static boolean isValidName(String name) {
+        return name != null && name.matches("[A-Za-z0-9_-]+");
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public File getHistoricalSet() {
+        return historicalSet;
+    }
+
+    public File getCurrentSet() {
+        return currentSet;
+    }
+
+    public File getNewDocumentSet() {
+        return newDocumentSet;
+    }
+
+    public File getStampPDF() {
+        return stampPDF;
+    }
+
+    /**
+     * @return {@link Slipsheeter#ENGINE_BLUEBEAM} or
+     * {@link Slipsheeter#ENGINE_PDFBOX}
+     */
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return where the state kept between runs of this profile lives
+     */
+    public File getStateDirectory() {
+        return new File(STATE_DIRECTORY, name);
+    }
+
+    /**
+     * @param engine the engine to slipsheet with, see {@link #getEngine()}
+     * @return a slipsheeter for this profile with its state files in
+     * {@link #getStateDirectory()}
+     * @throws InstantiationException if the state directory can't be created
+     */
+    public Slipsheeter createSlipsheeter(SlipsheetEngine engine) throws InstantiationException {
+        Slipsheeter s = new Slipsheeter(historicalSet, currentSet, newDocumentSet, stampPDF, engine);
+        File state = getStateDirectory();
+        if (!state.mkdirs() && !state.isDirectory()) {
+            throw new InstantiationException("unable to create " + state);
+        }
+        s.setStateDirectory(state);
+        return s;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + newDocumentSet + " -> " + historicalSet + ", " + currentSet + ")";
+    }
+}
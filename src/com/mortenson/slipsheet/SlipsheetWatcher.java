@@ -0,0 +1,256 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Watches the new document set and slipsheets PDFs as they arrive, instead of
+ * rescanning the whole tree on every run. A PDF is only processed once its
+ * size and modification time have been stable for a while and it is no longer
+ * locked by the program writing it.
+ *
+ * @author jdegiova
+ */
+public class SlipsheetWatcher implements Runnable {
+
+    private final Slipsheeter slipsheeter;
+    private final Path newDocumentSet;
+    private final PDFFileFilter pff = new PDFFileFilter();
+    private final Logger logger = Logger.getRootLogger();
+    // files that have been written to but are not processed yet
+    private final Map<Path, Candidate> pending = new LinkedHashMap<>();
+    private long stableMillis = 2000;
+    private long pollMillis = 500;
+    private volatile boolean running;
+    private WatchService watchService;
+
+    private static class Candidate {
+
+        private long size, lastModified, stableSince;
+
+        private Candidate(long size, long lastModified, long now) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.stableSince = now;
+        }
+    }
+
+    public SlipsheetWatcher(Slipsheeter slipsheeter, File newDocumentSet) {
+        this.slipsheeter = slipsheeter;
+        this.newDocumentSet = newDocumentSet.getAbsoluteFile().toPath();
+        // running from the start, so a stop() before the thread gets to run() sticks
+        this.running = true;
+    }
+
+    /**
+     * @param stableMillis how long a file's size and modification time must be
+     * unchanged before it is considered completely written
+     */
+    public void setStableMillis(long stableMillis) {
+        this.stableMillis = stableMillis;
+    }
+
+    /**
+     * @param pollMillis how often pending files are checked
+     */
+    public void setPollMillis(long pollMillis) {
+        this.pollMillis = pollMillis;
+    }
+
+    /**
+     * @return true until the watcher is stopped or has finished
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Watches until {@link #stop()} is called. Documents already in the new
+     * document set are processed first; unchanged ones are skipped by the
+     * processed manifest. A watcher runs once: if it was stopped before, this
+     * returns right away.
+     */
+    @Override
+    public void run() {
+        if (!running) return;
+        slipsheeter.open();
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            register(newDocumentSet, true);
+            logger.info("Watching " + newDocumentSet + " for new documents...");
+            while (running) {
+                WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    handleEvents(key);
+                    key = watchService.poll();
+                }
+                processStableFiles();
+            }
+        } catch (ClosedWatchServiceException ex) {
+            // stopped
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            logger.error("Unable to watch " + newDocumentSet + ": " + ex);
+        } finally {
+            running = false;
+            closeWatchService();
+            slipsheeter.close();
+            logger.info("Stopped watching " + newDocumentSet);
+        }
+    }
+
+    /**
+     * Stops watching after the documents currently being processed are done.
+     */
+    public void stop() {
+        running = false;
+        closeWatchService();
+    }
+
+    private synchronized void closeWatchService() {
+        if (watchService == null) return;
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            logger.error("Unable to close watch service: " + ex);
+        }
+    }
+
+    /**
+     * Registers the directory and all directories below it. With addExisting
+     * the PDFs already there become candidates as well, since they may have
+     * landed before the directory was registered.
+     */
+    private void register(Path dir, final boolean addExisting) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                d.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (addExisting && pff.accept(file.toFile())) {
+                    touch(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                logger.error("Unable to watch " + file + ": " + exc);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void handleEvents(WatchKey key) throws IOException {
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                logger.info("Missed file system events. Rescanning " + newDocumentSet);
+                register(newDocumentSet, true);
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (Files.isDirectory(path)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    register(path, true);
+                }
+            } else if (pff.accept(path.toFile())) {
+                File file = path.toFile();
+                touch(path, file.length(), file.lastModified());
+            }
+        }
+        key.reset();
+    }
+
+    private void touch(Path file, long size, long lastModified) {
+        Candidate candidate = pending.get(file);
+        long now = System.currentTimeMillis();
+        if (candidate == null) {
+            pending.put(file, new Candidate(size, lastModified, now));
+        } else if (candidate.size != size || candidate.lastModified != lastModified) {
+            candidate.size = size;
+            candidate.lastModified = lastModified;
+            candidate.stableSince = now;
+        }
+    }
+
+    private void processStableFiles() {
+        if (pending.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        List<File> ready = new ArrayList<>();
+        Iterator<Map.Entry<Path, Candidate>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Candidate> e = it.next();
+            File file = e.getKey().toFile();
+            if (!file.exists()) {
+                it.remove();
+                continue;
+            }
+            touch(e.getKey(), file.length(), file.lastModified());
+            if (now - e.getValue().stableSince >= stableMillis && !isLocked(e.getKey())) {
+                ready.add(file);
+                it.remove();
+            }
+        }
+        if (ready.isEmpty()) return;
+        for (File file : ready) {
+            slipsheeter.process(file);
+        }
+        slipsheeter.flush();
+    }
+
+    /**
+     * @return true if another program still has the file open for writing
+     */
+    private boolean isLocked(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                FileLock lock = channel.tryLock(0, Long.MAX_VALUE, true)) {
+            return lock == null;
+        } catch (IOException ex) {
+            return true;
+        }
+    }
+}
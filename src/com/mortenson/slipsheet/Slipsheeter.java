@@ -16,17 +16,22 @@
  */
 package com.mortenson.slipsheet;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.log4j.Logger;
 
 /**
@@ -35,159 +40,1026 @@ import org.apache.log4j.Logger;
  */
 public class Slipsheeter {
     
-    private final File historicalSet, currentSet, newDocumentSet, stampPDF, bbScriptEngine;
+    public static final String ENGINE_BLUEBEAM = "Bluebeam";
+    public static final String ENGINE_PDFBOX = "PDFBox";
+    
+    private final File historicalSet, currentSet, newDocumentSet, stampPDF;
+    private final SlipsheetEngine engine;
     private final Logger logger = Logger.getRootLogger();
+    private final List<SlipsheetJob> pendingJobs = new ArrayList<>();
+    // the directory of the pending jobs, kept across execute calls so documents fed in one by one share batches
+    private String pendingDir;
+    private int batchSize = 1;
+    private boolean batchPerDirectory = true;
+    private int parallelism = 1;
+    private File historicalIndexFile = new File(HistoricalIndex.DEFAULT_FILE_NAME);
+    private HistoricalIndex historicalIndex;
+    private boolean incremental = true;
+    private File manifestFile = new File(ProcessedManifest.DEFAULT_FILE_NAME);
+    private ProcessedManifest manifest;
+    private final AtomicInteger unchangedCount = new AtomicInteger();
+    private Executor sharedWorkers;
+    private ExecutorService ownWorkers;
+    private Executor workers;
+    private final Object workLock = new Object();
+    private int workInFlight;
+    private final AtomicInteger batchCount = new AtomicInteger();
+    private final AtomicInteger slipsheetCount = new AtomicInteger();
+    private final AtomicInteger failureCount = new AtomicInteger();
+    private final AtomicLong engineNanos = new AtomicLong();
+    private long startNanos;
+    private ScanSnapshot newDocumentSnapshot;
+    private int scanParallelism = 1;
+    private boolean dryRun;
+    private RunReport report;
+    private File timingHistoryFile = new File(TimingHistory.DEFAULT_FILE_NAME);
+    private TimingHistory timingHistory;
+    private SlipsheetPlanner planner;
+    private SlipsheetPlan plan;
+    private final DocumentPlacer placer = new DocumentPlacer();
+    private final List<DeferredSlipsheet> deferred = new ArrayList<>();
+    private final AtomicInteger lockedCount = new AtomicInteger();
+    private int lockRetries = 5;
+    private long lockBackoffMillis = 5000;
+    private final SlipsheetMetrics metrics = new SlipsheetMetrics();
+    private SheetMatcher sheetMatcher = SheetMatcher.exact();
+    private DocumentComparator comparator = new DocumentComparator(DocumentComparator.Mode.BYTES);
+    private File metricsFile = new File(SlipsheetMetrics.DEFAULT_FILE_NAME);
+    private File journalFile = new File(RunJournal.DEFAULT_FILE_NAME);
+    private File pageCacheFile = new File(PageDigestCache.DEFAULT_FILE_NAME);
+    private PageDigestCache pageCache;
+    private RunJournal journal;
+    private ProgressListener progress;
+    private final Object runLock = new Object();
+    private volatile boolean paused, cancelled;
     
     public Slipsheeter(File historicalSet, File currentSet, File newDocumentSet, File stampPDF) throws InstantiationException{
+        this(historicalSet, currentSet, newDocumentSet, stampPDF, BluebeamSlipsheetEngine.createDefault());
+    }
+    
+    public Slipsheeter(File historicalSet, File currentSet, File newDocumentSet, File stampPDF, SlipsheetEngine engine){
         this.historicalSet = historicalSet;
         this.currentSet = currentSet;
         this.newDocumentSet = newDocumentSet;
         this.stampPDF = stampPDF;
-        this.bbScriptEngine = locateBlueBeamScriptEngine();
-        if (bbScriptEngine==null) throw new InstantiationException("unable to find Bluebeam Revu installation");
+        this.engine = engine;
+        engine.setMetrics(metrics);
+    }
+    
+    /**
+     * @param name {@link #ENGINE_BLUEBEAM} or {@link #ENGINE_PDFBOX}
+     * @return the slipsheet engine with the given name
+     * @throws InstantiationException if the engine is unknown or not available
+     * on this machine
+     */
+    public static SlipsheetEngine createEngine(String name) throws InstantiationException{
+        return createEngine(name,null);
+    }
+    
+    /**
+     * @param name {@link #ENGINE_BLUEBEAM} or {@link #ENGINE_PDFBOX}
+     * @param scriptEnginePath the Bluebeam ScriptEngine to use, or null to
+     * use the system property or look for the local installation
+     * @return the slipsheet engine with the given name
+     * @throws InstantiationException if the engine is unknown or not available
+     * on this machine
+     */
+    public static SlipsheetEngine createEngine(String name, String scriptEnginePath) throws InstantiationException{
+        if(ENGINE_PDFBOX.equalsIgnoreCase(name)) return new PDFBoxSlipsheetEngine();
+        if(ENGINE_BLUEBEAM.equalsIgnoreCase(name)){
+            if(scriptEnginePath==null || scriptEnginePath.trim().isEmpty()) return BluebeamSlipsheetEngine.createDefault();
+            return BluebeamSlipsheetEngine.create(scriptEnginePath);
+        }
+        throw new InstantiationException("unknown slipsheet engine "+name);
+    }
+    
+    /**
+     * Sets how many documents are handed to the engine at once. With the
+     * Bluebeam engine each batch is a single ScriptEngine launch.
+     * 
+     * @param batchSize the maximum number of documents per batch, 1 to
+     * slipsheet every document on its own
+     */
+    public void setBatchSize(int batchSize){
+        this.batchSize = Math.max(1, batchSize);
+    }
+    
+    /**
+     * @param batchPerDirectory true to run the pending batch when the next
+     * slipsheet is in another directory, false to let batches span
+     * directories
+     */
+    public void setBatchPerDirectory(boolean batchPerDirectory){
+        this.batchPerDirectory = batchPerDirectory;
+    }
+    
+    /**
+     * @param parallelism the number of batches the engine may work on at the
+     * same time, 1 to slipsheet sequentially
+     */
+    public void setParallelism(int parallelism){
+        this.parallelism = Math.max(1, parallelism);
+    }
+    
+    /**
+     * @param workers workers shared with other slipsheeters to run the
+     * engine batches and copies on, instead of a pool of
+     * {@link #setParallelism(int)} threads of its own; null for an own pool
+     */
+    public void setExecutor(Executor workers){
+        this.sharedWorkers = workers;
+    }
+    
+    /**
+     * @param historicalIndexFile where the index of the historical set is
+     * kept between runs
+     */
+    public void setHistoricalIndexFile(File historicalIndexFile){
+        this.historicalIndexFile = historicalIndexFile;
+    }
+    
+    /**
+     * @param incremental true to skip documents that were processed by an
+     * earlier run and have not changed since, false to process every document
+     */
+    public void setIncremental(boolean incremental){
+        this.incremental = incremental;
+    }
+    
+    /**
+     * @param manifestFile where the processed documents are recorded between
+     * runs
+     */
+    public void setManifestFile(File manifestFile){
+        this.manifestFile = manifestFile;
+    }
+    
+    /**
+     * @param newDocumentSnapshot an earlier scan of the new document set, so
+     * the run does not need to scan it again. Documents added after the scan
+     * are picked up by the next run.
+     */
+    public void setNewDocumentSnapshot(ScanSnapshot newDocumentSnapshot){
+        this.newDocumentSnapshot = newDocumentSnapshot;
+    }
+    
+    /**
+     * @param scanParallelism the number of directories listed at the same time
+     * when the new document set has to be scanned
+     */
+    public void setScanParallelism(int scanParallelism){
+        this.scanParallelism = Math.max(1, scanParallelism);
+    }
+    
+    /**
+     * @param dryRun true to only report what would be done, without creating
+     * directories, copying or slipsheeting
+     */
+    public void setDryRun(boolean dryRun){
+        this.dryRun = dryRun;
+    }
+    
+    /**
+     * @return the outcome of every document handled since {@link #open()}
+     */
+    public RunReport getReport(){
+        return report;
+    }
+    
+    /**
+     * @param timingHistoryFile where average operation timings are kept
+     * between runs for estimating plans
+     */
+    public void setTimingHistoryFile(File timingHistoryFile){
+        this.timingHistoryFile = timingHistoryFile;
+    }
+    
+    /**
+     * @param pageCacheFile where the page digests of new and current set
+     * documents are kept between runs, so their pages are not parsed again
+     */
+    public void setPageCacheFile(File pageCacheFile){
+        this.pageCacheFile = pageCacheFile;
+    }
+    
+    /**
+     * @param allowHardLinks true to hard link the current set copy of a new
+     * document to its historical set copy when both are on the same volume
+     * @see DocumentPlacer#setAllowHardLinks(boolean)
+     */
+    public void setAllowHardLinks(boolean allowHardLinks){
+        placer.setAllowHardLinks(allowHardLinks);
+    }
+    
+    /**
+     * Sets how long a slipsheet waits for historical and current set files
+     * that are open elsewhere. The rest of the run goes on in the meantime.
+     * 
+     * @param retries how many times a locked document is tried again before
+     * it is reported as locked, 0 to give up right away
+     * @param backoffMillis the wait before the first retry; it doubles with
+     * every further retry
+     */
+    public void setLockRetry(int retries, long backoffMillis){
+        this.lockRetries = Math.max(0, retries);
+        this.lockBackoffMillis = Math.max(0, backoffMillis);
+    }
+    
+    /**
+     * @param mode how matched documents are compared with the current set
+     * before slipsheeting; identical documents are skipped
+     * @see DocumentComparator
+     */
+    public void setIdenticalCheck(DocumentComparator.Mode mode){
+        this.comparator = new DocumentComparator(mode);
+    }
+    
+    /**
+     * @return the stage timings and counters, live while the run is going on
+     */
+    public SlipsheetMetrics getMetrics(){
+        return metrics;
+    }
+    
+    /**
+     * @param metricsFile where the metrics are written when the run is
+     * closed, as CSV if the name ends with .csv and JSON otherwise; null to
+     * not write them
+     */
+    public void setMetricsFile(File metricsFile){
+        this.metricsFile = metricsFile;
+    }
+    
+    /**
+     * Keeps the historical index, manifest, timings, metrics, page digests and
+     * journal in the given directory instead of the working directory, so
+     * several runs can go on side by side.
+     */
+    public void setStateDirectory(File dir){
+        historicalIndexFile = new File(dir, HistoricalIndex.DEFAULT_FILE_NAME);
+        manifestFile = new File(dir, ProcessedManifest.DEFAULT_FILE_NAME);
+        timingHistoryFile = new File(dir, TimingHistory.DEFAULT_FILE_NAME);
+        metricsFile = new File(dir, SlipsheetMetrics.DEFAULT_FILE_NAME);
+        journalFile = new File(dir, RunJournal.DEFAULT_FILE_NAME);
+        pageCacheFile = new File(dir, PageDigestCache.DEFAULT_FILE_NAME);
+    }
+    
+    /**
+     * @param journalFile where the events of real runs are appended as JSON
+     * lines; null to only log them
+     */
+    public void setJournalFile(File journalFile){
+        this.journalFile = journalFile;
+    }
+    
+    /**
+     * @param sheetMatcher decides which historical document a new document
+     * supersedes; exact file names by default
+     */
+    public void setSheetMatcher(SheetMatcher sheetMatcher){
+        this.sheetMatcher = sheetMatcher;
+    }
+    
+    /**
+     * @param progress told about the plan and every finished document, or
+     * null
+     */
+    public void setProgressListener(ProgressListener progress){
+        this.progress = progress;
+    }
+    
+    /**
+     * Holds the run before the next document. Documents already handed to
+     * the engine are finished first.
+     */
+    public void pause(){
+        paused = true;
+    }
+    
+    public void resume(){
+        synchronized(runLock){
+            paused = false;
+            runLock.notifyAll();
+        }
+    }
+    
+    public boolean isPaused(){
+        return paused;
+    }
+    
+    /**
+     * Stops the run before the next document. Documents already handed to
+     * the engine are finished, the rest are left for the next run, and the
+     * state is saved as usual.
+     */
+    public void cancel(){
+        synchronized(runLock){
+            cancelled = true;
+            runLock.notifyAll();
+        }
     }
     
+    public boolean isCancelled(){
+        return cancelled;
+    }
     
-    private File locateBlueBeamScriptEngine(){
-        String[] defaultLocations = {
-            "C:\\Program Files\\Bluebeam Software\\Bluebeam Revu\\Script\\ScriptEngine.exe",
-            "C:\\Program Files (x86)\\Bluebeam Software\\Bluebeam Revu\\Script\\ScriptEngine.exe"
-        };
-        for(String path:defaultLocations){
-            File file = new File(path);
-            if (file.exists()) return file;
+    /**
+     * Called between documents: waits while the run is paused.
+     * 
+     * @return false if the run was cancelled
+     */
+    private boolean proceed(){
+        if(!paused) return !cancelled;
+        synchronized(runLock){
+            while(paused && !cancelled){
+                try {
+                    runLock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
         }
-        return null;
+        return !cancelled;
+    }
+    
+    /**
+     * @return the plan of the last {@link #start()}, or null
+     */
+    public SlipsheetPlan getPlan(){
+        return plan;
     }
     
+    /**
+     * Slipsheets the whole new document set: plans the run and then executes
+     * the plan, unless this is a dry run.
+     */
     public void start(){
-        logger.info("Starting process...");
-        slipsheetDirectory(newDocumentSet,historicalSet,currentSet,true);
-        logger.info("Slipsheet process finished");
+        open();
+        try {
+            plan = plan();
+            logger.info("Plan: "+plan.getSummary());
+            if(dryRun){
+                reportDryRun(plan);
+            } else {
+                execute(plan);
+            }
+        } finally {
+            close();
+        }
     }
     
-    private void slipsheetDirectory(File newDocDir, File historicalDocDir, File currentDocDir, boolean recursive){
-        PDFFileFilter pff = new PDFFileFilter();
+    /**
+     * Prepares for planning and processing documents. Called by
+     * {@link #start()}; only needed when documents are fed in one by one with
+     * {@link #process(File)}.
+     */
+    public void open(){
+        logger.info("Starting "+(dryRun ? "dry run" : "process")+" using the "+engine.getName()+" engine with "+parallelism+" worker(s)...");
+        startNanos = System.nanoTime();
+        report = new RunReport(engine.getName(), dryRun);
+        journal = new RunJournal(dryRun ? null : journalFile);
+        journal.record(RunJournal.EventType.RUN_STARTED,null,0,engine.getName()+", "+parallelism+" worker(s)"+(dryRun ? ", dry run" : ""));
+        if(sharedWorkers!=null){
+            workers = sharedWorkers;
+        } else if(parallelism>1){
+            ownWorkers = Executors.newFixedThreadPool(parallelism);
+            workers = ownWorkers;
+        }
+        historicalIndex = HistoricalIndex.load(historicalIndexFile, historicalSet);
+        manifest = ProcessedManifest.load(manifestFile, historicalSet, currentSet);
+        timingHistory = TimingHistory.load(timingHistoryFile, engine.getName());
+        pageCache = PageDigestCache.load(pageCacheFile);
+        pageCache.setParallelism(scanParallelism);
+        planner = new SlipsheetPlanner(historicalSet, currentSet, historicalIndex, incremental ? manifest : null);
+        planner.setSheetMatcher(sheetMatcher);
+    }
+    
+    /**
+     * Plans the whole new document set without touching any file. Needs
+     * {@link #open()}.
+     */
+    public SlipsheetPlan plan(){
+        ScanSnapshot snapshot = newDocumentSnapshot;
+        if(snapshot==null || !snapshot.getRoot().getAbsoluteFile().equals(newDocumentSet.getAbsoluteFile())){
+            long begin = System.nanoTime();
+            snapshot = new TreeScanner(scanParallelism).scan(newDocumentSet);
+            metrics.recordSince(SlipsheetMetrics.Stage.SCAN,begin);
+            logger.info("Scanned "+snapshot.getPdfCount()+" new documents in "+(System.nanoTime()-begin)/1000000+" ms");
+        }
+        long begin = System.nanoTime();
+        SlipsheetPlan snapshotPlan = planner.plan(snapshot);
+        metrics.recordSince(SlipsheetMetrics.Stage.PLAN,begin);
+        return estimate(snapshotPlan);
+    }
+    
+    private SlipsheetPlan estimate(SlipsheetPlan plan){
+        plan.setEstimatedMillis(timingHistory.estimateMillis(plan, parallelism));
+        return plan;
+    }
+    
+    /**
+     * Processes a single document of the new document set: it is either
+     * slipsheeted into its historical match or copied into both sets. With
+     * batching the slipsheet may not happen until {@link #flush()}.
+     * 
+     * @param newFile a PDF inside the new document set
+     */
+    public void process(File newFile){
+        String relativeDir = relativize(newFile.getAbsoluteFile().getParentFile());
+        if(relativeDir==null){
+            logger.error(newFile+" is not part of the new document set "+newDocumentSet);
+            return;
+        }
+        long begin = System.nanoTime();
+        SlipsheetPlan documentPlan = planner.plan(newFile,relativeDir);
+        metrics.recordSince(SlipsheetMetrics.Stage.PLAN,begin);
+        if(dryRun){
+            reportDryRun(documentPlan);
+        } else {
+            // documents fed in one by one fill batches across calls
+            execute(documentPlan,false);
+        }
+    }
+    
+    /**
+     * Runs any batched slipsheets and persists the historical index. The next
+     * lookups check the historical directories for outside changes again.
+     */
+    public void flush(){
+        planner.releaseClaims();
+        runPendingJobs();
+        retryDeferred(false);
+        if(!dryRun) saveIndex();
+        historicalIndex.revalidate();
+    }
+    
+    /**
+     * Runs the batched slipsheets, waits for documents open elsewhere to be
+     * retried, and waits until every document handed over so far has its
+     * outcome, without ending the run.
+     */
+    public void drain(){
+        planner.releaseClaims();
+        runPendingJobs();
+        retryDeferred(true);
+        awaitInFlight();
+    }
+    
+    /**
+     * Finishes outstanding work and saves the state kept between runs.
+     */
+    public void close(){
+        try {
+            runPendingJobs();
+            retryDeferred(true);
+        } finally {
+            if(workers!=null){
+                awaitWorkers();
+            }
+            if(!dryRun){
+                saveIndex();
+                timingHistory.save();
+                pageCache.close();
+            }
+            manifest.close();
+            report.finish();
+            writeMetrics();
+            journal.record(RunJournal.EventType.RUN_FINISHED,null,System.nanoTime()-startNanos,
+                    (cancelled ? "cancelled, " : "")+metrics.getSummary());
+            journal.close();
+        }
+        if(cancelled){
+            logger.info("Cancelled, the remaining documents are left for the next run");
+        }
+        logger.info("Listed "+historicalIndex.getListingCount()+" changed historical directories");
+        logger.info("Slipsheet process finished in "+(System.nanoTime()-startNanos)/1000000+" ms: "
+                +slipsheetCount+" documents slipsheeted ("+failureCount+" failed) in "
+                +batchCount+" engine runs taking "+engineNanos.get()/1000000+" ms, "
+                +unchangedCount+" unchanged documents skipped, "+lockedCount+" still locked");
+    }
+    
+    private void saveIndex(){
+        long begin = System.nanoTime();
+        historicalIndex.save();
+        metrics.recordSince(SlipsheetMetrics.Stage.INDEX_SAVE,begin);
+    }
+    
+    private void writeMetrics(){
+        if(metricsFile==null) return;
+        try {
+            metrics.write(metricsFile);
+            logger.info("Wrote metrics to "+metricsFile.getAbsolutePath());
+        } catch (IOException ex) {
+            logger.error("Unable to write metrics "+metricsFile+": "+ex);
+        }
+    }
+    
+    /**
+     * @return the directory relative to the new document set, or null if it
+     * is outside of it
+     */
+    private String relativize(File dir){
+        Path root = newDocumentSet.getAbsoluteFile().toPath().normalize();
+        Path path = dir.toPath().normalize();
+        if(!path.startsWith(root)) return null;
+        return root.relativize(path).toString().replace(File.separatorChar,'/');
+    }
+    
+    /**
+     * Runs a task on the workers, or right away without workers. Tasks are
+     * counted so that {@link #close()} can wait for this run's own tasks when
+     * the workers are shared.
+     */
+    private void dispatch(final Runnable task){
+        if(workers==null){
+            task.run();
+            return;
+        }
+        synchronized(workLock){
+            workInFlight++;
+        }
+        try {
+            workers.execute(new Runnable() {
+                
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        finished();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            finished();
+            task.run();
+        }
+    }
+    
+    private void finished(){
+        synchronized(workLock){
+            workInFlight--;
+            workLock.notifyAll();
+        }
+    }
+    
+    /**
+     * @return false if interrupted while waiting
+     */
+    private boolean awaitInFlight(){
+        try {
+            synchronized(workLock){
+                while(workInFlight>0){
+                    workLock.wait(TimeUnit.MINUTES.toMillis(1));
+                    if(workInFlight>0) logger.info("Waiting for slipsheet workers to finish...");
+                }
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            logger.error("Interrupted while waiting for slipsheet workers");
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    private void awaitWorkers(){
+        if(!awaitInFlight() && ownWorkers!=null){
+            ownWorkers.shutdownNow();
+        }
+        if(ownWorkers!=null){
+            ownWorkers.shutdown();
+            ownWorkers = null;
+        }
+        workers = null;
+    }
+    
+    private void reportDryRun(SlipsheetPlan plan){
+        for(String relativePath:plan.getUnchanged()){
+            unchangedCount.incrementAndGet();
+            report.add(relativePath,DocumentOutcome.SKIPPED_UNCHANGED,0,null);
+        }
+        for(SlipsheetPlan.AmbiguousMatch match:plan.getAmbiguous()){
+            report.add(match.getRelativePath(),DocumentOutcome.FAILED,0,match.getMessage()+", dry run");
+        }
+        List<PlannedOperation> slipsheets = new ArrayList<>();
+        for(PlannedOperation op:plan.getOperations()){
+            if(op.getType()==PlannedOperation.Type.SLIPSHEET){
+                slipsheets.add(op);
+            } else if(op.getType()==PlannedOperation.Type.COPY_TO_HISTORICAL){
+                report.add(op.getRelativePath(),DocumentOutcome.COPIED,0,"dry run");
+            }
+        }
+        for(PlannedOperation op:skipIdentical(slipsheets)){
+            report.add(op.getRelativePath(),DocumentOutcome.SLIPSHEETED,0,"dry run");
+        }
+    }
+    
+    /**
+     * Executes a plan. Directories are created first since everything else
+     * depends on them. The remaining operations are independent of each other:
+     * slipsheets, the slowest, are handed to the workers first and the copies
+     * fill in behind them.
+     */
+    public void execute(SlipsheetPlan plan){
+        execute(plan,true);
+    }
+    
+    /**
+     * @param endBatch false to leave the last batch open for the documents
+     * of the next plan, as {@link #process(File)} does
+     */
+    private void execute(SlipsheetPlan plan, boolean endBatch){
+        if(progress!=null){
+            progress.runPlanned(plan.getUnchanged().size()+plan.getAmbiguous().size()+plan.getCount(PlannedOperation.Type.SLIPSHEET)
+                    +plan.getCount(PlannedOperation.Type.COPY_TO_HISTORICAL),
+                    plan.getBytes(PlannedOperation.Type.SLIPSHEET)+plan.getBytes(PlannedOperation.Type.COPY_TO_HISTORICAL));
+        }
+        for(String relativePath:plan.getUnchanged()){
+            journal.record(RunJournal.EventType.SKIPPED_UNCHANGED,relativePath);
+            unchangedCount.incrementAndGet();
+            metrics.increment(SlipsheetMetrics.Counter.SKIPPED);
+            report.add(relativePath,DocumentOutcome.SKIPPED_UNCHANGED,0,null);
+            if(progress!=null) progress.documentFinished(relativePath,DocumentOutcome.SKIPPED_UNCHANGED,0,null);
+        }
+        for(SlipsheetPlan.AmbiguousMatch match:plan.getAmbiguous()){
+            recordOutcome(match.getRelativePath(),match.getSource(),DocumentOutcome.FAILED,0,match.getMessage());
+        }
         
-        File[] newDocuments = newDocDir.listFiles(pff);
-        File[] historicalDocuments = historicalDocDir.listFiles(pff);
+        for(PlannedOperation op:plan.getOperations()){
+            if(op.getType()==PlannedOperation.Type.MKDIR){
+                long begin = System.nanoTime();
+                if(!op.getTarget().mkdirs() && !op.getTarget().isDirectory()){
+                    logger.error("Unable to create directory "+op.getTarget());
+                }
+                timingHistory.recordMkdir(System.nanoTime()-begin);
+                metrics.recordSince(SlipsheetMetrics.Stage.MKDIR,begin);
+            }
+        }
         
-        if(newDocuments!=null){
-            for(File newFile:newDocuments){
-                logger.info("Processing new file "+ newFile.getName() + "... ");
-                if(containsFileName(historicalDocuments,newFile)){
-                    logger.info("Found a match in historical documents... kick off bluebeam slipsheet script");
-                    File histTarget = new File(historicalDocDir.getAbsolutePath()+"\\"+newFile.getName());
-                    File currTarget = new File(currentDocDir.getAbsolutePath()+"\\"+newFile.getName());
-                    slipsheetSingleFile(newFile,histTarget,currTarget);
+        List<PlannedOperation> slipsheets = new ArrayList<>();
+        for(PlannedOperation op:plan.getOperations()){
+            if(op.getType()==PlannedOperation.Type.SLIPSHEET) slipsheets.add(op);
+        }
+        metrics.add(SlipsheetMetrics.Counter.MATCHED,slipsheets.size());
+        slipsheets = skipIdentical(slipsheets);
+        Map<File, FileHelper.LockState> locks = probeLocks(slipsheets);
+        for(PlannedOperation op:slipsheets){
+            if(!proceed()) break;
+            if(batchPerDirectory && pendingDir!=null && !op.getRelativeDir().equals(pendingDir)){
+                runPendingJobs();
+            }
+            pendingDir = op.getRelativeDir();
+            FileHelper.LockState state = lockState(locks,op);
+            if(state==FileHelper.LockState.LOCKED){
+                if(lockRetries==0){
+                    giveUp(new DeferredSlipsheet(op));
                 } else {
-                    logger.info("No matches found. Adding new document to historical set and current set.");
-                    copyFile(newFile,historicalDocDir);
-                    copyFile(newFile,currentDocDir);
+                    journal.record(RunJournal.EventType.DEFERRED,op.getRelativePath());
+                    deferred.add(new DeferredSlipsheet(op));
                 }
-
+                continue;
+            }
+            if(state==FileHelper.LockState.NOT_WRITABLE){
+                recordOutcome(op.getRelativePath(),op.getSource(),DocumentOutcome.FAILED,0,"historical or current set file is not writable");
+                continue;
             }
+            journal.record(RunJournal.EventType.MATCHED,op.getRelativePath());
+            slipsheetSingleFile(op.getSource(),op.getTarget(),op.getCurrentTarget(),op.getRelativePath());
+        }
+        if(endBatch && batchPerDirectory){
+            runPendingJobs();
         }
         
-        if(recursive==true){
-            slipsheetSubDirectories(newDocDir,historicalDocDir,currentDocDir);
+        // both copies of a document are one task so its outcome is known in one place
+        Map<String, List<PlannedOperation>> copies = new LinkedHashMap<>();
+        for(PlannedOperation op:plan.getOperations()){
+            if(op.getType()==PlannedOperation.Type.COPY_TO_HISTORICAL || op.getType()==PlannedOperation.Type.COPY_TO_CURRENT){
+                List<PlannedOperation> documentCopies = copies.get(op.getRelativePath());
+                if(documentCopies==null){
+                    documentCopies = new ArrayList<>(2);
+                    copies.put(op.getRelativePath(),documentCopies);
+                }
+                documentCopies.add(op);
+            }
         }
+        for(final List<PlannedOperation> documentCopies:copies.values()){
+            if(!proceed()) break;
+            dispatch(new Runnable() {
+                
+                @Override
+                public void run() {
+                    if(proceed()) copyDocument(documentCopies);
+                }
+            });
+        }
+        retryDeferred(false);
     }
     
-    private void slipsheetSingleFile(File latest, File historical, File current){
-        File temp = new File(historical.getParentFile().getAbsolutePath() + "temp.pdf");
-        if (!FileHelper.isFileWritable(current)) {
-            logger.error("Unable to write to current set file. Skipping slipsheeting...");
-            return;
+    /**
+     * Reports and drops the slipsheets whose new document is the same as the
+     * current set document.
+     * 
+     * @return the slipsheets still to do
+     */
+    private List<PlannedOperation> skipIdentical(List<PlannedOperation> slipsheets){
+        if(comparator.getMode()==DocumentComparator.Mode.OFF || slipsheets.isEmpty()) return slipsheets;
+        List<File> newDocuments = new ArrayList<>(slipsheets.size());
+        List<File> currentDocuments = new ArrayList<>(slipsheets.size());
+        for(PlannedOperation op:slipsheets){
+            newDocuments.add(op.getSource());
+            currentDocuments.add(op.getCurrentTarget());
         }
-        if (!FileHelper.isFileWritable(historical)) {
-            logger.error("Unable to write to historical set file. Skipping slipsheeting...");
-            return;
+        long begin = System.nanoTime();
+        // the manifest records the new documents' hashes without reading them again
+        Map<File, String> newHashes = dryRun ? null : new ConcurrentHashMap<File, String>();
+        List<DocumentComparator.Comparison> comparisons = comparator.compareAll(newDocuments,currentDocuments,scanParallelism,newHashes);
+        metrics.recordSince(SlipsheetMetrics.Stage.COMPARE,begin);
+        if(newHashes!=null){
+            for(Map.Entry<File, String> hash:newHashes.entrySet()){
+                manifest.rememberHash(hash.getKey(),hash.getValue());
+            }
         }
-        try (PrintWriter writer = new PrintWriter("slipsheeter3000script.bci", "UTF-8")) {
-            writer.println("Open(\""+historical.getAbsolutePath()+"\")");
-            writer.println("Unflatten()");
-            writer.println("PageExtract(\"1\",\""+temp.getAbsolutePath()+"\")");
-            writer.println("InsertPages(\"0\",\""+temp.getAbsolutePath()+"\")");
-            writer.println("ReplacePages (\""+latest.getAbsolutePath()+"\",\"1\",\"1\",\"true\")");
-            writer.println("Stamp (\""+stampPDF.getAbsolutePath()+"\",\"upperleft\",\"1\",\"1\",\"0\",\"1\",\"1\",\"normal\",\"2\",\"true\")");
-            writer.println("DeleteFile(\""+temp.getAbsolutePath()+"\")");
-            writer.println("Flatten()");
-            writer.println("DeleteFile(\""+current.getAbsolutePath()+"\")");
-            writer.println("PageExtract(\"1\",\""+current.getAbsolutePath()+"\") ");
-            writer.println("Save()");
-            writer.println("Close()");
-            writer.close();
-            
-            logger.debug(Files.readAllLines(Paths.get("slipsheeter3000script.bci"), StandardCharsets.UTF_8));
-            
-            // execute bluebeam script
-            executeBlueBeamScript("slipsheeter3000script.bci");
-        } catch (FileNotFoundException | UnsupportedEncodingException ex) {
-            logger.error("unable to complete slipsheeting: "+ex);
-        } catch (IOException ex) {
-            logger.error("error while running slipsheeting process: "+ex);
+        List<PlannedOperation> remaining = new ArrayList<>(slipsheets.size());
+        for(int i=0;i<slipsheets.size();i++){
+            PlannedOperation op = slipsheets.get(i);
+            DocumentComparator.Comparison comparison = comparisons.get(i);
+            if(comparison.isIdentical()){
+                String message = comparison==DocumentComparator.Comparison.IDENTICAL_BYTES ? "identical bytes" : "identical page content";
+                if(dryRun){
+                    journal.record(RunJournal.EventType.SKIPPED_IDENTICAL,op.getRelativePath(),0,message);
+                    report.add(op.getRelativePath(),DocumentOutcome.SKIPPED_IDENTICAL,0,message+", dry run");
+                } else {
+                    recordOutcome(op.getRelativePath(),op.getSource(),DocumentOutcome.SKIPPED_IDENTICAL,0,message);
+                }
+            } else {
+                remaining.add(op);
+            }
         }
+        return remaining;
     }
     
-    private void executeBlueBeamScript(String scriptName){
-        String cmd = this.bbScriptEngine.getAbsolutePath()+ " Script(\""+scriptName+"\")";
-        try {
-            // Run "netsh" Windows command
-            Process process = Runtime.getRuntime().exec(cmd);
-
-            // Get input streams
-            BufferedReader stdInput = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            BufferedReader stdError = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-
-            // Read command standard output
-            String s;
-            logger.debug("Standard output: ");
-            while ((s = stdInput.readLine()) != null) {
-                logger.debug(s);
+    /**
+     * Probes the historical and current set files of the slipsheets in
+     * parallel before any of them is started.
+     */
+    private Map<File, FileHelper.LockState> probeLocks(List<PlannedOperation> slipsheets){
+        List<File> files = new ArrayList<>(slipsheets.size()*2);
+        for(PlannedOperation op:slipsheets){
+            files.add(op.getTarget());
+            files.add(op.getCurrentTarget());
+        }
+        long begin = System.nanoTime();
+        Map<File, FileHelper.LockState> locks = FileHelper.probeLocks(files,scanParallelism);
+        metrics.recordSince(SlipsheetMetrics.Stage.LOCK_PROBE,begin);
+        return locks;
+    }
+    
+    private static FileHelper.LockState lockState(Map<File, FileHelper.LockState> locks, PlannedOperation op){
+        FileHelper.LockState historical = locks.get(op.getTarget());
+        FileHelper.LockState current = locks.get(op.getCurrentTarget());
+        if(historical==FileHelper.LockState.NOT_WRITABLE || current==FileHelper.LockState.NOT_WRITABLE){
+            return FileHelper.LockState.NOT_WRITABLE;
+        }
+        if(historical==FileHelper.LockState.LOCKED || current==FileHelper.LockState.LOCKED){
+            return FileHelper.LockState.LOCKED;
+        }
+        return FileHelper.LockState.FREE;
+    }
+    
+    /**
+     * Tries the slipsheets that were deferred because a file was open
+     * elsewhere and whose backoff has passed. A document still locked after
+     * the last retry is reported as {@link DocumentOutcome#LOCKED}.
+     * 
+     * @param wait true to wait until every deferred slipsheet has either run
+     * or given up, false to only try the ones that are due
+     */
+    private void retryDeferred(boolean wait){
+        while(!deferred.isEmpty()){
+            if(!proceed()){
+                deferred.clear();
+                return;
             }
-
-            // Read command errors
-            logger.debug("Standard error: ");
-            while ((s = stdError.readLine()) != null) {
-                logger.error(s);
+            long now = System.nanoTime();
+            long nextDue = Long.MAX_VALUE;
+            List<PlannedOperation> due = new ArrayList<>();
+            List<DeferredSlipsheet> dueSlipsheets = new ArrayList<>();
+            for(DeferredSlipsheet d:deferred){
+                if(d.dueNanos<=now){
+                    due.add(d.op);
+                    dueSlipsheets.add(d);
+                } else {
+                    nextDue = Math.min(nextDue,d.dueNanos);
+                }
+            }
+            if(due.isEmpty()){
+                if(!wait) return;
+                logger.info("Waiting for "+deferred.size()+" locked document(s)...");
+                try {
+                    synchronized(runLock){
+                        // a cancel ends the wait early
+                        if(!cancelled) TimeUnit.NANOSECONDS.timedWait(runLock,nextDue-now);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    for(DeferredSlipsheet d:deferred){
+                        giveUp(d);
+                    }
+                    deferred.clear();
+                    return;
+                }
+                continue;
             }
-        } catch (Exception e) {
-            logger.error(e.getMessage());
-            logger.error(e.getStackTrace().toString());
+            deferred.removeAll(dueSlipsheets);
+            Map<File, FileHelper.LockState> locks = probeLocks(due);
+            for(DeferredSlipsheet d:dueSlipsheets){
+                FileHelper.LockState state = lockState(locks,d.op);
+                if(state==FileHelper.LockState.FREE){
+                    journal.record(RunJournal.EventType.MATCHED,d.op.getRelativePath(),0,"no longer locked");
+                    slipsheetSingleFile(d.op.getSource(),d.op.getTarget(),d.op.getCurrentTarget(),d.op.getRelativePath());
+                } else if(state==FileHelper.LockState.NOT_WRITABLE){
+                    recordOutcome(d.op.getRelativePath(),d.op.getSource(),DocumentOutcome.FAILED,0,"historical or current set file is not writable");
+                } else if(++d.attempts>=lockRetries){
+                    giveUp(d);
+                } else {
+                    d.schedule();
+                    deferred.add(d);
+                }
+            }
+            runPendingJobs();
         }
     }
     
-    private void copyFile(File file, File destDir){
-        File dest = new File(destDir.getAbsolutePath()+'\\'+file.getName());
+    private void giveUp(DeferredSlipsheet d){
+        lockedCount.incrementAndGet();
+        recordOutcome(d.op.getRelativePath(),d.op.getSource(),DocumentOutcome.LOCKED,0,
+                "still open elsewhere after "+d.attempts+" retries: "+d.op.getTarget()+", "+d.op.getCurrentTarget());
+    }
+    
+    private void copyDocument(List<PlannedOperation> documentCopies){
+        PlannedOperation first = documentCopies.get(0);
+        long begin = System.nanoTime();
+        boolean copied = true;
+        String copyFailure = null;
+        List<File> targets = new ArrayList<>(documentCopies.size());
+        for(PlannedOperation op:documentCopies){
+            targets.add(op.getTarget());
+        }
+        // clones and hard links write no bytes, so they don't count towards the copy throughput
+        long bytesWritten = 0;
         try{
-            //dest.createNewFile();
-            Files.copy(file.toPath(), dest.toPath(),StandardCopyOption.REPLACE_EXISTING);
+            Map<File, DocumentPlacer.Strategy> used = placer.place(first.getSource(),targets);
+            if(logger.isDebugEnabled()){
+                logger.debug("Placed "+first.getRelativePath()+": "+used);
+            }
+            for(DocumentPlacer.Strategy strategy:used.values()){
+                if(strategy==DocumentPlacer.Strategy.REFLINK) metrics.increment(SlipsheetMetrics.Counter.CLONED);
+                else if(strategy==DocumentPlacer.Strategy.HARD_LINK) metrics.increment(SlipsheetMetrics.Counter.LINKED);
+                else bytesWritten += first.getBytes();
+            }
+            for(PlannedOperation op:documentCopies){
+                if(op.getType()==PlannedOperation.Type.COPY_TO_HISTORICAL){
+                    historicalIndex.add(op.getRelativeDir(),op.getTarget().getName());
+                }
+            }
         } catch (IOException ioe) {
-            logger.error(ioe.getMessage());
+            copied = false;
+            copyFailure = "copy failed: "+ioe.getMessage();
         }
+        long elapsed = System.nanoTime()-begin;
+        if(bytesWritten>0) timingHistory.recordCopy(elapsed,bytesWritten);
+        metrics.record(SlipsheetMetrics.Stage.COPY,elapsed);
+        metrics.add(SlipsheetMetrics.Counter.BYTES_COPIED,bytesWritten);
+        recordOutcome(first.getRelativePath(),first.getSource(),copied ? DocumentOutcome.COPIED : DocumentOutcome.FAILED,
+                elapsed,copyFailure);
     }
     
-    private boolean containsFileName(File[] directory, File file){
-        for(File f:directory){
-            if(f.getName().equals(file.getName())) return true;
+    private void recordOutcome(String relativePath, File newFile, DocumentOutcome outcome, long nanos, String message){
+        manifest.record(relativePath,newFile,outcome);
+        switch(outcome){
+            case COPIED: metrics.increment(SlipsheetMetrics.Counter.COPIED); break;
+            case SLIPSHEETED: metrics.increment(SlipsheetMetrics.Counter.SLIPSHEETED); break;
+            case LOCKED: metrics.increment(SlipsheetMetrics.Counter.LOCKED); break;
+            case SKIPPED_IDENTICAL: metrics.increment(SlipsheetMetrics.Counter.IDENTICAL); break;
+            case FAILED: metrics.increment(SlipsheetMetrics.Counter.FAILED); break;
+            default: break;
         }
-        return false;
+        report.add(relativePath,outcome,nanos/1000000,message);
+        if(progress!=null) progress.documentFinished(relativePath,outcome,newFile==null ? 0 : newFile.length(),message);
+        journal.record(RunJournal.EventType.of(outcome),relativePath,nanos,message);
     }
-
-    private void slipsheetSubDirectories(File newDocDir, File historicalDocDir, File currentDocDir) {
-        DirectoryFileFilter dff = new DirectoryFileFilter();
-        File[] newSubDirectories = newDocDir.listFiles(dff);
-        if(newSubDirectories==null) return;
-        for(File newSubDir:newSubDirectories){
-            
-            File histSubDir = new File(historicalDocDir.getAbsolutePath()+"\\"+newSubDir.getName());
-            File currSubDir = new File(currentDocDir.getAbsolutePath()+"\\"+newSubDir.getName());
-            
-            if(!histSubDir.exists()) histSubDir.mkdir();
-            if(!currSubDir.exists()) currSubDir.mkdir();
+    
+    private void slipsheetSingleFile(File latest, File historical, File current, String relativePath){
+        pendingJobs.add(new SlipsheetJob(latest, historical, current, stampPDF, relativePath));
+        if(pendingJobs.size()>=batchSize){
+            runPendingJobs();
+        }
+    }
+    
+    private void runPendingJobs(){
+        pendingDir = null;
+        if(pendingJobs.isEmpty()) return;
+        final List<SlipsheetJob> batch = new ArrayList<>(pendingJobs);
+        pendingJobs.clear();
+        if(cancelled) return;
+        dispatch(new Runnable() {
             
-            slipsheetDirectory(newSubDir,histSubDir,currSubDir,true);
+            @Override
+            public void run() {
+                if(proceed()) runBatch(batch);
+            }
+        });
+    }
+    
+    private void runBatch(List<SlipsheetJob> batch){
+        long begin = System.nanoTime();
+        Map<SlipsheetJob, List<String>> latestDigests = new HashMap<>();
+        List<SlipsheetJob> aligned = align(batch,latestDigests);
+        try {
+            if(!aligned.isEmpty()) engine.slipsheet(aligned);
+        } catch (RuntimeException ex) {
+            for(SlipsheetJob job:aligned){
+                job.setFailure(ex.toString());
+            }
+        }
+        long elapsed = System.nanoTime()-begin;
+        engineNanos.addAndGet(elapsed);
+        batchCount.incrementAndGet();
+        metrics.record(SlipsheetMetrics.Stage.SLIPSHEET,elapsed);
+        metrics.increment(SlipsheetMetrics.Counter.BATCHES);
+        for(SlipsheetJob job:batch){
+            slipsheetCount.incrementAndGet();
+            if(job.isFailed()){
+                failureCount.incrementAndGet();
+            } else {
+                timingHistory.recordSlipsheet(elapsed/batch.size());
+            }
+            // a batch is one engine run, so each document gets an equal share of it
+            String message = job.getFailure();
+            if(!job.isFailed()){
+                // the current set file now has exactly the latest pages
+                pageCache.put(job.getCurrent(),latestDigests.get(job));
+                message = job.getAlignment().toString();
+                if(job.getHistoricalBytesBefore()>=0){
+                    message += ", historical "+job.getHistoricalBytesBefore()+" -> "+job.getHistoricalBytesAfter()+" bytes";
+                }
+            }
+            recordOutcome(job.getRelativePath(),job.getLatest(),job.isFailed() ? DocumentOutcome.FAILED : DocumentOutcome.SLIPSHEETED,
+                    elapsed/batch.size(),message);
+        }
+    }
+    
+    /**
+     * Lines up the pages of each latest document with the current set file it
+     * supersedes. The pages of both come from the page cache when unchanged.
+     * 
+     * @return the jobs that could be aligned
+     */
+    private List<SlipsheetJob> align(List<SlipsheetJob> batch, Map<SlipsheetJob, List<String>> latestDigests){
+        long begin = System.nanoTime();
+        List<SlipsheetJob> aligned = new ArrayList<>(batch.size());
+        for(SlipsheetJob job:batch){
+            try {
+                List<String> latest = pageCache.getDigests(job.getLatest());
+                if(job.getCurrent().isFile()){
+                    job.setAlignment(PageAlignment.align(pageCache.getDigests(job.getCurrent()),latest));
+                } else {
+                    // without the current set file only a single page is known to be current
+                    int historicalPages = pageCache.getPageCount(job.getHistorical());
+                    if(historicalPages!=1){
+                        job.setFailure("the current set file "+job.getCurrent()+" is missing, so it is unknown which of the "
+                                +historicalPages+" pages of the historical document are current");
+                        continue;
+                    }
+                    job.setAlignment(PageAlignment.singlePage(latest.size()));
+                }
+                latestDigests.put(job,latest);
+                aligned.add(job);
+            } catch (IOException | RuntimeException ex) {
+                job.setFailure("unable to read the pages: "+ex);
+            }
+        }
+        metrics.recordSince(SlipsheetMetrics.Stage.PAGE_ALIGN,begin);
+        return aligned;
+    }
+    
+    /**
+     * A slipsheet waiting for its files to be closed elsewhere.
+     */
+    private class DeferredSlipsheet {
+        
+        private final PlannedOperation op;
+        private int attempts;
+        private long dueNanos;
+        
+        private DeferredSlipsheet(PlannedOperation op){
+            this.op = op;
+            schedule();
+        }
+        
+        private void schedule(){
+            dueNanos = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(lockBackoffMillis<<Math.min(attempts,16));
         }
     }
     
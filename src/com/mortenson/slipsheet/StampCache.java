@@ -0,0 +1,141 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.log4j.Logger;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.multipdf.LayerUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+
+/**
+ * Keeps parsed stamp PDFs in memory so a stamp is read and parsed once and
+ * then reused for every document it is applied to. Stamps are keyed by their
+ * path and reloaded when the file's modification time or size changes. The
+ * least recently used stamp is dropped once more than the capacity are in
+ * use, since different projects use different "Superseded" stamps.
+ *
+ * A stamp is read into memory in one go, so no file handle stays open on the
+ * stamp PDF while it is cached.
+ *
+ * @author jdegiova
+ */
+public class StampCache {
+
+    public static final int DEFAULT_CAPACITY = 4;
+
+    private final Logger logger = Logger.getRootLogger();
+    private final Map<String, Stamp> stamps;
+    private int loadCount;
+
+    public StampCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public StampCache(final int capacity) {
+        stamps = new LinkedHashMap<String, Stamp>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Stamp> eldest) {
+                if (size() <= capacity) return false;
+                logger.debug("evicting stamp " + eldest.getKey());
+                eldest.getValue().close();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Imports the first page of the stamp PDF into the given document as a
+     * form, parsing the stamp only if it is not cached yet.
+     */
+    public PDFormXObject importForm(File stampPDF, PDDocument target) throws IOException {
+        while (true) {
+            Stamp stamp = get(stampPDF);
+            // a PDDocument is not thread safe, so imports from one stamp take turns
+            synchronized (stamp) {
+                if (stamp.document != null) {
+                    return new LayerUtility(target).importPageAsForm(stamp.document, 0);
+                }
+            }
+            // evicted by another thread in the meantime
+        }
+    }
+
+    private synchronized Stamp get(File stampPDF) throws IOException {
+        String key = stampPDF.getAbsolutePath();
+        long lastModified = stampPDF.lastModified();
+        long length = stampPDF.length();
+        Stamp stamp = stamps.get(key);
+        if (stamp != null && stamp.lastModified == lastModified && stamp.length == length) {
+            return stamp;
+        }
+        if (stamp != null) {
+            logger.debug("stamp " + key + " has changed, reloading");
+            stamps.remove(key);
+            stamp.close();
+        }
+        stamp = new Stamp(Loader.loadPDF(Files.readAllBytes(stampPDF.toPath())), lastModified, length);
+        loadCount++;
+        stamps.put(key, stamp);
+        return stamp;
+    }
+
+    /**
+     * @return how many times a stamp PDF was read and parsed
+     */
+    public synchronized int getLoadCount() {
+        return loadCount;
+    }
+
+    /**
+     * Closes all cached stamps.
+     */
+    public synchronized void clear() {
+        for (Stamp stamp : stamps.values()) {
+            stamp.close();
+        }
+        stamps.clear();
+    }
+
+    private class Stamp {
+
+        private PDDocument document;
+        private final long lastModified;
+        private final long length;
+
+        private Stamp(PDDocument document, long lastModified, long length) {
+            this.document = document;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        private synchronized void close() {
+            try {
+                document.close();
+            } catch (IOException ex) {
+                logger.warn("Unable to close stamp: " + ex.getMessage());
+            }
+            document = null;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Properties;
+import org.apache.log4j.Logger;
+
+/**
+ * Average durations of past operations, used to estimate how long
+ * a {@link SlipsheetPlan} will take. Kept in a properties file next to
+ * slipsheet.cfg and updated at the end of every run. Slipsheet durations are
+ * kept per engine.
+ *
+ * @author jdegiova
+ */
+public class TimingHistory {
+
+    public static final String DEFAULT_FILE_NAME = "slipsheet-timings.properties";
+
+    // used until there is history for an engine
+    private static final double DEFAULT_SLIPSHEET_MILLIS = 2000;
+    private static final double DEFAULT_COPY_BYTES_PER_MILLI = 20 * 1024;
+    private static final double DEFAULT_MKDIR_MILLIS = 5;
+    // weight of the latest run in the moving averages
+    private static final double WEIGHT = 0.3;
+
+    private final File file;
+    private final String engine;
+    private final Properties timings = new Properties();
+    private final Logger logger = Logger.getRootLogger();
+    private long slipsheetNanos, copyNanos, copyBytes, mkdirNanos;
+    private int slipsheets, mkdirs;
+
+    private TimingHistory(File file, String engine) {
+        this.file = file;
+        this.engine = engine;
+    }
+
+    public static TimingHistory load(File file, String engine) {
+        TimingHistory history = new TimingHistory(file, engine);
+        try (FileReader fr = new FileReader(file)) {
+            history.timings.load(fr);
+        } catch (FileNotFoundException ex) {
+            history.logger.debug("No timing history yet");
+        } catch (IOException ex) {
+            history.logger.error("Unable to load timing history " + file + ": " + ex);
+        }
+        return history;
+    }
+
+    public double getSlipsheetMillis() {
+        return get(engine + ".slipsheetMillis", DEFAULT_SLIPSHEET_MILLIS);
+    }
+
+    public double getCopyBytesPerMilli() {
+        return get("copyBytesPerMilli", DEFAULT_COPY_BYTES_PER_MILLI);
+    }
+
+    public double getMkdirMillis() {
+        return get("mkdirMillis", DEFAULT_MKDIR_MILLIS);
+    }
+
+    /**
+     * @return the estimated duration in milliseconds of the plan's
+     * operations when run by the given number of workers
+     */
+    public long estimateMillis(SlipsheetPlan plan, int parallelism) {
+        double sequential = plan.getCount(PlannedOperation.Type.MKDIR) * getMkdirMillis();
+        double parallel = plan.getCount(PlannedOperation.Type.SLIPSHEET) * getSlipsheetMillis()
+                + (plan.getBytes(PlannedOperation.Type.COPY_TO_HISTORICAL) + plan.getBytes(PlannedOperation.Type.COPY_TO_CURRENT)) / getCopyBytesPerMilli();
+        return (long) (sequential + parallel / Math.max(1, parallelism));
+    }
+
+    public synchronized void recordSlipsheet(long nanos) {
+        slipsheetNanos += nanos;
+        slipsheets++;
+    }
+
+    public synchronized void recordCopy(long nanos, long bytes) {
+        copyNanos += nanos;
+        copyBytes += bytes;
+    }
+
+    public synchronized void recordMkdir(long nanos) {
+        mkdirNanos += nanos;
+        mkdirs++;
+    }
+
+    /**
+     * Folds the timings of this run into the averages and saves them.
+     */
+    public synchronized void save() {
+        if (slipsheets > 0) {
+            update(engine + ".slipsheetMillis", slipsheetNanos / 1e6 / slipsheets, DEFAULT_SLIPSHEET_MILLIS);
+        }
+        if (copyNanos > 0) {
+            update("copyBytesPerMilli", copyBytes / (copyNanos / 1e6), DEFAULT_COPY_BYTES_PER_MILLI);
+        }
+        if (mkdirs > 0) {
+            update("mkdirMillis", mkdirNanos / 1e6 / mkdirs, DEFAULT_MKDIR_MILLIS);
+        }
+        if (slipsheets == 0 && copyNanos == 0 && mkdirs == 0) return;
+        try (FileWriter fw = new FileWriter(file)) {
+            timings.store(fw, "Average operation timings for Slippy 3000");
+        } catch (IOException ex) {
+            logger.error("Unable to save timing history " + file + ": " + ex);
+        }
+        slipsheetNanos = copyNanos = copyBytes = mkdirNanos = 0;
+        slipsheets = mkdirs = 0;
+    }
+
+    private double get(String key, double defaultValue) {
+        String value = timings.getProperty(key);
+        if (value == null) return defaultValue;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+
+    private void update(String key, double latest, double defaultValue) {
+        double average = timings.containsKey(key) ? (1 - WEIGHT) * get(key, defaultValue) + WEIGHT * latest : latest;
+        timings.setProperty(key, String.valueOf(average));
+    }
+}
@@ -0,0 +1,167 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * Scans a directory tree in a single pass. Every directory is listed once and
+ * the attributes of each entry are read once, instead of listing each
+ * directory separately for PDFs and for subdirectories. Subtrees can be
+ * scanned in parallel, which helps on network shares where every listing is a
+ * round trip.
+ *
+ * Symbolic links are followed like the files and directories they point to.
+ * A link back to a directory above it is skipped, and so is a broken link;
+ * both are logged.
+ *
+ * @author jdegiova
+ */
+public class TreeScanner {
+
+    private final int parallelism;
+    private final AtomicInteger scannedPdfs = new AtomicInteger();
+    private final Logger logger = Logger.getRootLogger();
+
+    /**
+     * @param parallelism the number of directories listed at the same time
+     */
+    public TreeScanner(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @return the number of PDFs found so far; can be read while a scan is
+     * running to report progress
+     */
+    public int getScannedPdfCount() {
+        return scannedPdfs.get();
+    }
+
+    public ScanSnapshot scan(File root) {
+        long scannedAt = System.currentTimeMillis();
+        Map<String, ScanSnapshot.Directory> directories = new ConcurrentHashMap<>();
+        Path rootPath = root.getAbsoluteFile().toPath();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ScanTask(null, rootPath, "", directories));
+        } finally {
+            pool.shutdown();
+        }
+        return new ScanSnapshot(root, directories, scannedAt);
+    }
+
+    private class ScanTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        // the task of the directory above, to tell a link back up the tree
+        private final ScanTask parent;
+        private final Path dir;
+        private final String relativePath;
+        private final Map<String, ScanSnapshot.Directory> directories;
+
+        private ScanTask(ScanTask parent, Path dir, String relativePath, Map<String, ScanSnapshot.Directory> directories) {
+            this.parent = parent;
+            this.dir = dir;
+            this.relativePath = relativePath;
+            this.directories = directories;
+        }
+
+        @Override
+        protected void compute() {
+            List<ScanSnapshot.ScannedFile> pdfs = new ArrayList<>();
+            List<String> subdirectories = new ArrayList<>();
+            long lastModified = 0;
+            try {
+                lastModified = Files.getLastModifiedTime(dir).toMillis();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path entry : stream) {
+                        BasicFileAttributes attrs;
+                        try {
+                            attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        } catch (IOException ex) {
+                            logger.error("Unable to read " + entry + ": " + ex);
+                            continue;
+                        }
+                        if (attrs.isSymbolicLink()) {
+                            attrs = followLink(entry);
+                            if (attrs == null) continue;
+                        }
+                        String name = entry.getFileName().toString();
+                        if (attrs.isDirectory()) {
+                            subdirectories.add(name);
+                        } else if (attrs.isRegularFile() && name.toLowerCase().endsWith(".pdf")) {
+                            pdfs.add(new ScanSnapshot.ScannedFile(entry.toFile(), attrs.size(), attrs.lastModifiedTime().toMillis()));
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                logger.error("Unable to list " + dir + ": " + ex);
+            }
+            scannedPdfs.addAndGet(pdfs.size());
+            directories.put(relativePath, new ScanSnapshot.Directory(dir.toFile(), relativePath, lastModified, pdfs, subdirectories));
+
+            List<ScanTask> subtasks = new ArrayList<>(subdirectories.size());
+            for (String name : subdirectories) {
+                subtasks.add(new ScanTask(this, dir.resolve(name), relativePath.isEmpty() ? name : relativePath + "/" + name, directories));
+            }
+            invokeAll(subtasks);
+        }
+
+        /**
+         * @return the attributes of what the link points to, or null if the
+         * link is broken or leads back to a directory being scanned
+         */
+        private BasicFileAttributes followLink(Path link) {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(link, BasicFileAttributes.class);
+            } catch (IOException ex) {
+                logger.warn("Skipping " + link + ", the link is broken: " + ex);
+                return null;
+            }
+            if (!attrs.isDirectory()) return attrs;
+            try {
+                for (ScanTask above = this; above != null; above = above.parent) {
+                    if (Files.isSameFile(link, above.dir)) {
+                        logger.warn("Skipping " + link + ", it links back to " + above.dir);
+                        return null;
+                    }
+                }
+            } catch (IOException ex) {
+                logger.warn("Skipping " + link + ": " + ex);
+                return null;
+            }
+            return attrs;
+        }
+    }
+}
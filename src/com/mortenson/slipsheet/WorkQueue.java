@@ -0,0 +1,437 @@
+/* 
+ * Copyright (C) 2014 jdegiova
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mortenson.slipsheet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * A work queue in a directory that several workers share, on one machine or
+ * on several machines mounting the same share. The new document set is cut
+ * into units of at most {@link #DEFAULT_UNIT_SIZE} documents of one
+ * directory. A worker claims a unit by creating its lease file, which only
+ * one worker can do, and keeps the lease alive by replacing it with a fresh
+ * copy while it still names the worker as its owner. A lease that
+ * hasn't changed for the expiry time, measured on the clock of the worker
+ * looking at it so the machines' clocks don't need to agree, belongs to a
+ * worker that died and is taken over.
+ *
+ * Every worker appends the outcome of each document to a completion log of
+ * its own; together they are the log of the whole run, and a worker taking
+ * over a unit skips the documents already in it.
+ * <pre>
+ * queue/units/&lt;id&gt;.unit      directory, then one document name per line
+ * queue/leases/&lt;id&gt;.lease    owner and heartbeat count
+ * queue/done/&lt;id&gt;.done       the unit is finished
+ * queue/done/&lt;worker&gt;.log    time, worker, outcome and path of each document, tab separated
+ * queue/workers/&lt;worker&gt;/    the worker's index, manifest, metrics, journal and report
+ * </pre>
+ *
+ * @author jdegiova
+ */
+public class WorkQueue {
+
+    public static final int DEFAULT_UNIT_SIZE = 100;
+    public static final long DEFAULT_LEASE_EXPIRY_MILLIS = 60000;
+
+    private static final String UNIT = ".unit";
+    private static final String LEASE = ".lease";
+    private static final String DONE = ".done";
+    private static final String LOG = ".log";
+
+    private final Logger logger = Logger.getRootLogger();
+    private final File units, leases, done, workerDirectory;
+    private final String workerId;
+    private final Random random;
+    private long leaseExpiryMillis = DEFAULT_LEASE_EXPIRY_MILLIS;
+    /** lease file -> {modification time, local time it was first seen with it} */
+    private final Map<String, long[]> observedLeases = new HashMap<>();
+    /** completion log -> bytes read so far */
+    private final Map<String, Long> logOffsets = new HashMap<>();
+    private final Set<String> completed = new HashSet<>();
+    private FileOutputStream completionLog;
+
+    /**
+     * @param workerId unique among the workers of the queue, see
+     * {@link #defaultWorkerId()}
+     */
+    public WorkQueue(File directory, String workerId) throws IOException {
+        this.units = new File(directory, "units");
+        this.leases = new File(directory, "leases");
+        this.done = new File(directory, "done");
+        this.workerDirectory = new File(new File(directory, "workers"), workerId);
+        this.workerId = workerId;
+        this.random = new Random(workerId.hashCode() ^ System.nanoTime());
+        for (File dir : new File[]{units, leases, done, workerDirectory}) {
+            if (!dir.mkdirs() && !dir.isDirectory()) throw new IOException("unable to create " + dir);
+        }
+    }
+
+    /**
+     * @return host name and process id, unique across machines
+     */
+    public static String defaultWorkerId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException ex) {
+            host = "localhost";
+        }
+        return host.replaceAll("[^A-Za-z0-9_-]", "_") + "-" + ProcessHandle.current().pid();
+    }
+
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    /**
+     * @return where this worker keeps its state files
+     */
+    public File getWorkerDirectory() {
+        return workerDirectory;
+    }
+
+    /**
+     * @param leaseExpiryMillis how long a lease may go without a heartbeat
+     * before it is taken over; heartbeats should come several times as often
+     */
+    public void setLeaseExpiryMillis(long leaseExpiryMillis) {
+        this.leaseExpiryMillis = leaseExpiryMillis;
+    }
+
+    public long getLeaseExpiryMillis() {
+        return leaseExpiryMillis;
+    }
+
+    /**
+     * Cuts the scanned new document set into units. Units are named after
+     * their content, so any number of workers may enqueue the same set: units
+     * that already exist are left alone.
+     *
+     * @return the number of units created
+     */
+    public int enqueue(ScanSnapshot snapshot, int unitSize) throws IOException {
+        int created = 0;
+        for (ScanSnapshot.Directory dir : snapshot.getDirectories()) {
+            List<ScanSnapshot.ScannedFile> pdfs = dir.getPdfs();
+            for (int from = 0; from < pdfs.size(); from += unitSize) {
+                StringBuilder content = new StringBuilder(dir.getRelativePath()).append('\n');
+                for (ScanSnapshot.ScannedFile pdf : pdfs.subList(from, Math.min(pdfs.size(), from + unitSize))) {
+                    content.append(pdf.getName()).append('\n');
+                }
+                // the directory and the names, so a unit id never stands for other documents
+                File unit = new File(units, id(content.toString()) + UNIT);
+                if (unit.exists()) continue;
+                // written aside and moved in, so no worker reads half a unit
+                File temp = File.createTempFile("unit", ".tmp", units);
+                Files.write(temp.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+                try {
+                    Files.move(temp.toPath(), unit.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    created++;
+                } catch (FileAlreadyExistsException ex) {
+                    temp.delete();
+                }
+            }
+        }
+        return created;
+    }
+
+    /**
+     * @return true once every unit is done
+     */
+    public boolean isFinished() {
+        for (String unit : listUnits()) {
+            if (!new File(done, unit + DONE).exists()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Claims a unit that is neither done nor leased, or whose lease expired.
+     *
+     * @return the lease, or null if every remaining unit is held by a live
+     * worker
+     */
+    public Lease claim() throws IOException {
+        List<String> ids = listUnits();
+        Collections.shuffle(ids, random);
+        for (String id : ids) {
+            if (new File(done, id + DONE).exists()) continue;
+            File lease = new File(leases, id + LEASE);
+            if (lease.exists() && !takeOverIfExpired(lease)) continue;
+            try {
+                Files.write(lease.toPath(), leaseContent(0), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException ex) {
+                continue;
+            }
+            // finished by another worker between the listing and the claim
+            if (new File(done, id + DONE).exists()) {
+                lease.delete();
+                continue;
+            }
+            List<String> lines = Files.readAllLines(new File(units, id + UNIT).toPath(), StandardCharsets.UTF_8);
+            return new Lease(id, lease, lines.get(0), lines.subList(1, lines.size()));
+        }
+        return null;
+    }
+
+    private boolean takeOverIfExpired(File lease) {
+        long modified = lease.lastModified();
+        long now = System.nanoTime();
+        long[] seen = observedLeases.get(lease.getName());
+        if (seen == null || seen[0] != modified) {
+            observedLeases.put(lease.getName(), new long[]{modified, now});
+            return false;
+        }
+        if (now - seen[1] < TimeUnit.MILLISECONDS.toNanos(leaseExpiryMillis)) return false;
+        // only one worker can move the expired lease away
+        File expired = new File(leases, lease.getName() + "." + workerId + ".expired");
+        try {
+            try {
+                Files.move(lease.toPath(), expired.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(lease.toPath(), expired.toPath());
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+        String owner = readOwner(expired);
+        expired.delete();
+        observedLeases.remove(lease.getName());
+        logger.warn("Taking over " + lease.getName() + " from " + owner + ", no heartbeat for " + leaseExpiryMillis + " ms");
+        return true;
+    }
+
+    private List<String> listUnits() {
+        String[] names = units.list();
+        List<String> ids = new ArrayList<>();
+        if (names == null) return ids;
+        for (String name : names) {
+            if (name.endsWith(UNIT)) ids.add(name.substring(0, name.length() - UNIT.length()));
+        }
+        return ids;
+    }
+
+    private byte[] leaseContent(long heartbeat) {
+        return (workerId + "\n" + heartbeat + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readOwner(File lease) {
+        try {
+            List<String> lines = Files.readAllLines(lease.toPath(), StandardCharsets.UTF_8);
+            return lines.isEmpty() ? "" : lines.get(0);
+        } catch (IOException ex) {
+            return "";
+        }
+    }
+
+    /**
+     * Appends a document's outcome to this worker's completion log.
+     */
+    public synchronized void recordCompletion(String relativePath, DocumentOutcome outcome) {
+        String line = System.currentTimeMillis() + "\t" + workerId + "\t" + outcome + "\t" + relativePath + "\n";
+        try {
+            if (completionLog == null) {
+                completionLog = new FileOutputStream(new File(done, workerId + LOG), true);
+            }
+            completionLog.write(line.getBytes(StandardCharsets.UTF_8));
+            completionLog.flush();
+        } catch (IOException ex) {
+            logger.error("Unable to write completion log: " + ex);
+        }
+        completed.add(relativePath);
+    }
+
+    /**
+     * @return the documents in the completion logs of all workers, read up
+     * to now
+     */
+    public synchronized Set<String> getCompleted() {
+        String[] names = done.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(LOG)) readLog(new File(done, name));
+            }
+        }
+        return new HashSet<>(completed);
+    }
+
+    /**
+     * Reads the lines added to a completion log since the last time. A line
+     * still being written is left for next time.
+     */
+    private void readLog(File log) {
+        Long offset = logOffsets.get(log.getName());
+        long from = offset == null ? 0 : offset;
+        try (RandomAccessFile in = new RandomAccessFile(log, "r")) {
+            long length = in.length();
+            if (length <= from) return;
+            byte[] bytes = new byte[(int) (length - from)];
+            in.seek(from);
+            in.readFully(bytes);
+            int lineStart = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] != '\n') continue;
+                String[] fields = new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8).split("\t", 4);
+                if (fields.length == 4) completed.add(fields[3]);
+                lineStart = i + 1;
+            }
+            logOffsets.put(log.getName(), from + lineStart);
+        } catch (IOException ex) {
+            logger.error("Unable to read completion log " + log + ": " + ex);
+        }
+    }
+
+    public synchronized void close() {
+        if (completionLog == null) return;
+        try {
+            completionLog.close();
+        } catch (IOException ex) {
+            logger.error("Unable to close completion log: " + ex);
+        }
+        completionLog = null;
+    }
+
+    private static String id(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(40);
+            for (byte b : Arrays.copyOf(digest, 12)) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * A claimed unit.
+     */
+    public final class Lease {
+
+        private final String id;
+        private final File file;
+        private final String relativeDir;
+        private final List<String> names;
+        private long heartbeats;
+        // once another worker took the lease over it stays lost
+        private volatile boolean lost;
+
+        private Lease(String id, File file, String relativeDir, List<String> names) {
+            this.id = id;
+            this.file = file;
+            this.relativeDir = relativeDir;
+            this.names = Collections.unmodifiableList(new ArrayList<>(names));
+        }
+
+        /**
+         * @return the directory of the unit relative to the new document set
+         */
+        public String getRelativeDir() {
+            return relativeDir;
+        }
+
+        public List<String> getNames() {
+            return names;
+        }
+
+        /**
+         * @return false once another worker took the lease over
+         */
+        public boolean isHeld() {
+            if (lost) return false;
+            if (workerId.equals(readOwner(file))) return true;
+            lost = true;
+            return false;
+        }
+
+        /**
+         * Replaces the lease with a fresh copy so other workers see it is
+         * alive. The copy is written next to it and moved over it, so readers
+         * never see a partly written lease, and only after the owner was
+         * read again, so a lease another worker took over is left alone.
+         *
+         * @return false if the lease was lost
+         */
+        public synchronized boolean heartbeat() {
+            if (!isHeld()) return false;
+            File renewal = new File(leases, file.getName() + "." + workerId + ".renew");
+            try {
+                Files.write(renewal.toPath(), leaseContent(++heartbeats));
+                if (!isHeld()) return false;
+                try {
+                    Files.move(renewal.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(renewal.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                return true;
+            } catch (IOException ex) {
+                logger.error("Unable to renew lease " + file + ": " + ex);
+                return true;
+            } finally {
+                renewal.delete();
+            }
+        }
+
+        /**
+         * Marks the unit done and gives up the lease.
+         */
+        public synchronized void complete() throws IOException {
+            try {
+                Files.createFile(new File(done, id + DONE).toPath());
+            } catch (FileAlreadyExistsException ex) {
+                // taken over and finished by another worker as well
+            }
+            release();
+        }
+
+        /**
+         * Gives up the lease without finishing the unit.
+         */
+        public synchronized void release() {
+            if (isHeld()) file.delete();
+        }
+
+        @Override
+        public String toString() {
+            return (relativeDir.isEmpty() ? "/" : relativeDir) + " (" + names.size() + " documents, unit " + id + ")";
+        }
+    }
+}